@@ -37,23 +37,33 @@ import org.json.JSONTokener;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * An abstract API client.
@@ -91,16 +101,6 @@ public abstract class AbstractClient {
         }
     }
 
-    private static class HostStatus {
-        boolean isUp = true;
-        long lastTryTimestamp;
-
-        HostStatus(boolean isUp) {
-            this.isUp = isUp;
-            lastTryTimestamp = new Date().getTime();
-        }
-    }
-
     // ----------------------------------------------------------------------
     // Constants
     // ----------------------------------------------------------------------
@@ -111,6 +111,21 @@ public abstract class AbstractClient {
     /** Maximum size for an API key to be sent in the HTTP headers. Bigger keys will go inside the body. */
     private final static int MAX_API_KEY_LENGTH = 500;
 
+    /** With latency-aware host selection, one read request out of this many probes another host than the fastest. */
+    private final static int HOST_PROBE_INTERVAL = 20;
+
+    /** Number of recent search latencies used to compute the hedging delay. */
+    private final static int HEDGING_SAMPLE_COUNT = 100;
+
+    /** Minimum number of search latencies to compute the hedging delay. Before that, half the search timeout is used. */
+    private final static int HEDGING_MIN_SAMPLE_COUNT = 10;
+
+    /** Maximum number of threads running hedged requests. Further attempts wait for a thread. */
+    private final static int HEDGING_MAX_THREADS = 8;
+
+    /** Time after which an idle hedging thread exits (seconds). */
+    private final static int HEDGING_THREAD_KEEP_ALIVE = 30;
+
     // ----------------------------------------------------------------------
     // Fields
     // ----------------------------------------------------------------------
@@ -136,11 +151,41 @@ public abstract class AbstractClient {
     /** Delay to wait when a host is down before retrying it (ms). */
     private int hostDownDelay = 5000;
 
+    /** Whether read requests target the fastest healthy host first. */
+    private boolean latencyAwareHostSelection = false;
+
+    /** Number of read requests routed so far. Used to schedule probes. */
+    private final AtomicInteger readRequestCount = new AtomicInteger();
+
+    /** Whether search requests are hedged across hosts. */
+    private boolean hedgedRequests = false;
+
+    /** Percentile of recent search latencies after which a search request is hedged. */
+    private double hedgingPercentile = 95;
+
+    /** Recent search latencies. */
+    private final LatencySampler searchLatencies = new LatencySampler(HEDGING_SAMPLE_COUNT);
+
+    /** Thread pool used to run hedged requests. Lazily created; its threads exit when idle. */
+    private ExecutorService hedgingExecutorService;
+
+    /** Minimum size of a request body to be compressed (bytes). Negative if compression is disabled. */
+    private volatile int requestCompressionThreshold = -1;
+
+    /** Total size of request bodies before compression (bytes). */
+    private final AtomicLong requestBodyByteCount = new AtomicLong();
+
+    /** Total size of request bodies as sent, i.e. after compression (bytes). */
+    private final AtomicLong sentRequestBodyByteCount = new AtomicLong();
+
     private final String applicationID;
     private final String apiKey;
-    private List<String> readHosts;
-    private List<String> writeHosts;
-    private HashMap<String, HostStatus> hostStatuses = new HashMap<>();
+    private volatile List<String> readHosts;
+    private volatile List<String> writeHosts;
+    private final HostHealthTable hostHealth = new HostHealthTable();
+
+    /** Transport used to perform HTTP exchanges. */
+    private @NonNull Transport transport = new HttpURLConnectionTransport();
 
     /**
      * HTTP headers that will be sent with every request.
@@ -320,6 +365,177 @@ public abstract class AbstractClient {
         this.hostDownDelay = hostDownDelay;
     }
 
+    /**
+     * Get the transport used to perform HTTP exchanges.
+     *
+     * @return The transport.
+     */
+    public @NonNull Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Set the transport used to perform HTTP exchanges.
+     * By default, an {@link HttpURLConnectionTransport} is used.
+     *
+     * @param transport The new transport to use.
+     */
+    public void setTransport(@NonNull Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Get a snapshot of the health of the hosts this client has talked to.
+     * Intended for diagnostics: the returned values are not updated afterwards.
+     *
+     * @return The health of each host that has been tried at least once, by host.
+     */
+    public @NonNull Map<String, HostHealth> getHostHealth() {
+        return hostHealth.snapshot();
+    }
+
+    /**
+     * Test whether latency-aware host selection is enabled.
+     *
+     * @return true if read requests target the fastest healthy host first, false if hosts are tried in order.
+     */
+    public boolean isLatencyAwareHostSelectionEnabled() {
+        return latencyAwareHostSelection;
+    }
+
+    /**
+     * Enable or disable latency-aware host selection.
+     * <p>
+     * When enabled, read requests are sent to the host with the lowest expected latency first, based on a moving
+     * average of its response time and error rate. Hosts that have not been measured yet come after measured ones,
+     * in their configured order. Periodically, a request is sent to the least recently tried host instead, so that
+     * its statistics stay current.
+     * </p>
+     * <p>
+     * Write requests always try hosts in their configured order.
+     * </p>
+     *
+     * @param enabled true to enable latency-aware host selection, false to try hosts in order (default).
+     */
+    public void setLatencyAwareHostSelectionEnabled(boolean enabled) {
+        this.latencyAwareHostSelection = enabled;
+    }
+
+    /**
+     * Test whether search requests are hedged.
+     *
+     * @return true if search requests are hedged across hosts, false otherwise.
+     */
+    public boolean isHedgedRequestsEnabled() {
+        return hedgedRequests;
+    }
+
+    /**
+     * Enable or disable hedging of search requests.
+     * <p>
+     * When enabled, if a host has not answered a search request within the hedging delay, the same request is sent
+     * to the next host, without cancelling the first one. The first successful response is used, and the other
+     * requests are cancelled. The hedging delay is a percentile of recent search latencies (see
+     * {@link #setHedgingPercentile(double)}).
+     * </p>
+     * <p>
+     * This shortens the tail latency when a host is slow, at the cost of a few extra requests. Only read requests
+     * are hedged; write requests always try hosts one after the other.
+     * </p>
+     *
+     * @param enabled true to hedge search requests, false to try hosts one after the other (default).
+     */
+    public void setHedgedRequestsEnabled(boolean enabled) {
+        this.hedgedRequests = enabled;
+    }
+
+    /**
+     * Get the percentile of recent search latencies used as the hedging delay.
+     *
+     * @return The hedging percentile, between 0 and 100.
+     */
+    public double getHedgingPercentile() {
+        return hedgingPercentile;
+    }
+
+    /**
+     * Set the percentile of recent search latencies used as the hedging delay.
+     * For example, with the default value of 95, a search request is hedged if it takes longer than 95% of recent
+     * search requests.
+     *
+     * @param hedgingPercentile The new hedging percentile. Must be strictly between 0 and 100.
+     */
+    public void setHedgingPercentile(double hedgingPercentile) {
+        if (hedgingPercentile <= 0 || hedgingPercentile >= 100) {
+            throw new IllegalArgumentException();
+        }
+        this.hedgingPercentile = hedgingPercentile;
+    }
+
+    /**
+     * Get the minimum size of a request body to be compressed.
+     *
+     * @return The compression threshold (bytes), or a negative value if request compression is disabled.
+     */
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * Set the minimum size of a request body to be compressed.
+     * <p>
+     * Request bodies at least this large are gzip-compressed before being sent, and flagged with a
+     * `Content-Encoding: gzip` header. This mostly benefits large write requests (e.g. adding or saving many objects
+     * at once), especially on slow or metered connections. Compression is skipped when it would not make the body
+     * smaller.
+     * </p>
+     *
+     * @param threshold The compression threshold (bytes), or a negative value to disable request compression
+     *                  (default).
+     */
+    public void setRequestCompressionThreshold(int threshold) {
+        this.requestCompressionThreshold = threshold;
+    }
+
+    /**
+     * Get the total size of the request bodies sent by this client, before compression.
+     *
+     * @return The number of request body bytes, uncompressed.
+     */
+    public long getRequestBodyByteCount() {
+        return requestBodyByteCount.get();
+    }
+
+    /**
+     * Get the total size of the request bodies sent by this client, as sent over the wire (i.e. after compression).
+     * Retries on other hosts are not counted.
+     *
+     * @return The number of request body bytes, as sent.
+     */
+    public long getSentRequestBodyByteCount() {
+        return sentRequestBodyByteCount.get();
+    }
+
+    /**
+     * Reset the request body byte counters.
+     */
+    public void resetRequestBodyByteCounts() {
+        requestBodyByteCount.set(0);
+        sentRequestBodyByteCount.set(0);
+    }
+
+    /**
+     * Get the current hedging delay.
+     *
+     * @return The delay after which a search request is sent to the next host (ms).
+     */
+    long getHedgingDelay() {
+        if (searchLatencies.size() < HEDGING_MIN_SAMPLE_COUNT) {
+            return searchTimeout / 2;
+        }
+        return searchLatencies.percentile(hedgingPercentile);
+    }
+
     /**
      * Add a software library to the list of user agents.
      *
@@ -376,7 +592,8 @@ public abstract class AbstractClient {
     }
 
     private List<String> getReadHostsThatAreUp() {
-        return hostsThatAreUp(readHosts);
+        List<String> hosts = hostsThatAreUp(readHosts);
+        return latencyAwareHostSelection ? sortByExpectedLatency(hosts) : hosts;
     }
 
     private List<String> getWriteHostsThatAreUp() {
@@ -405,84 +622,54 @@ public abstract class AbstractClient {
     }
 
     protected byte[] getRequestRaw(@NonNull String url, @Nullable Map<String, String> urlParameters, boolean search, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _requestRaw(Method.GET, url, urlParameters, /* json: */ null, getReadHostsThatAreUp(), connectTimeout, search ? searchTimeout : readTimeout, requestOptions);
+        return _requestRaw(Method.GET, url, urlParameters, /* json: */ null, getReadHostsThatAreUp(), connectTimeout, search ? searchTimeout : readTimeout, search, requestOptions);
     }
 
     protected JSONObject getRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, boolean search, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _request(Method.GET, url, urlParameters, /* json: */ null, getReadHostsThatAreUp(), connectTimeout, search ? searchTimeout : readTimeout, requestOptions);
+        return _request(Method.GET, url, urlParameters, /* json: */ null, getReadHostsThatAreUp(), connectTimeout, search ? searchTimeout : readTimeout, search, requestOptions);
     }
 
     protected JSONObject deleteRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _request(Method.DELETE, url, urlParameters, /* json: */ null, getWriteHostsThatAreUp(), connectTimeout, readTimeout, requestOptions);
+        return _request(Method.DELETE, url, urlParameters, /* json: */ null, getWriteHostsThatAreUp(), connectTimeout, readTimeout, /* search: */ false, requestOptions);
     }
 
     protected JSONObject postRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String obj, boolean readOperation, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _request(Method.POST, url, urlParameters, obj, (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), connectTimeout, (readOperation ? searchTimeout : readTimeout), requestOptions);
+        return _request(Method.POST, url, urlParameters, obj, (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), connectTimeout, (readOperation ? searchTimeout : readTimeout), readOperation, requestOptions);
     }
 
     protected byte[] postRequestRaw(@NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String obj, boolean readOperation, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _requestRaw(Method.POST, url, urlParameters, obj, (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), connectTimeout, (readOperation ? searchTimeout : readTimeout), requestOptions);
+        return _requestRaw(Method.POST, url, urlParameters, obj, (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), connectTimeout, (readOperation ? searchTimeout : readTimeout), readOperation, requestOptions);
     }
 
     protected JSONObject putRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, @NonNull String obj, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _request(Method.PUT, url, urlParameters, obj, getWriteHostsThatAreUp(), connectTimeout, readTimeout, requestOptions);
-    }
-
-    /**
-     * Reads the InputStream as UTF-8
-     *
-     * @param stream the InputStream to read
-     * @return the stream's content as a String
-     * @throws IOException if the stream can't be read, decoded as UTF-8 or closed
-     */
-    private static String _toCharArray(InputStream stream) throws IOException {
-        InputStreamReader is = new InputStreamReader(stream, "UTF-8");
-        StringBuilder builder = new StringBuilder();
-        char[] buf = new char[1000];
-        int l = 0;
-        while (l >= 0) {
-            builder.append(buf, 0, l);
-            l = is.read(buf);
-        }
-        is.close();
-        return builder.toString();
+        return _request(Method.PUT, url, urlParameters, obj, getWriteHostsThatAreUp(), connectTimeout, readTimeout, /* search: */ false, requestOptions);
     }
 
     /**
-     * Reads the InputStream into a byte array
+     * Compress data with gzip.
      *
-     * @param stream the InputStream to read
-     * @return the stream's content as a byte[]
-     * @throws AlgoliaException if the stream can't be read or flushed
+     * @param data The data to compress.
+     * @return The compressed data.
      */
-    private static byte[] _toByteArray(InputStream stream) throws AlgoliaException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int read;
-        byte[] buffer = new byte[1024];
-
+    static byte[] _gzip(@NonNull byte[] data) {
         try {
-            while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
-                out.write(buffer, 0, read);
-            }
-
-            out.flush();
+            // Typical JSON payloads compress at least 4 times.
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(data.length / 4, 64));
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(data);
+            gzip.close();
             return out.toByteArray();
         } catch (IOException e) {
-            throw new AlgoliaException("Error while reading stream: " + e.getMessage());
+            throw new RuntimeException(e); // should never happen: in-memory streams don't fail
         }
     }
 
-
     protected static JSONObject _getJSONObject(String input) throws JSONException {
         return new JSONObject(new JSONTokener(input));
     }
 
     protected static JSONObject _getJSONObject(byte[] array) throws JSONException, UnsupportedEncodingException {
-        return new JSONObject(new String(array, "UTF-8"));
-    }
-
-    private static JSONObject _getAnswerJSONObject(InputStream istream) throws IOException, JSONException {
-        return _getJSONObject(_toCharArray(istream));
+        return JSONByteParser.parseObject(array);
     }
 
     /**
@@ -495,12 +682,13 @@ public abstract class AbstractClient {
      * @param hostsArray     array of hosts to try successively
      * @param connectTimeout maximum wait time to open connection
      * @param readTimeout    maximum time to read data on socket
+     * @param search         whether this is a search request (eligible for hedging)
      * @return a JSONObject containing the resulting data or error
      * @throws AlgoliaException if the request data is not valid json
      */
-    private JSONObject _request(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String json, @NonNull List<String> hostsArray, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+    private JSONObject _request(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String json, @NonNull List<String> hostsArray, int connectTimeout, int readTimeout, boolean search, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         try {
-            return _getJSONObject(_requestRaw(m, url, urlParameters, json, hostsArray, connectTimeout, readTimeout, requestOptions));
+            return _getJSONObject(_requestRaw(m, url, urlParameters, json, hostsArray, connectTimeout, readTimeout, search, requestOptions));
         } catch (JSONException e) {
             throw new AlgoliaException("JSON decode error:" + e.getMessage());
         } catch (UnsupportedEncodingException e) {
@@ -518,179 +706,253 @@ public abstract class AbstractClient {
      * @param hostsArray     array of hosts to try successively
      * @param connectTimeout maximum wait time to open connection
      * @param readTimeout    maximum time to read data on socket
+     * @param search         whether this is a search request (eligible for hedging)
      * @return a JSONObject containing the resulting data or error
      * @throws AlgoliaException in case of connection or data handling error
      */
-    private byte[] _requestRaw(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String json, @NonNull List<String> hostsArray, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        String requestMethod;
-        List<Exception> errors = new ArrayList<>(hostsArray.size());
-        // for each host
-        for (String host : hostsArray) {
-            switch (m) {
-                case DELETE:
-                    requestMethod = "DELETE";
-                    break;
-                case GET:
-                    requestMethod = "GET";
-                    break;
-                case POST:
-                    requestMethod = "POST";
-                    break;
-                case PUT:
-                    requestMethod = "PUT";
-                    break;
-                default:
-                    throw new IllegalArgumentException("Method " + m + " is not supported");
-            }
+    private byte[] _requestRaw(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String json, @NonNull List<String> hostsArray, int connectTimeout, int readTimeout, boolean search, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        if (json != null && !(m == Method.PUT || m == Method.POST)) {
+            throw new IllegalArgumentException("Method " + m + " cannot enclose entity");
+        }
+
+        // Compute final URL parameters.
+        final Map<String, String> parameters = new HashMap<>();
+        if (urlParameters != null) {
+            parameters.putAll(urlParameters);
+        }
+        if (requestOptions != null) {
+            parameters.putAll(requestOptions.urlParameters);
+        }
+        String path = url;
+        if (!parameters.isEmpty()) {
+            path += "?" + AbstractQuery.build(parameters);
+        }
 
-            InputStream stream = null;
-            HttpURLConnection hostConnection = null;
+        // Headers
+        final Map<String, String> headers = new LinkedHashMap<>();
+        putHeader(headers, "X-Algolia-Application-Id", this.applicationID);
+        // If API key is too big, send it in the request's body (if applicable).
+        if (this.apiKey != null && this.apiKey.length() > MAX_API_KEY_LENGTH && json != null) {
             try {
-                // Compute final URL parameters.
-                final Map<String, String> parameters = new HashMap<>();
-                if (urlParameters != null) {
-                    parameters.putAll(urlParameters);
-                }
-                if (requestOptions != null) {
-                    parameters.putAll(requestOptions.urlParameters);
-                }
+                final JSONObject body = new JSONObject(json);
+                body.put("apiKey", this.apiKey);
+                json = body.toString();
+            } catch (JSONException e) {
+                throw new AlgoliaException("Failed to patch JSON body");
+            }
+        } else {
+            putHeader(headers, "X-Algolia-API-Key", this.apiKey);
+        }
+        // Client-level headers
+        headers.putAll(this.headers);
+        // Request-level headers
+        if (requestOptions != null) {
+            headers.putAll(requestOptions.headers);
+        }
+        // set user agent
+        putHeader(headers, "User-Agent", userAgentRaw);
 
-                // Build URL.
-                String urlString = "https://" + host + url;
-                if (!parameters.isEmpty()) {
-                    urlString += "?" + AbstractQuery.build(parameters);
-                }
-                URL hostURL = new URL(urlString);
-
-                // Open connection.
-                hostConnection = (HttpURLConnection) hostURL.openConnection();
-
-                //set timeouts
-                hostConnection.setRequestMethod(requestMethod);
-                hostConnection.setConnectTimeout(connectTimeout);
-                hostConnection.setReadTimeout(readTimeout);
-
-                // Headers
-                hostConnection.setRequestProperty("X-Algolia-Application-Id", this.applicationID);
-                // If API key is too big, send it in the request's body (if applicable).
-                if (this.apiKey != null && this.apiKey.length() > MAX_API_KEY_LENGTH && json != null) {
-                    try {
-                        final JSONObject body = new JSONObject(json);
-                        body.put("apiKey", this.apiKey);
-                        json = body.toString();
-                    } catch (JSONException e) {
-                        throw new AlgoliaException("Failed to patch JSON body");
-                    }
-                } else {
-                    hostConnection.setRequestProperty("X-Algolia-API-Key", this.apiKey);
-                }
-                // Client-level headers
-                for (Map.Entry<String, String> entry : this.headers.entrySet()) {
-                    hostConnection.setRequestProperty(entry.getKey(), entry.getValue());
-                }
-                // Request-level headers
-                if (requestOptions != null) {
-                    for (Map.Entry<String, String> entry : requestOptions.headers.entrySet()) {
-                        hostConnection.setRequestProperty(entry.getKey(), entry.getValue());
-                    }
+        // JSON entity
+        byte[] body = null;
+        if (json != null) {
+            headers.put("Content-type", "application/json; charset=UTF-8");
+            try {
+                body = json.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e); // should never happen: UTF-8 is always supported
+            }
+            requestBodyByteCount.addAndGet(body.length);
+            final int threshold = requestCompressionThreshold;
+            if (threshold >= 0 && body.length >= threshold) {
+                final byte[] compressedBody = _gzip(body);
+                if (compressedBody.length < body.length) {
+                    body = compressedBody;
+                    headers.put("Content-Encoding", "gzip");
                 }
+            }
+            sentRequestBodyByteCount.addAndGet(body.length);
+        }
 
-                // set user agent
-                hostConnection.setRequestProperty("User-Agent", userAgentRaw);
+        // Build one request per host.
+        List<Exception> errors = new ArrayList<>(hostsArray.size());
+        List<Transport.HttpRequest> requests = new ArrayList<>(hostsArray.size());
+        for (String host : hostsArray) {
+            try {
+                requests.add(new Transport.HttpRequest(m.name(), host, new URL("https://" + host + path), headers, body, connectTimeout, readTimeout));
+            } catch (MalformedURLException e) {
+                errors.add(e);
+            }
+        }
 
-                // write JSON entity
-                if (json != null) {
-                    if (!(requestMethod.equals("PUT") || requestMethod.equals("POST"))) {
-                        throw new IllegalArgumentException("Method " + m + " cannot enclose entity");
-                    }
-                    hostConnection.setRequestProperty("Content-type", "application/json; charset=UTF-8");
-                    hostConnection.setDoOutput(true);
-                    OutputStreamWriter writer = new OutputStreamWriter(hostConnection.getOutputStream(), "UTF-8");
-                    writer.write(json);
-                    writer.close();
-                }
+        if (search && hedgedRequests && requests.size() > 1) {
+            return _requestRawHedged(requests, errors);
+        }
 
-                // read response
-                int code = hostConnection.getResponseCode();
-                final boolean codeIsError = code / 100 != 2;
-                stream = codeIsError ? hostConnection.getErrorStream() : hostConnection.getInputStream();
-                // As per the official Java docs (not the Android docs):
-                // - `getErrorStream()` may return null => we have to handle this case.
-                //   See <https://docs.oracle.com/javase/7/docs/api/java/net/HttpURLConnection.html#getErrorStream()>.
-                // - `getInputStream()` should never return null... but let's err on the side of caution.
-                //   See <https://docs.oracle.com/javase/7/docs/api/java/net/URLConnection.html#getInputStream()>.
-                if (stream == null) {
-                    throw new IOException(String.format("Null stream when reading connection (status %d)", code));
+        // for each host
+        for (Transport.HttpRequest request : requests) {
+            try {
+                final byte[] rawResponse = _processResponse(_execute(request, search), errors);
+                if (rawResponse != null) {
+                    return rawResponse;
                 }
-                hostStatuses.put(host, new HostStatus(true));
+            } catch (IOException e) { // host error, continue on the next host
+                errors.add(e);
+            }
+        }
+        throw _allHostsFailed(errors);
+    }
 
-                final byte[] rawResponse;
-                String encoding = hostConnection.getContentEncoding();
-                if (encoding != null && encoding.equals("gzip")) {
-                    rawResponse = _toByteArray(new GZIPInputStream(stream));
-                } else {
-                    rawResponse = _toByteArray(stream);
+    /**
+     * Send the same request to several hosts, starting a new host each time the hedging delay elapses without a
+     * response. The first successful response wins and the other requests are cancelled.
+     *
+     * @param requests The request to send, for each host, in order of preference.
+     * @param errors   Errors encountered so far. Will be appended to.
+     * @return The body of the first successful response.
+     * @throws AlgoliaException if all hosts failed, or the server returned a fatal error.
+     */
+    private byte[] _requestRawHedged(@NonNull List<Transport.HttpRequest> requests, @NonNull List<Exception> errors) throws AlgoliaException {
+        final long hedgingDelay = getHedgingDelay();
+        final CompletionService<Transport.HttpResponse> completionService = new ExecutorCompletionService<>(getHedgingExecutorService());
+        final List<Future<Transport.HttpResponse>> attempts = new ArrayList<>(requests.size());
+        try {
+            int pendingCount = 0;
+            while (pendingCount > 0 || attempts.size() < requests.size()) {
+                // Start the next host if nothing is pending.
+                if (pendingCount == 0) {
+                    attempts.add(completionService.submit(_newAttempt(requests.get(attempts.size()))));
+                    pendingCount++;
                 }
-
-                // handle http errors
-                if (codeIsError) {
-                    if (code / 100 == 4) {
-                        consumeQuietly(hostConnection);
-                        throw new AlgoliaException(_getJSONObject(rawResponse).getString("message"), code);
-                    } else {
-                        consumeQuietly(hostConnection);
-                        errors.add(new AlgoliaException(_toCharArray(stream), code));
+                // Wait for a response; hedge if it takes too long and there are hosts left.
+                final Future<Transport.HttpResponse> attempt;
+                if (attempts.size() < requests.size()) {
+                    attempt = completionService.poll(hedgingDelay, TimeUnit.MILLISECONDS);
+                    if (attempt == null) {
+                        attempts.add(completionService.submit(_newAttempt(requests.get(attempts.size()))));
+                        pendingCount++;
                         continue;
                     }
+                } else {
+                    attempt = completionService.take();
                 }
-                return rawResponse;
-
-            } catch (JSONException e) { // fatal
-                consumeQuietly(hostConnection);
-                throw new AlgoliaException("Invalid JSON returned by server", e);
-            } catch (UnsupportedEncodingException e) { // fatal
-                consumeQuietly(hostConnection);
-                throw new AlgoliaException("Invalid encoding returned by server", e);
-            } catch (IOException e) { // host error, continue on the next host
-                hostStatuses.put(host, new HostStatus(false));
-                consumeQuietly(hostConnection);
-                errors.add(e);
-            } finally {
-                if (stream != null) {
-                    try {
-                        stream.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                pendingCount--;
+                try {
+                    final byte[] rawResponse = _processResponse(attempt.get(), errors);
+                    if (rawResponse != null) {
+                        return rawResponse;
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) { // host error, continue on the next host
+                        errors.add((IOException) e.getCause());
+                    } else {
+                        throw new RuntimeException(e.getCause()); // should never happen
                     }
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Request interrupted", e);
+        } finally {
+            // Cancel the losers. Interrupting their thread does not abort blocking I/O: the transport has to.
+            for (int i = 0; i < attempts.size(); ++i) {
+                attempts.get(i).cancel(true);
+                requests.get(i).cancel();
+            }
         }
+        throw _allHostsFailed(errors);
+    }
 
-        String errorMessage = "All hosts failed: " + Arrays.toString(errors.toArray());
-        // When several errors occurred, use the last one as the cause for the returned exception.
-        Throwable lastError = errors.get(errors.size() - 1);
-        throw new AlgoliaException(errorMessage, lastError);
+    private Callable<Transport.HttpResponse> _newAttempt(@NonNull final Transport.HttpRequest request) {
+        return new Callable<Transport.HttpResponse>() {
+            @Override
+            public Transport.HttpResponse call() throws IOException {
+                return _execute(request, /* search: */ true);
+            }
+        };
     }
 
     /**
-     * Ensures that the entity content is fully consumed and the content stream, if exists,
-     * is closed.
+     * Send a request to its host, recording the outcome in the host's status.
+     *
+     * @param request The request to send.
+     * @param search  Whether this is a search request.
+     * @return The response returned by the host.
+     * @throws IOException If the exchange failed.
      */
-    private static void consumeQuietly(final HttpURLConnection connection) {
+    private Transport.HttpResponse _execute(@NonNull Transport.HttpRequest request, boolean search) throws IOException {
+        final long startTime = System.nanoTime();
         try {
-            int read = 0;
-            while (read != -1) {
-                read = connection.getInputStream().read();
-            }
-            connection.getInputStream().close();
-            read = 0;
-            while (read != -1) {
-                read = connection.getErrorStream().read();
+            final Transport.HttpResponse response = transport.execute(request);
+            final long duration = (System.nanoTime() - startTime) / 1000000;
+            hostHealth.recordSuccess(request.host, duration);
+            if (search) {
+                searchLatencies.record(duration);
             }
-            connection.getErrorStream().close();
-            connection.disconnect();
+            return response;
         } catch (IOException e) {
-            // no inputStream to close
+            // An exchange aborted by a cancellation says nothing about the host.
+            if (!request.isCancelled() && !Thread.currentThread().isInterrupted()) {
+                hostHealth.recordFailure(request.host);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Interpret the response returned by a host.
+     *
+     * @param response The response.
+     * @param errors   Errors encountered so far. Will be appended to if the host failed.
+     * @return The response's body if successful, null if the host failed and the next host should be tried.
+     * @throws AlgoliaException if the server returned a fatal error.
+     */
+    private static byte[] _processResponse(@NonNull Transport.HttpResponse response, @NonNull List<Exception> errors) throws AlgoliaException {
+        try {
+            // handle http errors
+            final int code = response.statusCode;
+            if (code / 100 != 2) {
+                if (code / 100 == 4) {
+                    throw new AlgoliaException(_getJSONObject(response.body).getString("message"), code);
+                } else {
+                    errors.add(new AlgoliaException(new String(response.body, "UTF-8"), code));
+                    return null;
+                }
+            }
+            return response.body;
+        } catch (JSONException e) { // fatal
+            throw new AlgoliaException("Invalid JSON returned by server", e);
+        } catch (UnsupportedEncodingException e) { // fatal
+            throw new AlgoliaException("Invalid encoding returned by server", e);
+        }
+    }
+
+    private static AlgoliaException _allHostsFailed(@NonNull List<Exception> errors) {
+        String errorMessage = "All hosts failed: " + Arrays.toString(errors.toArray());
+        // When several errors occurred, use the last one as the cause for the returned exception.
+        Throwable lastError = errors.isEmpty() ? null : errors.get(errors.size() - 1);
+        return new AlgoliaException(errorMessage, lastError);
+    }
+
+    private synchronized ExecutorService getHedgingExecutorService() {
+        if (hedgingExecutorService == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(HEDGING_MAX_THREADS, HEDGING_MAX_THREADS, HEDGING_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "AlgoliaHedging");
+                    thread.setDaemon(true); // must not keep the process alive
+                    return thread;
+                }
+            });
+            // Let the pool wind down with the client: no thread survives a period without hedged requests.
+            executor.allowCoreThreadTimeOut(true);
+            hedgingExecutorService = executor;
+        }
+        return hedgingExecutorService;
+    }
+
+    private static void putHeader(@NonNull Map<String, String> headers, @NonNull String name, @Nullable String value) {
+        if (value != null) {
+            headers.put(name, value);
         }
     }
 
@@ -703,7 +965,7 @@ public abstract class AbstractClient {
     /**
      * Get the hosts that are not considered down in a given list.
      *
-     * @param hosts a list of hosts whose {@link HostStatus} will be checked.
+     * @param hosts a list of hosts whose health will be checked.
      * @return the hosts considered up, or all hosts if none is known to be reachable.
      */
     private List<String> hostsThatAreUp(List<String> hosts) {
@@ -716,9 +978,46 @@ public abstract class AbstractClient {
         return upHosts.isEmpty() ? hosts : upHosts;
     }
 
+    /**
+     * Order hosts by increasing expected latency, probing another host from time to time.
+     *
+     * @param hosts The hosts to order.
+     * @return A new list containing the same hosts. Hosts that have never responded come last, in their original order.
+     */
+    private List<String> sortByExpectedLatency(List<String> hosts) {
+        final Map<String, Double> expectedLatencies = new HashMap<>(hosts.size());
+        String probedHost = null;
+        long probedHostLastTry = Long.MAX_VALUE;
+        for (String host : hosts) {
+            expectedLatencies.put(host, hostHealth.expectedLatency(host, searchTimeout));
+            final long lastTry = hostHealth.getLastTryTimestamp(host);
+            if (lastTry < probedHostLastTry) {
+                probedHost = host;
+                probedHostLastTry = lastTry;
+            }
+        }
+        List<String> sortedHosts = new ArrayList<>(hosts);
+        Collections.sort(sortedHosts, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                final double lhsLatency = expectedLatencies.get(lhs);
+                final double rhsLatency = expectedLatencies.get(rhs);
+                if (lhsLatency < 0 || rhsLatency < 0) {
+                    return lhsLatency < 0 ? (rhsLatency < 0 ? 0 : 1) : -1;
+                }
+                return Double.compare(lhsLatency, rhsLatency);
+            }
+        });
+        // Periodically try the least recently tried host first, so that its statistics do not become stale.
+        if (readRequestCount.incrementAndGet() % HOST_PROBE_INTERVAL == 0 && probedHost != null) {
+            sortedHosts.remove(probedHost);
+            sortedHosts.add(0, probedHost);
+        }
+        return sortedHosts;
+    }
+
     boolean isUpOrCouldBeRetried(String host) {
-        HostStatus status = hostStatuses.get(host);
-        return status == null || status.isUp || new Date().getTime() - status.lastTryTimestamp >= hostDownDelay;
+        return hostHealth.isUpOrCouldBeRetried(host, hostDownDelay);
     }
 
     // ----------------------------------------------------------------------
@@ -32,7 +32,8 @@ import org.json.JSONException;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -113,12 +114,26 @@ public abstract class AbstractQuery {
     // NOTE: Using a tree map to have parameters sorted by key on output.
     @NonNull private Map<String, String> parameters = new TreeMap<>();
 
+    /**
+     * URL-encoded form of each parameter (`name=value`), computed lazily by {@link #build()}.
+     * Invalidated per parameter by {@link #set(String, Object)}, so that changing one parameter (typically the query
+     * text, at every keystroke) only re-encodes that parameter.
+     */
+    // NOTE: Guarded by `this`, since `build()` may be called concurrently on a shared instance.
+    @NonNull private Map<String, String> encodedParameters = new HashMap<>();
+
+    /** Result of the last call to {@link #build()}, or null if a parameter has changed since. */
+    @Nullable private String builtParameters;
+
+    /** Result of the last call to {@link #fingerprint()}, or null if a parameter has changed since. */
+    @Nullable private QueryFingerprint fingerprint;
+
     /**
      * Access the store of query parameters. For internal use only.
      * @return The parameters in this query.
      */
     Map<String, String> getParameters() {
-        return parameters;
+        return Collections.unmodifiableMap(parameters);
     }
 
     // ----------------------------------------------------------------------
@@ -137,6 +152,11 @@ public abstract class AbstractQuery {
      */
     protected AbstractQuery(@NonNull AbstractQuery other) {
         parameters = new TreeMap<>(other.parameters);
+        synchronized (other) {
+            encodedParameters = new HashMap<>(other.encodedParameters);
+            builtParameters = other.builtParameters;
+            fingerprint = other.fingerprint;
+        }
     }
 
     // ----------------------------------------------------------------------
@@ -174,8 +194,33 @@ public abstract class AbstractQuery {
      * Build the URL query parameter string representing this object.
      * @return A string suitable for use inside the query part of a URL (i.e. after the question mark).
      */
-    public @NonNull String build() {
-        return build(parameters);
+    public synchronized @NonNull String build() {
+        if (builtParameters == null) {
+            StringBuilder stringBuilder = new StringBuilder();
+            for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                String encodedParameter = encodedParameters.get(entry.getKey());
+                if (encodedParameter == null) {
+                    encodedParameter = encodeParameter(entry.getKey(), entry.getValue());
+                    encodedParameters.put(entry.getKey(), encodedParameter);
+                }
+                if (stringBuilder.length() > 0)
+                    stringBuilder.append('&');
+                stringBuilder.append(encodedParameter);
+            }
+            builtParameters = stringBuilder.toString();
+        }
+        return builtParameters;
+    }
+
+    /**
+     * Compute a compact fingerprint of this query's parameters, for use as a cache key.
+     * @return The fingerprint, memoized until a parameter changes.
+     */
+    synchronized @NonNull QueryFingerprint fingerprint() {
+        if (fingerprint == null) {
+            fingerprint = QueryFingerprint.of(build());
+        }
+        return fingerprint;
     }
 
     /**
@@ -184,28 +229,29 @@ public abstract class AbstractQuery {
      */
     static @NonNull String build(@NonNull Map<String, String> parameters) {
         StringBuilder stringBuilder = new StringBuilder();
-        try {
-            for (Map.Entry<String, String> entry : parameters.entrySet()) {
-                String key = entry.getKey();
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append(urlEncode(key));
-                String value = entry.getValue();
-                if (value != null) {
-                    stringBuilder.append('=');
-                    stringBuilder.append(urlEncode(value));
-                }
-            }
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e); // should never happen: UTF-8 is always supported
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            appendParameter(stringBuilder, entry.getKey(), entry.getValue());
         }
         return stringBuilder.toString();
     }
 
-    static private String urlEncode(String value) throws UnsupportedEncodingException {
-        // NOTE: We prefer to have space encoded as `%20` instead of `+`, so we patch `URLEncoder`'s behaviour.
-        // This works because `+` itself is percent-escaped (into `%2B`).
-        return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    /**
+     * URL-encode a parameter.
+     * @return The encoded parameter, in the form `name=value`, or just `name` if the value is null.
+     */
+    private static @NonNull String encodeParameter(@NonNull String name, @Nullable String value) {
+        return appendParameter(new StringBuilder(name.length() + (value != null ? value.length() + 1 : 0)), name, value).toString();
+    }
+
+    private static @NonNull StringBuilder appendParameter(@NonNull StringBuilder out, @NonNull String name, @Nullable String value) {
+        // NOTE: Spaces are encoded as `%20` instead of `+`.
+        PercentEncoder.encode(name, out);
+        if (value != null) {
+            PercentEncoder.encode(value, out.append('='));
+        }
+        return out;
     }
 
     /**
@@ -311,6 +357,11 @@ public abstract class AbstractQuery {
         } else {
             parameters.put(name, value.toString());
         }
+        synchronized (this) {
+            encodedParameters.remove(name);
+            builtParameters = null;
+            fingerprint = null;
+        }
         return this;
     }
 
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONObject;
+
+/**
+ * Error raised when a batch split into several requests partially failed.
+ * <p>
+ * Requests accepted before the failure have been written nonetheless: their results are available through
+ * {@link #getPartialResult()}. The status code and message are those of the failed request, which is also the cause.
+ * </p>
+ */
+public class BatchUploadException extends AlgoliaException {
+    private static final long serialVersionUID = 1L;
+
+    /** Merged results of the accepted requests. */
+    private final @NonNull JSONObject partialResult;
+
+    public BatchUploadException(@NonNull AlgoliaException cause, @NonNull JSONObject partialResult) {
+        super(cause.getMessage(), cause.getStatusCode());
+        initCause(cause);
+        this.partialResult = partialResult;
+    }
+
+    /**
+     * Get the merged results of the requests accepted before the failure.
+     *
+     * @return The <code>objectIDs</code> of their operations, in order, their <code>taskIDs</code>, and as
+     *         <code>taskID</code> the highest of them (absent if no request was accepted).
+     */
+    public @NonNull JSONObject getPartialResult() {
+        return partialResult;
+    }
+}
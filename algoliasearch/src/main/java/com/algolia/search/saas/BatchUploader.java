@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Uploads a large batch of operations as several smaller batches, optionally in parallel.
+ * <p>
+ * The API limits the size of request bodies, and serializing tens of thousands of objects at once needs a lot of
+ * memory. Operations are therefore split into chunks bounded by their number and serialized size. The results of
+ * the chunks are then merged.
+ * </p>
+ * <p>
+ * By default, chunks are uploaded one at a time, in order. When a higher concurrency is allowed, chunks are
+ * uploaded in parallel on the client's executor, except that chunks touching the same object are kept on one
+ * sequential lane, so that operations on an object are still applied in order.
+ * </p>
+ */
+class BatchUploader {
+    /** Default maximum number of operations per chunk. */
+    static final int DEFAULT_MAX_OPERATIONS = 1000;
+
+    /** Default maximum size of a chunk (bytes). */
+    static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /** Default maximum number of chunks uploaded at the same time. */
+    static final int DEFAULT_CONCURRENCY = 1;
+
+    /** The index written to. */
+    private final @NonNull Index index;
+
+    private final int maxOperations;
+    private final long maxBytes;
+    private final int concurrency;
+
+    /**
+     * Create a new uploader.
+     *
+     * @param index         The index written to.
+     * @param maxOperations Maximum number of operations per chunk.
+     * @param maxBytes      Maximum size of a chunk (bytes, once encoded as UTF-8). A single larger operation is
+     *                      sent in a chunk of its own.
+     * @param concurrency   Maximum number of chunks uploaded at the same time.
+     */
+    BatchUploader(@NonNull Index index, int maxOperations, long maxBytes, int concurrency) {
+        this.index = index;
+        this.maxOperations = Math.max(maxOperations, 1);
+        this.maxBytes = maxBytes;
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    /**
+     * Upload a batch of operations.
+     *
+     * @param actions         The batch operations.
+     * @param requestOptions  Request-specific options.
+     * @param waitForIndexing Whether to also wait until all chunks have been applied by the engine.
+     * @return The result of the batch, if it fits in one chunk. Otherwise, the chunks' results merged: the
+     *         <code>objectIDs</code> of all operations, in order, the <code>taskIDs</code> of all chunks, and as
+     *         <code>taskID</code> the highest of them.
+     * @throws BatchUploadException If a chunk failed after others had been sent; it holds the merged results of the
+     *                              chunks accepted, which have been applied nonetheless.
+     * @throws AlgoliaException If the batch fits in one chunk and it failed.
+     */
+    @NonNull JSONObject upload(@NonNull JSONArray actions, @Nullable RequestOptions requestOptions, boolean waitForIndexing) throws AlgoliaException {
+        final List<JSONArray> chunks = split(actions);
+        final JSONObject result;
+        if (chunks.size() == 1) {
+            result = index.batch(chunks.get(0), requestOptions);
+        } else {
+            result = merge(uploadChunks(chunks, requestOptions));
+        }
+        if (waitForIndexing) {
+            // Tasks of an index are applied in order: the highest task is published last.
+            index.waitTask(result.optString("taskID"));
+        }
+        return result;
+    }
+
+    /**
+     * Split operations into chunks, keeping their order.
+     */
+    private @NonNull List<JSONArray> split(@NonNull JSONArray actions) {
+        final List<JSONArray> chunks = new ArrayList<>();
+        JSONArray chunk = new JSONArray();
+        long chunkBytes = 0;
+        for (int i = 0; i < actions.length(); ++i) {
+            final Object action = actions.opt(i);
+            final int actionBytes = WriteBuffer.utf8Length(String.valueOf(action));
+            if (chunk.length() > 0 && (chunk.length() >= maxOperations || chunkBytes + actionBytes > maxBytes)) {
+                chunks.add(chunk);
+                chunk = new JSONArray();
+                chunkBytes = 0;
+            }
+            chunk.put(action);
+            chunkBytes += actionBytes;
+        }
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * Group chunks into lanes, so that all chunks touching an object are in the same lane.
+     *
+     * @return The lanes, each listing chunk positions in increasing order; lanes are ordered by their first chunk.
+     */
+    private static @NonNull List<List<Integer>> lanesOf(@NonNull List<JSONArray> chunks) {
+        // Union-find over chunks: each chunk is merged with the first chunk touching the same object.
+        final int[] parents = new int[chunks.size()];
+        final Map<String, Integer> chunksByObjectID = new HashMap<>();
+        for (int i = 0; i < chunks.size(); ++i) {
+            parents[i] = i;
+            final JSONArray chunk = chunks.get(i);
+            for (int j = 0; j < chunk.length(); ++j) {
+                final String objectID = objectIDOf(chunk.optJSONObject(j));
+                if (objectID == null) {
+                    continue;
+                }
+                final Integer previous = chunksByObjectID.put(objectID, i);
+                if (previous != null) {
+                    final int root = rootOf(parents, previous);
+                    final int chunkRoot = rootOf(parents, i);
+                    parents[Math.max(root, chunkRoot)] = Math.min(root, chunkRoot);
+                }
+            }
+        }
+        final List<List<Integer>> lanes = new ArrayList<>();
+        final Map<Integer, List<Integer>> lanesByRoot = new HashMap<>();
+        for (int i = 0; i < chunks.size(); ++i) {
+            final int root = rootOf(parents, i);
+            List<Integer> lane = lanesByRoot.get(root);
+            if (lane == null) {
+                lane = new ArrayList<>();
+                lanesByRoot.put(root, lane);
+                lanes.add(lane);
+            }
+            lane.add(i);
+        }
+        return lanes;
+    }
+
+    private static int rootOf(@NonNull int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * Get the ID of the object touched by an operation, if known.
+     */
+    private static @Nullable String objectIDOf(@Nullable JSONObject action) {
+        if (action == null) {
+            return null;
+        }
+        String objectID = action.optString("objectID", null);
+        if (objectID == null) {
+            final JSONObject body = action.optJSONObject("body");
+            objectID = body != null ? body.optString("objectID", null) : null;
+        }
+        return objectID;
+    }
+
+    /**
+     * Upload chunks, lane by lane. The calling thread uploads chunks too; up to <code>concurrency - 1</code> helpers
+     * run on the client's executor.
+     *
+     * @return The results of the chunks, in order.
+     * @throws BatchUploadException If a chunk failed.
+     */
+    private @NonNull JSONObject[] uploadChunks(@NonNull final List<JSONArray> chunks, @Nullable final RequestOptions requestOptions) throws AlgoliaException {
+        final JSONObject[] results = new JSONObject[chunks.size()];
+        final List<List<Integer>> lanes = concurrency > 1 ? lanesOf(chunks) : null;
+        final int laneCount = lanes != null ? lanes.size() : 1;
+        final AtomicInteger nextLane = new AtomicInteger();
+        final AtomicReference<AlgoliaException> failure = new AtomicReference<>();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int lane;
+                while (failure.get() == null && (lane = nextLane.getAndIncrement()) < laneCount) {
+                    final int chunkCount = lanes != null ? lanes.get(lane).size() : chunks.size();
+                    for (int i = 0; i < chunkCount && failure.get() == null; ++i) {
+                        final int chunk = lanes != null ? lanes.get(lane).get(i) : i;
+                        try {
+                            results[chunk] = index.batch(chunks.get(chunk), requestOptions);
+                        } catch (AlgoliaException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            }
+        };
+        final int helperCount = Math.min(concurrency, laneCount) - 1;
+        final List<Future<?>> helpers = new ArrayList<>(Math.max(helperCount, 0));
+        final List<AtomicBoolean> helperStarts = new ArrayList<>(Math.max(helperCount, 0));
+        try {
+            for (int i = 0; i < helperCount; ++i) {
+                final AtomicBoolean started = new AtomicBoolean();
+                helpers.add(index.getClient().searchExecutorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (started.compareAndSet(false, true)) {
+                            worker.run();
+                        }
+                    }
+                }));
+                helperStarts.add(started);
+            }
+        } catch (RejectedExecutionException e) {
+            // The client's executor has been shut down: do the work alone.
+        }
+        worker.run();
+        try {
+            for (int i = 0; i < helpers.size(); ++i) {
+                // All lanes have been claimed. Helpers still queued (e.g. behind this very call, if it runs on the
+                // same executor) have nothing left to do: drop them rather than waiting for them.
+                if (helperStarts.get(i).compareAndSet(false, true)) {
+                    helpers.get(i).cancel(false);
+                } else {
+                    helpers.get(i).get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Request interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause()); // should never happen
+        }
+        if (failure.get() != null) {
+            throw new BatchUploadException(failure.get(), merge(results));
+        }
+        return results;
+    }
+
+    /**
+     * Merge the results of several chunks. Missing results (chunks not accepted) are skipped.
+     */
+    private static @NonNull JSONObject merge(@NonNull JSONObject[] results) throws AlgoliaException {
+        try {
+            final JSONArray taskIDs = new JSONArray();
+            final JSONArray objectIDs = new JSONArray();
+            long maxTaskID = -1;
+            for (JSONObject result : results) {
+                if (result == null) {
+                    continue;
+                }
+                final long taskID = result.getLong("taskID");
+                taskIDs.put(taskID);
+                // Tasks of an index are applied in order: waiting for the highest one waits for all of them.
+                maxTaskID = Math.max(maxTaskID, taskID);
+                final JSONArray chunkObjectIDs = result.optJSONArray("objectIDs");
+                if (chunkObjectIDs != null) {
+                    for (int i = 0; i < chunkObjectIDs.length(); ++i) {
+                        objectIDs.put(chunkObjectIDs.get(i));
+                    }
+                }
+            }
+            final JSONObject merged = new JSONObject()
+                    .put("taskIDs", taskIDs)
+                    .put("objectIDs", objectIDs);
+            if (maxTaskID >= 0) {
+                merged.put("taskID", maxTaskID);
+            }
+            return merged;
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of fixed-size byte buffers.
+ * <p>
+ * Buffers are handed out by {@link #acquire()} and given back by {@link #release(byte[])}. At most
+ * `maxPooledBuffers` idle buffers are retained; when the pool is empty, a new buffer is allocated, and when it is
+ * full, released buffers are left to the garbage collector. This way, steady-state traffic reuses the same few
+ * buffers, while bursts cannot make the pool grow unbounded.
+ * </p>
+ * <p>
+ * A pool is thread-safe.
+ * </p>
+ */
+class BufferPool {
+    /** Size of the pooled buffers (bytes). */
+    private final int bufferSize;
+
+    /** Maximum number of idle buffers retained. */
+    private final int maxPooledBuffers;
+
+    /** Idle buffers. */
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+
+    /**
+     * Create a new pool.
+     *
+     * @param bufferSize       Size of the pooled buffers (bytes). Must be positive.
+     * @param maxPooledBuffers Maximum number of idle buffers retained. Must be positive.
+     */
+    BufferPool(int bufferSize, int maxPooledBuffers) {
+        if (bufferSize <= 0 || maxPooledBuffers <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Get the size of the pooled buffers.
+     *
+     * @return The buffer size (bytes).
+     */
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the number of idle buffers currently retained.
+     *
+     * @return The number of pooled buffers.
+     */
+    synchronized int getPooledCount() {
+        return buffers.size();
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate a new one if the pool is empty.
+     * The buffer's content is unspecified.
+     *
+     * @return A buffer of {@link #getBufferSize()} bytes.
+     */
+    @NonNull byte[] acquire() {
+        synchronized (this) {
+            byte[] buffer = buffers.pollLast();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not use the buffer afterwards.
+     *
+     * @param buffer The buffer to release. Buffers of a different size are ignored.
+     */
+    void release(@NonNull byte[] buffer) {
+        if (buffer.length != bufferSize) {
+            return;
+        }
+        synchronized (this) {
+            if (buffers.size() < maxPooledBuffers) {
+                buffers.addLast(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses cached search results with deflate, optionally using a preset dictionary.
+ * <p>
+ * Search results are verbose JSON, with the same attribute names and highlighting markup repeated in every hit.
+ * Deflate typically shrinks them 3 to 5 times; a preset dictionary made of typical results (e.g. a sample response
+ * from the index) helps even more on small results, which otherwise have little redundancy to exploit.
+ * </p>
+ * <p>
+ * Compressed values are self-describing: they start with a zero byte (which a JSON document never does), followed
+ * by the uncompressed length and a zlib stream. The zlib stream records the checksum of the dictionary it was
+ * compressed with, so that values compressed with another dictionary are detected rather than corrupted.
+ * </p>
+ */
+class CacheCompressor {
+    /** First byte of compressed values. */
+    private static final byte COMPRESSED_TAG = 0;
+
+    /** Size of the header: tag and uncompressed length. */
+    private static final int HEADER_LENGTH = 5;
+
+    /** Compression level. Favors speed, since compression runs on the search thread. */
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    /** Preset dictionary. May be null. */
+    private final byte[] dictionary;
+
+    /** Adler-32 checksum of the dictionary, as recorded in zlib streams. */
+    private final int dictionaryChecksum;
+
+    /**
+     * Create a new compressor.
+     *
+     * @param dictionary Preset dictionary, or null for none. Not copied: must not be modified afterwards.
+     */
+    CacheCompressor(@Nullable byte[] dictionary) {
+        this.dictionary = dictionary;
+        if (dictionary != null) {
+            final Adler32 adler = new Adler32();
+            adler.update(dictionary);
+            dictionaryChecksum = (int) adler.getValue(); // as returned by `Inflater.getAdler()`
+        } else {
+            dictionaryChecksum = 0;
+        }
+    }
+
+    /**
+     * Test whether a value has been compressed.
+     *
+     * @param value A value, compressed or not.
+     * @return true if the value is compressed, false if it is raw JSON.
+     */
+    static boolean isCompressed(@NonNull byte[] value) {
+        return value.length >= HEADER_LENGTH && value[0] == COMPRESSED_TAG;
+    }
+
+    /**
+     * Compress a value.
+     *
+     * @param value The raw value.
+     * @return The compressed value, or the raw value itself if compression does not make it smaller.
+     */
+    @NonNull byte[] compress(@NonNull byte[] value) {
+        final Deflater deflater = new Deflater(LEVEL);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(value);
+            deflater.finish();
+            // Don't bother with values that would not shrink.
+            final byte[] buffer = new byte[value.length];
+            int length = HEADER_LENGTH;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished()) {
+                return value;
+            }
+            buffer[0] = COMPRESSED_TAG;
+            buffer[1] = (byte) (value.length >>> 24);
+            buffer[2] = (byte) (value.length >>> 16);
+            buffer[3] = (byte) (value.length >>> 8);
+            buffer[4] = (byte) value.length;
+            final byte[] compressed = new byte[length];
+            System.arraycopy(buffer, 0, compressed, 0, length);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress a value.
+     *
+     * @param value The value, compressed or not.
+     * @return The raw value, or null if it was compressed with a different dictionary or is corrupted.
+     */
+    @Nullable byte[] decompress(@NonNull byte[] value) {
+        if (!isCompressed(value)) {
+            return value;
+        }
+        final int length = ((value[1] & 0xFF) << 24) | ((value[2] & 0xFF) << 16) | ((value[3] & 0xFF) << 8) | (value[4] & 0xFF);
+        final byte[] result = new byte[length];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(value, HEADER_LENGTH, value.length - HEADER_LENGTH);
+            int offset = 0;
+            while (!inflater.finished()) {
+                // Once the announced length is reached, only the end of the stream may remain.
+                final int count = offset < length ? inflater.inflate(result, offset, length - offset) : inflater.inflate(new byte[1]);
+                if (count == 0) {
+                    if (inflater.needsDictionary() && dictionary != null && inflater.getAdler() == dictionaryChecksum) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsDictionary() || inflater.needsInput()) {
+                        return null;
+                    }
+                } else if (offset == length) {
+                    return null;
+                }
+                offset += count;
+            }
+            return offset == length ? result : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
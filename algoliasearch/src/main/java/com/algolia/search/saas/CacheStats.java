@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A snapshot of the statistics of a cache, for tuning purposes.
+ * <p>
+ * Counters accumulate from the creation of the cache, or from the last reset of its statistics.
+ * </p>
+ *
+ * @see Index#getSearchCacheStats()
+ */
+public class CacheStats {
+    /** Number of lookups that returned a valid value. */
+    public final long hitCount;
+
+    /** Number of lookups that returned a stale value (i.e. expired, but within the stale grace period). */
+    public final long staleHitCount;
+
+    /** Number of lookups that found no usable value. */
+    public final long missCount;
+
+    /** Number of entries removed because they expired. */
+    public final long expirationCount;
+
+    /** Number of valid entries evicted to make room for others. */
+    public final long evictionCount;
+
+    /** Number of values loaded (e.g. fetched from the network) to fill the cache after a miss. */
+    public final long loadCount;
+
+    /** Total time spent loading values (ns). */
+    public final long totalLoadTime;
+
+    /** Number of entries currently in the cache. */
+    public final int size;
+
+    /** Total size of the entries currently in the cache (bytes), or their number if the cache is not weighed. */
+    public final long byteCount;
+
+    CacheStats(long hitCount, long staleHitCount, long missCount, long expirationCount, long evictionCount, long loadCount, long totalLoadTime, int size, long byteCount) {
+        this.hitCount = hitCount;
+        this.staleHitCount = staleHitCount;
+        this.missCount = missCount;
+        this.expirationCount = expirationCount;
+        this.evictionCount = evictionCount;
+        this.loadCount = loadCount;
+        this.totalLoadTime = totalLoadTime;
+        this.size = size;
+        this.byteCount = byteCount;
+    }
+
+    /**
+     * Compute the ratio of lookups that returned a value, valid or stale.
+     *
+     * @return The hit rate, between 0 and 1, or 1 if there has been no lookup.
+     */
+    public double hitRate() {
+        final long lookupCount = hitCount + staleHitCount + missCount;
+        return lookupCount == 0 ? 1.0 : (double) (hitCount + staleHitCount) / lookupCount;
+    }
+
+    /**
+     * Compute the average time spent loading a value.
+     *
+     * @return The average load time (ns), or 0 if no value has been loaded.
+     */
+    public double averageLoadTime() {
+        return loadCount == 0 ? 0.0 : (double) totalLoadTime / loadCount;
+    }
+
+    @Override public @NonNull String toString() {
+        return String.format("%s{hits: %d, staleHits: %d, misses: %d, expirations: %d, evictions: %d, loads: %d, averageLoadTime: %.1f ms, size: %d, bytes: %d}", this.getClass().getSimpleName(), hitCount, staleHitCount, missCount, expirationCount, evictionCount, loadCount, averageLoadTime() / 1e6, size, byteCount);
+    }
+}
@@ -37,8 +37,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Entry point to the Android API.
@@ -56,9 +64,28 @@ public class Client extends AbstractClient {
 
     /**
      * Cache of already created indices. The values are weakly referenced to avoid memory leaks.
+     * Accesses must be synchronized on the map itself, since it is also read from background threads.
      */
     protected Map<String, WeakReference<Object>> indices = new HashMap<>();
 
+    /**
+     * Generation of each index, bumped every time a write to the index goes through this client. Search caches
+     * include it in their keys, so that results cached before a write are not served after it.
+     */
+    private final ConcurrentMap<String, AtomicLong> indexGenerations = new ConcurrentHashMap<>();
+
+    /** Whether the generation of an index is bumped again once the engine has published a write. */
+    private volatile boolean searchCacheInvalidatedOnTaskPublication;
+
+    /** Executor used to wait for write tasks in the background. Lazily created. */
+    private ExecutorService taskExecutorService;
+
+    /**
+     * Latest write task awaiting publication, by index name. An index applies its tasks in order, so waiting for the
+     * latest one is enough. Guarded by itself.
+     */
+    private final Map<String, String> pendingTasks = new HashMap<>();
+
     // ----------------------------------------------------------------------
     // Initialization
     // ----------------------------------------------------------------------
@@ -122,6 +149,33 @@ public class Client extends AbstractClient {
         return super.getApplicationID();
     }
 
+    /**
+     * Test whether search caches are invalidated again once writes have been published.
+     *
+     * @return true if writes are tracked until their publication, false otherwise (default).
+     * @see #setSearchCacheInvalidatedOnTaskPublication(boolean)
+     */
+    public boolean isSearchCacheInvalidatedOnTaskPublication() {
+        return searchCacheInvalidatedOnTaskPublication;
+    }
+
+    /**
+     * Set whether search caches are invalidated again once writes have been published.
+     * <p>
+     * Every write to an index going through this client (including through its {@link Index} instances) invalidates
+     * the search caches of that index as soon as it is sent. However, the engine applies writes asynchronously:
+     * a search made between the write and its publication may return, and cache, results predating the write.
+     * When this option is enabled, the client waits for each write task in the background and invalidates the
+     * search caches again once the task is published. This costs a few extra requests per write, but makes long
+     * cache timeouts safe.
+     * </p>
+     *
+     * @param enabled true to track writes until their publication, false otherwise.
+     */
+    public void setSearchCacheInvalidatedOnTaskPublication(boolean enabled) {
+        this.searchCacheInvalidatedOnTaskPublication = enabled;
+    }
+
     // ----------------------------------------------------------------------
     // Index management
     // ----------------------------------------------------------------------
@@ -144,16 +198,33 @@ public class Client extends AbstractClient {
      * @return A proxy to the specified index.
      */
     public @NonNull Index getIndex(@NonNull String indexName) {
-        Index index = null;
-        WeakReference<Object> existingIndex = indices.get(indexName);
-        if (existingIndex != null) {
-            index = (Index) existingIndex.get();
+        synchronized (indices) {
+            Index index = null;
+            WeakReference<Object> existingIndex = indices.get(indexName);
+            if (existingIndex != null) {
+                index = (Index) existingIndex.get();
+            }
+            if (index == null) {
+                index = new Index(this, indexName);
+                indices.put(indexName, new WeakReference<Object>(index));
+            }
+            return index;
         }
-        if (index == null) {
-            index = new Index(this, indexName);
-            indices.put(indexName, new WeakReference<Object>(index));
+    }
+
+    /**
+     * Find an existing index proxy, without creating one.
+     *
+     * @param indexName The name of the index.
+     * @return The index previously returned by {@link #getIndex(String)}, if still alive, otherwise null. Proxies
+     * that are not an {@link Index} (e.g. offline indices sharing the same map) are ignored.
+     */
+    private @Nullable Index findIndex(@NonNull String indexName) {
+        synchronized (indices) {
+            WeakReference<Object> existingIndex = indices.get(indexName);
+            final Object index = existingIndex != null ? existingIndex.get() : null;
+            return index instanceof Index ? (Index) index : null;
         }
-        return index;
     }
 
     // ----------------------------------------------------------------------
@@ -366,6 +437,133 @@ public class Client extends AbstractClient {
         return batchAsync(operations, /* requestOptions: */ null, completionHandler);
     }
 
+    // ----------------------------------------------------------------------
+    // Index generations
+    // ----------------------------------------------------------------------
+
+    /**
+     * Get the current generation of an index.
+     *
+     * @param indexName The index's name.
+     * @return The number of writes to this index seen by this client (and task publications, if tracked).
+     */
+    long getIndexGeneration(@NonNull String indexName) {
+        final AtomicLong generation = indexGenerations.get(indexName);
+        return generation != null ? generation.get() : 0;
+    }
+
+    /**
+     * Notify this client that an index has been written to.
+     *
+     * @param indexName The index's name.
+     * @param taskID    The write task's ID, if known. Used to track the write until its publication.
+     */
+    void indexWritten(@NonNull final String indexName, @Nullable final String taskID) {
+        bumpIndexGeneration(indexName);
+        if (taskID == null || !searchCacheInvalidatedOnTaskPublication) {
+            return;
+        }
+        synchronized (pendingTasks) {
+            final String pendingTaskID = pendingTasks.put(indexName, taskID);
+            if (pendingTaskID != null) {
+                // A wait is already scheduled for this index: it will pick up the latest task.
+                if (isOlderTask(taskID, pendingTaskID)) {
+                    pendingTasks.put(indexName, pendingTaskID);
+                }
+                return;
+            }
+        }
+        getTaskExecutorService().submit(new Runnable() {
+            @Override
+            public void run() {
+                final Index index = new Index(Client.this, indexName);
+                while (true) {
+                    final String latestTaskID;
+                    synchronized (pendingTasks) {
+                        latestTaskID = pendingTasks.get(indexName);
+                    }
+                    try {
+                        // Bumps the generation on publication.
+                        index.waitTask(latestTaskID);
+                    } catch (AlgoliaException e) {
+                        // The write's outcome is unknown: invalidate anyway.
+                        bumpIndexGeneration(indexName);
+                    }
+                    synchronized (pendingTasks) {
+                        if (latestTaskID.equals(pendingTasks.get(indexName))) {
+                            pendingTasks.remove(indexName);
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Test whether a task predates another one. Task IDs are increasing numbers; if they cannot be compared, the
+     * second one is assumed to be older.
+     */
+    private static boolean isOlderTask(@NonNull String taskID, @NonNull String otherTaskID) {
+        try {
+            return Long.parseLong(taskID) < Long.parseLong(otherTaskID);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Notify this client that indices have been written to by a multiple-index batch.
+     *
+     * @param actions The batch operations.
+     * @param task    The batch's response, if any, mapping index names to task IDs.
+     */
+    private void indicesWritten(@NonNull JSONArray actions, @Nullable JSONObject task) {
+        final JSONObject taskIDs = task != null ? task.optJSONObject("taskID") : null;
+        final Set<String> indexNames = new HashSet<>();
+        for (int i = 0; i < actions.length(); ++i) {
+            final JSONObject action = actions.optJSONObject(i);
+            final String indexName = action != null ? action.optString("indexName", null) : null;
+            if (indexName != null && indexNames.add(indexName)) {
+                indexWritten(indexName, taskIDs != null ? taskIDs.optString(indexName, null) : null);
+            }
+        }
+    }
+
+    private void bumpIndexGeneration(@NonNull String indexName) {
+        AtomicLong generation = indexGenerations.get(indexName);
+        if (generation == null) {
+            final AtomicLong newGeneration = new AtomicLong();
+            generation = indexGenerations.putIfAbsent(indexName, newGeneration);
+            if (generation == null) {
+                generation = newGeneration;
+            }
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Get the executor used for low-priority background work, such as waiting for tasks or warming caches. Being
+     * serial, it never competes with searches for more than one thread.
+     */
+    synchronized ExecutorService getTaskExecutorService() {
+        if (taskExecutorService == null) {
+            taskExecutorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "AlgoliaTasks");
+                    thread.setDaemon(true); // must not keep the process alive
+                    return thread;
+                }
+            });
+        }
+        return taskExecutorService;
+    }
+
+    static @Nullable String taskIDOf(@Nullable JSONObject task) {
+        return task != null ? task.optString("taskID", null) : null;
+    }
+
     // ----------------------------------------------------------------------
     // Internal operations
     // ----------------------------------------------------------------------
@@ -390,10 +588,14 @@ public class Client extends AbstractClient {
      * @return an object containing a "deletedAt" attribute
      */
     protected JSONObject deleteIndex(String indexName, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
-            return deleteRequest("/1/indexes/" + URLEncoder.encode(indexName, "UTF-8"), /* urlParameters: */ null, requestOptions);
+            task = deleteRequest("/1/indexes/" + URLEncoder.encode(indexName, "UTF-8"), /* urlParameters: */ null, requestOptions);
+            return task;
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
+        } finally {
+            indexWritten(indexName, taskIDOf(task));
         }
     }
 
@@ -405,15 +607,20 @@ public class Client extends AbstractClient {
      * @param requestOptions Request-specific options.
      */
     protected JSONObject moveIndex(String srcIndexName, String dstIndexName, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
             JSONObject content = new JSONObject();
             content.put("operation", "move");
             content.put("destination", dstIndexName);
-            return postRequest("/1/indexes/" + URLEncoder.encode(srcIndexName, "UTF-8") + "/operation", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            task = postRequest("/1/indexes/" + URLEncoder.encode(srcIndexName, "UTF-8") + "/operation", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            return task;
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
+        } finally {
+            indexWritten(srcIndexName, /* taskID: */ null);
+            indexWritten(dstIndexName, taskIDOf(task));
         }
     }
 
@@ -425,19 +632,87 @@ public class Client extends AbstractClient {
      * @param requestOptions Request-specific options.
      */
     protected JSONObject copyIndex(String srcIndexName, String dstIndexName, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
             JSONObject content = new JSONObject();
             content.put("operation", "copy");
             content.put("destination", dstIndexName);
-            return postRequest("/1/indexes/" + URLEncoder.encode(srcIndexName, "UTF-8") + "/operation", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            task = postRequest("/1/indexes/" + URLEncoder.encode(srcIndexName, "UTF-8") + "/operation", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            return task;
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
+        } finally {
+            indexWritten(dstIndexName, taskIDOf(task));
         }
     }
 
+    /**
+     * Run multiple queries, serving them from the search caches of their indices when possible.
+     * <p>
+     * Each query is looked up on its own in the search cache of its index (if enabled). Only the missing queries are
+     * sent to the API, and their results are cached. Since the <code>stopIfEnoughMatches</code> strategy makes each
+     * result depend on the previous ones, and request options may alter results, such calls bypass the caches.
+     * </p>
+     */
     protected JSONObject multipleQueries(List<IndexQuery> queries, String strategy, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        if (requestOptions != null || (strategy != null && !strategy.equals(MultipleQueriesStrategy.NONE.toString()))) {
+            return sendMultipleQueries(queries, strategy, requestOptions);
+        }
+        try {
+            final int queryCount = queries.size();
+            final Index[] targetIndices = new Index[queryCount];
+            final QueryFingerprint[] cacheKeys = new QueryFingerprint[queryCount];
+            final JSONObject[] results = new JSONObject[queryCount];
+            final List<IndexQuery> missingQueries = new ArrayList<>(queryCount);
+            for (int i = 0; i < queryCount; ++i) {
+                final IndexQuery query = queries.get(i);
+                targetIndices[i] = query.getIndex() != null ? query.getIndex() : findIndex(query.getIndexName());
+                cacheKeys[i] = targetIndices[i] != null ? targetIndices[i].searchCacheKey(query.getQuery()) : null;
+                if (cacheKeys[i] != null) {
+                    results[i] = targetIndices[i].getCachedSearchResult(cacheKeys[i]);
+                }
+                if (results[i] == null) {
+                    missingQueries.add(query);
+                }
+            }
+            if (missingQueries.size() == queryCount) {
+                final JSONObject response = sendMultipleQueries(queries, strategy, null);
+                final JSONArray onlineResults = response.getJSONArray("results");
+                for (int i = 0; i < queryCount; ++i) {
+                    if (cacheKeys[i] != null) {
+                        targetIndices[i].putCachedSearchResult(cacheKeys[i], onlineResults.getJSONObject(i));
+                    }
+                }
+                return response;
+            }
+
+            // Send only the missing queries, and merge their results with the cached ones, in the original order.
+            JSONArray onlineResults = null;
+            if (!missingQueries.isEmpty()) {
+                onlineResults = sendMultipleQueries(missingQueries, strategy, null).getJSONArray("results");
+            }
+            final JSONArray mergedResults = new JSONArray();
+            for (int i = 0, j = 0; i < queryCount; ++i) {
+                if (results[i] == null) {
+                    results[i] = onlineResults.getJSONObject(j++);
+                    if (cacheKeys[i] != null) {
+                        targetIndices[i].putCachedSearchResult(cacheKeys[i], results[i]);
+                    }
+                } else if (!results[i].has("index")) {
+                    // Results cached by a plain search don't mention their index.
+                    results[i].put("index", queries.get(i).getIndexName());
+                }
+                mergedResults.put(results[i]);
+            }
+            return new JSONObject().put("results", mergedResults);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    private JSONObject sendMultipleQueries(List<IndexQuery> queries, String strategy, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         try {
             JSONArray requests = new JSONArray();
             for (IndexQuery indexQuery : queries) {
@@ -464,12 +739,16 @@ public class Client extends AbstractClient {
      * @throws AlgoliaException if the response is not valid json
      */
     protected JSONObject batch(JSONArray actions, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
             JSONObject content = new JSONObject();
             content.put("requests", actions);
-            return postRequest("/1/indexes/*/batch", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            task = postRequest("/1/indexes/*/batch", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            return task;
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
+        } finally {
+            indicesWritten(actions, task);
         }
     }
 }
@@ -0,0 +1,697 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache mapping strings to byte arrays, with per-entry expiration.
+ * <p>
+ * Entries are appended to segment files in a dedicated directory; an index of the live entries is kept in memory and
+ * rebuilt from the segments when the cache is first used. Expiration dates are absolute (wall clock), so that entries
+ * keep their time to live across process restarts. Replaced and removed entries are not rewritten: they are
+ * reclaimed when the oldest segment is deleted, which happens whenever the files exceed the cache's size budget.
+ * Records are checksummed, so that a write torn by a crash is detected and discarded.
+ * </p>
+ * <p>
+ * A disk cache is thread-safe. Writes are performed in the background, on a thread shared by all disk caches: until
+ * then, written entries are kept in memory, so that they can be looked up immediately. Reads do not wait for writes.
+ * I/O errors are logged and otherwise treated as cache misses.
+ * </p>
+ */
+class DiskCache {
+    // ----------------------------------------------------------------------
+    // Types
+    // ----------------------------------------------------------------------
+
+    /** A cached value and its expiration date. */
+    static class Entry {
+        final @NonNull byte[] value;
+
+        /** Expiration date (ms since the epoch). */
+        final long expirationTime;
+
+        Entry(@NonNull byte[] value, long expirationTime) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    /** Location of a live entry's value on disk. */
+    private static class Location {
+        final int segmentId;
+        final long offset;
+        final int length;
+        final long expirationTime;
+
+        Location(int segmentId, long offset, int length, long expirationTime) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    /** An open segment file. */
+    private static class Segment {
+        /** Handle used by the writer. */
+        final @NonNull RandomAccessFile file;
+
+        /** Handle used by readers, so that they don't wait for the writer. Reads are synchronized on it. */
+        final @NonNull RandomAccessFile reader;
+
+        /** Length of the file (bytes). Only modified by the writer. */
+        long length;
+
+        Segment(@NonNull File path, long length) throws IOException {
+            this.file = new RandomAccessFile(path, "rw");
+            try {
+                this.reader = new RandomAccessFile(path, "r");
+            } catch (IOException e) {
+                closeQuietly(file);
+                throw e;
+            }
+            this.length = length;
+        }
+
+        void close() {
+            closeQuietly(file);
+            closeQuietly(reader);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Constants
+    // ----------------------------------------------------------------------
+
+    private static final String TAG = "AlgoliaSearch";
+
+    /** Magic number at the start of every segment file, identifying the format version. */
+    private static final int MAGIC = 0x414c4331; // "ALC1"
+
+    /** Size of the segment header (bytes). */
+    private static final int HEADER_SIZE = 4;
+
+    /** The size budget is split into this many segments. */
+    private static final int SEGMENT_COUNT = 4;
+
+    /** Maximum length of a key (bytes). */
+    private static final int MAX_KEY_LENGTH = 64 * 1024;
+
+    /** Value length of a record marking the removal of a key. */
+    private static final int TOMBSTONE = -1;
+
+    /** Pending write marking the removal of a key. */
+    private static final Entry REMOVED = new Entry(new byte[0], 0);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    // ----------------------------------------------------------------------
+    // Fields
+    // ----------------------------------------------------------------------
+
+    /** Thread performing the writes of all disk caches. Lazily created. */
+    private static ExecutorService writer;
+
+    private final @NonNull File directory;
+    private final long maxBytes;
+    private final long maxSegmentBytes;
+
+    /**
+     * Held while writing to or deleting the files. Must be acquired before the cache's own lock, which only guards the
+     * in-memory state and is never held during writes.
+     */
+    final Object writeLock = new Object();
+
+    /** Whether the index has been loaded from disk. */
+    private boolean loaded;
+
+    /** Live entries, by key. */
+    private final Map<String, Location> index = new HashMap<>();
+
+    /** Open segment files, by ID, oldest first. The last one is being appended to. */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+    /** Total size of the segment files (bytes). */
+    private long totalBytes;
+
+    /** Entries not written to disk yet, by key, in write order. Removals are recorded as {@link #REMOVED}. */
+    private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<>();
+
+    /** Whether a write of the pending entries has been scheduled. */
+    private boolean writeScheduled;
+
+    /** Whether the cache files are to be deleted by the writer. */
+    private boolean clearRequested;
+
+    /** Number of times the cache has been cleared. Lets the writer detect entries cleared while being written. */
+    private long clearCount;
+
+    // ----------------------------------------------------------------------
+    // Initialization
+    // ----------------------------------------------------------------------
+
+    /**
+     * Create a new disk cache. The directory is only accessed when the cache is first used.
+     *
+     * @param directory Directory dedicated to this cache. Created if needed.
+     * @param maxBytes  Maximum total size of the cache files (bytes). Must be positive.
+     */
+    DiskCache(@NonNull File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxSegmentBytes = Math.max(maxBytes / SEGMENT_COUNT, HEADER_SIZE + 1);
+    }
+
+    // ----------------------------------------------------------------------
+    // Operations
+    // ----------------------------------------------------------------------
+
+    /**
+     * Look up an entry.
+     *
+     * @param key The entry's key.
+     * @return The entry, or null if absent, expired or unreadable.
+     */
+    @Nullable Entry get(@NonNull String key) {
+        final Location location;
+        final RandomAccessFile reader;
+        synchronized (this) {
+            final Entry entry = pending.get(key);
+            if (entry != null) {
+                return entry.expirationTime > System.currentTimeMillis() ? entry : null;
+            }
+            if (!ensureLoaded()) {
+                return null;
+            }
+            location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            if (location.expirationTime <= System.currentTimeMillis()) {
+                index.remove(key);
+                return null;
+            }
+            reader = segments.get(location.segmentId).reader;
+        }
+        // Reads use their own file handle, so they happen outside of the lock.
+        try {
+            final byte[] value = new byte[location.length];
+            synchronized (reader) {
+                reader.seek(location.offset);
+                reader.readFully(value);
+            }
+            return new Entry(value, location.expirationTime);
+        } catch (IOException e) {
+            synchronized (this) {
+                // If the location is gone, its segment has just been dropped: a plain miss.
+                if (index.get(key) == location) {
+                    Log.w(TAG, "Could not read from disk cache", e);
+                    index.remove(key);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store an entry, replacing any entry with the same key. The entry is written in the background.
+     *
+     * @param key            The entry's key.
+     * @param value          The value to store.
+     * @param expirationTime The entry's expiration date (ms since the epoch).
+     */
+    void put(@NonNull String key, @NonNull byte[] value, long expirationTime) {
+        final int keyLength = toUTF8(key).length;
+        if (keyLength > MAX_KEY_LENGTH || HEADER_SIZE + recordLength(keyLength, value.length) > maxSegmentBytes) {
+            // Too big to be cached: make sure no stale value survives.
+            remove(key);
+            return;
+        }
+        schedule(key, new Entry(value, expirationTime));
+    }
+
+    /**
+     * Remove an entry. The removal is written in the background.
+     *
+     * @param key The entry's key.
+     */
+    void remove(@NonNull String key) {
+        schedule(key, REMOVED);
+    }
+
+    /**
+     * Write the pending entries to disk, in the calling thread.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            while (true) {
+                final String key;
+                final Entry entry;
+                final long generation;
+                List<Segment> cleared = null;
+                synchronized (this) {
+                    if (clearRequested) {
+                        clearRequested = false;
+                        cleared = new ArrayList<>(segments.values());
+                        segments.clear();
+                        totalBytes = 0;
+                        index.clear();
+                    }
+                }
+                if (cleared != null) {
+                    for (Segment segment : cleared) {
+                        segment.close();
+                    }
+                    deleteFiles();
+                    continue;
+                }
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        writeScheduled = false;
+                        return;
+                    }
+                    if (!ensureLoaded()) {
+                        pending.clear();
+                        writeScheduled = false;
+                        return;
+                    }
+                    final Map.Entry<String, Entry> next = pending.entrySet().iterator().next();
+                    key = next.getKey();
+                    entry = next.getValue();
+                    generation = clearCount;
+                }
+                try {
+                    write(key, entry, generation);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write to disk cache", e);
+                    synchronized (this) {
+                        index.remove(key);
+                    }
+                }
+                synchronized (this) {
+                    // Keep the entry if it has been replaced in the meantime.
+                    if (pending.get(key) == entry) {
+                        pending.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all entries, and delete the cache files.
+     */
+    void clear() {
+        synchronized (writeLock) {
+            synchronized (this) {
+                pending.clear();
+                clearRequested = false;
+                clearCount++;
+                closeFiles();
+            }
+            deleteFiles();
+        }
+    }
+
+    /**
+     * Remove all entries. They are forgotten immediately, but the cache files are deleted in the background.
+     */
+    synchronized void clearAsync() {
+        pending.clear();
+        index.clear();
+        clearCount++;
+        // The files are gone as far as lookups are concerned: don't load them.
+        loaded = true;
+        clearRequested = true;
+        scheduleWrite();
+    }
+
+    /**
+     * Write the pending entries, and close the cache files. The cache will reload them if used again.
+     */
+    void close() {
+        synchronized (writeLock) {
+            flush();
+            synchronized (this) {
+                closeFiles();
+            }
+        }
+    }
+
+    /**
+     * @return the number of live entries (possibly including expired ones not looked up yet), once pending entries
+     * have been written.
+     */
+    int size() {
+        flush();
+        synchronized (this) {
+            ensureLoaded();
+            return index.size();
+        }
+    }
+
+    /**
+     * @return the total size of the cache files (bytes), once pending entries have been written.
+     */
+    long byteSize() {
+        flush();
+        synchronized (this) {
+            ensureLoaded();
+            return totalBytes;
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Segments
+    // ----------------------------------------------------------------------
+
+    private synchronized void schedule(@NonNull String key, @NonNull Entry entry) {
+        // Re-insert, so that the entry is written after any other pending one.
+        pending.remove(key);
+        pending.put(key, entry);
+        scheduleWrite();
+    }
+
+    private synchronized void scheduleWrite() {
+        if (!writeScheduled) {
+            writeScheduled = true;
+            getWriter().execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private static synchronized @NonNull ExecutorService getWriter() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "AlgoliaDiskCacheWriter");
+                    thread.setDaemon(true); // must not keep the process alive
+                    return thread;
+                }
+            });
+        }
+        return writer;
+    }
+
+    private void deleteFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (SEGMENT_NAME.matcher(file.getName()).matches() && !file.delete()) {
+                    Log.w(TAG, "Could not delete disk cache file " + file);
+                }
+            }
+        }
+    }
+
+    private void closeFiles() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        index.clear();
+        totalBytes = 0;
+        loaded = false;
+    }
+
+    private boolean ensureLoaded() {
+        if (loaded) {
+            return true;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create disk cache directory " + directory);
+            return false;
+        }
+        TreeMap<Integer, File> files = new TreeMap<>();
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File file : children) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    files.put(Integer.parseInt(matcher.group(1)), file);
+                }
+            }
+        }
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, File> file : files.entrySet()) {
+            try {
+                load(file.getKey(), file.getValue(), now);
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable disk cache file " + file.getValue(), e);
+                dropSegment(file.getKey());
+                if (!file.getValue().delete()) {
+                    Log.w(TAG, "Could not delete disk cache file " + file.getValue());
+                }
+            }
+        }
+        loaded = true;
+        return true;
+    }
+
+    /**
+     * Load a segment file into the index. A truncated or corrupted tail is cut off.
+     */
+    private void load(int segmentId, @NonNull File file, long now) throws IOException {
+        long validLength = HEADER_SIZE;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Unknown format");
+            }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                // Read a whole record before trusting any of it.
+                final int keyLength;
+                try {
+                    keyLength = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    if (keyLength < 0 || keyLength > MAX_KEY_LENGTH) {
+                        break;
+                    }
+                    final byte[] key = new byte[keyLength];
+                    input.readFully(key);
+                    final long expirationTime = input.readLong();
+                    final int valueLength = input.readInt();
+                    if (valueLength < TOMBSTONE || valueLength > maxSegmentBytes) {
+                        break;
+                    }
+                    final long valueOffset = validLength + 4 + keyLength + 8 + 4;
+                    crc.reset();
+                    crc.update(key);
+                    if (valueLength > 0) {
+                        final byte[] value = new byte[valueLength];
+                        input.readFully(value);
+                        crc.update(value);
+                    }
+                    if (input.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    final String keyString = new String(key, "UTF-8");
+                    if (valueLength == TOMBSTONE || expirationTime <= now) {
+                        index.remove(keyString);
+                    } else {
+                        index.put(keyString, new Location(segmentId, valueOffset, valueLength, expirationTime));
+                    }
+                    validLength = valueOffset + Math.max(valueLength, 0) + 4;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        } finally {
+            closeQuietly(input);
+        }
+        final Segment segment = new Segment(file, validLength);
+        try {
+            if (segment.file.length() != validLength) {
+                segment.file.setLength(validLength);
+            }
+        } catch (IOException e) {
+            segment.close();
+            throw e;
+        }
+        segments.put(segmentId, segment);
+        totalBytes += validLength;
+    }
+
+    /**
+     * Append a record for a pending entry. Called with the write lock held, but not the cache's own lock.
+     *
+     * @param generation The cache's clear count when the entry was picked. If the cache has been cleared since, the
+     *                   entry is not indexed.
+     */
+    private void write(@NonNull String key, @NonNull Entry entry, long generation) throws IOException {
+        final byte[] value = entry == REMOVED ? null : entry.value;
+        if (value == null) {
+            synchronized (this) {
+                if (!index.containsKey(key)) {
+                    return;
+                }
+            }
+        }
+        final byte[] keyBytes = toUTF8(key);
+        final int valueLength = value != null ? value.length : TOMBSTONE;
+        final int recordLength = recordLength(keyBytes.length, valueLength);
+
+        final CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        if (value != null) {
+            crc.update(value);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(keyBytes.length).put(keyBytes).putLong(entry.expirationTime).putInt(valueLength);
+        if (value != null) {
+            record.put(value);
+        }
+        record.putInt((int) crc.getValue());
+
+        int segmentId;
+        Segment segment;
+        synchronized (this) {
+            segmentId = segments.isEmpty() ? -1 : segments.lastKey();
+            segment = segmentId < 0 ? null : segments.get(segmentId);
+        }
+        if (segment == null || segment.length + recordLength > maxSegmentBytes) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create disk cache directory " + directory);
+            }
+            segmentId++;
+            segment = new Segment(new File(directory, "segment-" + segmentId + ".log"), HEADER_SIZE);
+            try {
+                segment.file.setLength(0);
+                segment.file.writeInt(MAGIC);
+            } catch (IOException e) {
+                segment.close();
+                throw e;
+            }
+            synchronized (this) {
+                segments.put(segmentId, segment);
+                totalBytes += HEADER_SIZE;
+            }
+        }
+        final long offset = segment.length;
+        segment.file.seek(offset);
+        segment.file.write(record.array());
+
+        // Enforce the size budget by deleting the oldest segments.
+        final Map<Integer, Segment> dropped = new HashMap<>();
+        synchronized (this) {
+            segment.length += recordLength;
+            totalBytes += recordLength;
+            if (generation != clearCount) {
+                // Cleared while being written: the record will be deleted with the files.
+            } else if (value != null) {
+                index.put(key, new Location(segmentId, offset + 4 + keyBytes.length + 8 + 4, value.length, entry.expirationTime));
+            } else {
+                index.remove(key);
+            }
+            while (totalBytes > maxBytes && segments.size() > 1) {
+                final int oldestId = segments.firstKey();
+                dropped.put(oldestId, dropSegment(oldestId));
+            }
+        }
+        for (Map.Entry<Integer, Segment> oldest : dropped.entrySet()) {
+            oldest.getValue().close();
+            if (!new File(directory, "segment-" + oldest.getKey() + ".log").delete()) {
+                Log.w(TAG, "Could not delete disk cache segment " + oldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Forget a segment and the entries it contains. The caller is responsible for closing its file.
+     *
+     * @return The segment, or null if it was not open.
+     */
+    private @Nullable Segment dropSegment(int segmentId) {
+        final Segment segment = segments.remove(segmentId);
+        if (segment != null) {
+            totalBytes -= segment.length;
+        }
+        Iterator<Location> iterator = index.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().segmentId == segmentId) {
+                iterator.remove();
+            }
+        }
+        return segment;
+    }
+
+    private static int recordLength(int keyLength, int valueLength) {
+        return 4 + keyLength + 8 + 4 + Math.max(valueLength, 0) + 4;
+    }
+
+    private static byte[] toUTF8(@NonNull String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // should never happen: UTF-8 is always supported
+        }
+    }
+
+    private static void closeQuietly(@NonNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
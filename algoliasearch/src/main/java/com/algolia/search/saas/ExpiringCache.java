@@ -1,12 +1,26 @@
 package com.algolia.search.saas;
 
-import android.support.v4.util.LruCache;
-import android.util.Pair;
-
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A cache that holds strong references to a limited number of values for a limited time.
+ * <p>
+ * The cache is split into independently locked segments, so that concurrent accesses to different keys seldom
+ * contend. Each segment evicts its least recently used entries, which makes eviction approximately LRU for the cache
+ * as a whole. Expired entries are removed lazily, when they are looked up or evicted.
+ * </p>
+ * <p>
+ * In addition to the number of entries, the cache can be bounded by a total weight (typically a size in bytes), as
+ * computed by a {@link Weigher}. Entries weighing more than the whole budget are not cached.
+ * </p>
  */
 class ExpiringCache<K, V> {
     public static final TimeUnit expirationTimeUnit = TimeUnit.SECONDS;
@@ -14,11 +28,136 @@ class ExpiringCache<K, V> {
     public static final int defaultMaxSize = 64;
     public final int expirationTimeout; // Time after which a cache entry is invalidated
 
-    private final LruCache<K, Pair<V, Long>> lruCache;
+    /** Maximum number of segments. */
+    private static final int MAX_SEGMENT_COUNT = 16;
+
+    /** Minimum number of entries per segment, below which segments would make eviction too coarse. */
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    /**
+     * Computes the weight of cache entries.
+     */
+    interface Weigher<K, V> {
+        /**
+         * Compute the weight of an entry. Must be non-negative and stable over time.
+         */
+        int weigh(K key, V value);
+    }
+
+    /**
+     * Notified when entries are evicted to make room for others.
+     * Expired, replaced or explicitly removed entries are not reported.
+     */
+    interface EvictionListener<K, V> {
+        /**
+         * Called after an entry has been evicted, outside of any lock, on the thread that caused the eviction.
+         */
+        void onEviction(K key, V value, int weight);
+    }
+
+    /** Result of a lookup: a value, and whether it is stale. */
+    static class Lookup<V> {
+        final V value;
+        final boolean stale;
+
+        Lookup(V value, boolean stale) {
+            this.value = value;
+            this.stale = stale;
+        }
+    }
+
+    /** A value, its weight, its expiration date and its last access. */
+    private static class Entry<V> {
+        final V value;
+        final int weight;
+        final long expirationTime;
+
+        /** Tick of the last access, ordering entries by recency across segments. Guarded by the segment's lock. */
+        long accessTime;
+
+        Entry(V value, int weight, long expirationTime, long accessTime) {
+            this.value = value;
+            this.weight = weight;
+            this.expirationTime = expirationTime;
+            this.accessTime = accessTime;
+        }
+    }
+
+    /** A segment: an LRU map guarded by its own monitor. */
+    private static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+        private static final long serialVersionUID = 1L;
+
+        final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, /* accessOrder: */ true);
+            this.maxSize = maxSize;
+        }
+    }
+
+    private final Segment<K, V>[] segments;
+    private final long expirationTimeoutMillis;
+
+    /** Maximum total weight. Zero or negative if unbounded. */
+    private final long maxWeight;
+    private final Weigher<K, V> weigher;
+    private final EvictionListener<K, V> evictionListener;
+
+    /** Duration during which expired entries are kept and may be returned as stale (ms). */
+    private volatile long staleGracePeriodMillis;
+
+    /** Total weight of the entries currently in the cache. */
+    private final AtomicLong totalWeight = new AtomicLong();
+
+    /** Number of entries currently in the cache, so that it can be read without locking the segments. */
+    private final AtomicInteger entryCount = new AtomicInteger();
+
+    // Statistics.
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong totalLoadTime = new AtomicLong();
+
+    /** Source of access ticks. */
+    private final AtomicLong clock = new AtomicLong();
 
     public ExpiringCache(final int timeout, final int maxSize) {
-        lruCache = new LruCache<>(maxSize);
+        this(timeout, maxSize, 0, null, null);
+    }
+
+    /**
+     * Create a cache bounded by weight as well as by number of entries.
+     *
+     * @param timeout          Time after which an entry expires (in {@link #expirationTimeUnit}).
+     * @param maxSize          Maximum number of entries.
+     * @param maxWeight        Maximum total weight, or zero for no weight bound.
+     * @param weigher          Computes entry weights. If null, all entries weigh 1.
+     * @param evictionListener Notified of evictions. May be null.
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiringCache(final int timeout, final int maxSize, final long maxWeight, Weigher<K, V> weigher, EvictionListener<K, V> evictionListener) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
         expirationTimeout = timeout;
+        expirationTimeoutMillis = TimeUnit.MILLISECONDS.convert(timeout, expirationTimeUnit);
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.evictionListener = evictionListener;
+
+        // Use a power of two, so that picking a segment is a mere mask.
+        int segmentCount = 1;
+        while (segmentCount * 2 <= MAX_SEGMENT_COUNT && segmentCount * 2 * MIN_SEGMENT_SIZE <= maxSize) {
+            segmentCount *= 2;
+        }
+        segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for (int i = 0; i < segmentCount; ++i) {
+            // Spread the remainder, so that the segments add up to exactly `maxSize`.
+            segments[i] = new Segment<>(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+        }
     }
 
     public ExpiringCache() {
@@ -32,16 +171,40 @@ class ExpiringCache<K, V> {
      * @return the previous value for this key, if any
      */
     public V put(K key, V value) {
-        V previous = null;
+        return put(key, value, System.currentTimeMillis() + expirationTimeoutMillis);
+    }
 
-        synchronized (this) {
-            long timeout = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(expirationTimeout, expirationTimeUnit);
-            final Pair<V, Long> previousPair = lruCache.put(key, new Pair<>(value, timeout));
-            if (previousPair != null) {
-                previous = previousPair.first;
+    /**
+     * Puts a value in the cache, with an explicit expiration time
+     *
+     * @param expirationTime date after which the entry is invalid (ms since the epoch)
+     * @return the previous value for this key, if any
+     */
+    public V put(K key, V value, long expirationTime) {
+        final int weight = weigher != null ? weigher.weigh(key, value) : 1;
+        final Segment<K, V> segment = segmentFor(key);
+        final List<Map.Entry<K, Entry<V>>> evicted = new ArrayList<>(0);
+        final Entry<V> previous;
+        synchronized (segment) {
+            if (maxWeight > 0 && weight > maxWeight) {
+                // Too big to ever fit: drop any stale value rather than caching this one.
+                previous = segment.remove(key);
+            } else {
+                previous = segment.put(key, new Entry<>(value, weight, expirationTime, clock.incrementAndGet()));
+                totalWeight.addAndGet(weight);
+                entryCount.incrementAndGet();
+                evictEldest(segment, evicted);
             }
+            if (previous != null) {
+                totalWeight.addAndGet(-previous.weight);
+                entryCount.decrementAndGet();
+            }
+        }
+        if (maxWeight > 0 && totalWeight.get() > maxWeight) {
+            evictForWeight(key, evicted);
         }
-        return previous;
+        notifyEvictions(evicted);
+        return previous != null ? previous.value : null;
     }
 
     /**
@@ -49,29 +212,242 @@ class ExpiringCache<K, V> {
      *
      * @return the cached value if it is still valid, else null.
      */
-    synchronized public V get(K key) {
-        final Pair<V, Long> cachePair = lruCache.get(key);
-        if (cachePair != null && cachePair.first != null) {
-            if (cachePair.second > System.currentTimeMillis()) {
-                return cachePair.first;
-            } else {
-                lruCache.remove(key);
+    public V get(K key) {
+        final Lookup<V> lookup = lookup(key);
+        return lookup != null && !lookup.stale ? lookup.value : null;
+    }
+
+    /**
+     * Look up a value in the cache, including stale values (i.e. expired for less than the stale grace period).
+     *
+     * @return the cached value and whether it is stale, or null if there is no valid or stale value.
+     */
+    public Lookup<V> lookup(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry<V> entry = segment.get(key);
+            if (entry != null && entry.value != null) {
+                final long now = System.currentTimeMillis();
+                entry.accessTime = clock.incrementAndGet();
+                if (entry.expirationTime > now) {
+                    hitCount.incrementAndGet();
+                    return new Lookup<>(entry.value, false);
+                } else if (entry.expirationTime + staleGracePeriodMillis > now) {
+                    staleHitCount.incrementAndGet();
+                    return new Lookup<>(entry.value, true);
+                } else {
+                    segment.remove(key);
+                    totalWeight.addAndGet(-entry.weight);
+                    entryCount.decrementAndGet();
+                    expirationCount.incrementAndGet();
+                }
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Test whether the cache holds a valid value for a key. Unlike {@link #get}, this does not count as a lookup in
+     * the statistics.
+     *
+     * @return true if a valid (i.e. not expired) value is cached.
+     */
+    public boolean containsKey(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry<V> entry = segment.get(key);
+            return entry != null && entry.value != null && entry.expirationTime > System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Remove a value from the cache
+     *
+     * @return the removed value, if any (even if expired)
+     */
+    public V remove(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry<V> entry = segment.remove(key);
+            if (entry != null) {
+                totalWeight.addAndGet(-entry.weight);
+                entryCount.decrementAndGet();
+                return entry.value;
             }
         }
         return null;
     }
 
+    /**
+     * @return the duration during which expired entries are kept and returned as stale by {@link #lookup} (ms).
+     */
+    public long getStaleGracePeriodMillis() {
+        return staleGracePeriodMillis;
+    }
+
+    /**
+     * Set the duration during which expired entries are kept and returned as stale by {@link #lookup}.
+     *
+     * @param staleGracePeriodMillis the grace period (ms), or zero to drop entries as soon as they expire.
+     */
+    public void setStaleGracePeriodMillis(long staleGracePeriodMillis) {
+        this.staleGracePeriodMillis = staleGracePeriodMillis;
+    }
+
     /**
      * @return the number of entries in the cache.
      */
     public int size() {
-        return lruCache.size();
+        return entryCount.get();
+    }
+
+    /**
+     * @return the time after which an entry put in the cache expires (ms).
+     */
+    public long getExpirationTimeoutMillis() {
+        return expirationTimeoutMillis;
+    }
+
+    /**
+     * @return the total weight of the entries in the cache.
+     */
+    public long weight() {
+        return totalWeight.get();
+    }
+
+    /**
+     * Record the time spent loading a value after a miss, for statistics.
+     *
+     * @param loadTime The load time (ns).
+     */
+    public void recordLoad(long loadTime) {
+        loadCount.incrementAndGet();
+        totalLoadTime.addAndGet(loadTime);
+    }
+
+    /**
+     * @return a snapshot of the cache's statistics. Does not lock the cache.
+     */
+    public CacheStats stats() {
+        return new CacheStats(hitCount.get(), staleHitCount.get(), missCount.get(), expirationCount.get(), evictionCount.get(), loadCount.get(), totalLoadTime.get(), size(), weight());
+    }
+
+    /**
+     * Reset the cache's statistics. The entries are kept.
+     */
+    public void resetStats() {
+        hitCount.set(0);
+        staleHitCount.set(0);
+        missCount.set(0);
+        expirationCount.set(0);
+        evictionCount.set(0);
+        loadCount.set(0);
+        totalLoadTime.set(0);
     }
 
     /**
      * Reset the cache, keeping the current settings.
      */
     public void reset() {
-        lruCache.evictAll();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                long weight = 0;
+                for (Entry<V> entry : segment.values()) {
+                    weight += entry.weight;
+                }
+                entryCount.addAndGet(-segment.size());
+                segment.clear();
+                totalWeight.addAndGet(-weight);
+            }
+        }
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Evict the least recently used entries of a segment, while it exceeds its size.
+     * The caller must hold the segment's lock.
+     */
+    private void evictEldest(Segment<K, V> segment, List<Map.Entry<K, Entry<V>>> evicted) {
+        Iterator<Map.Entry<K, Entry<V>>> iterator = segment.entrySet().iterator();
+        while (iterator.hasNext() && segment.size() > segment.maxSize) {
+            Map.Entry<K, Entry<V>> eldest = iterator.next();
+            iterator.remove();
+            evicted(eldest, evicted);
+        }
+    }
+
+    /**
+     * Evict the least recently used entries of the whole cache until its total weight fits in the budget.
+     *
+     * @param insertedKey The key just inserted, which is never evicted.
+     */
+    private void evictForWeight(K insertedKey, List<Map.Entry<K, Entry<V>>> evicted) {
+        while (totalWeight.get() > maxWeight) {
+            // Each segment is ordered by access: the eldest entries of all segments are the candidates.
+            Segment<K, V> eldestSegment = null;
+            long eldestAccessTime = Long.MAX_VALUE;
+            for (Segment<K, V> segment : segments) {
+                synchronized (segment) {
+                    final Map.Entry<K, Entry<V>> eldest = eldestEntry(segment, insertedKey);
+                    if (eldest != null && eldest.getValue().accessTime < eldestAccessTime) {
+                        eldestSegment = segment;
+                        eldestAccessTime = eldest.getValue().accessTime;
+                    }
+                }
+            }
+            if (eldestSegment == null) {
+                return; // only the inserted entry is left
+            }
+            synchronized (eldestSegment) {
+                // The segment may have changed in the meantime; its eldest entry is still a good candidate.
+                final Map.Entry<K, Entry<V>> eldest = eldestEntry(eldestSegment, insertedKey);
+                if (eldest != null) {
+                    eldestSegment.remove(eldest.getKey());
+                    evicted(eldest, evicted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the least recently used entry of a segment, other than the specified key.
+     * The caller must hold the segment's lock.
+     */
+    private Map.Entry<K, Entry<V>> eldestEntry(Segment<K, V> segment, K excludedKey) {
+        for (Map.Entry<K, Entry<V>> entry : segment.entrySet()) {
+            if (!entry.getKey().equals(excludedKey)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Account for an entry that has just been removed to make room. The caller must hold the segment's lock.
+     */
+    private void evicted(Map.Entry<K, Entry<V>> entry, List<Map.Entry<K, Entry<V>>> evicted) {
+        totalWeight.addAndGet(-entry.getValue().weight);
+        entryCount.decrementAndGet();
+        if (entry.getValue().expirationTime > System.currentTimeMillis()) {
+            evicted.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            evictionCount.incrementAndGet();
+        } else {
+            expirationCount.incrementAndGet();
+        }
+    }
+
+    private void notifyEvictions(List<Map.Entry<K, Entry<V>>> evicted) {
+        if (evictionListener == null) {
+            return;
+        }
+        for (Map.Entry<K, Entry<V>> entry : evicted) {
+            evictionListener.onEviction(entry.getKey(), entry.getValue().value, entry.getValue().weight);
+        }
     }
 }
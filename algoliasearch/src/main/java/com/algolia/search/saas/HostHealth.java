@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A snapshot of the health of a host, for diagnostic purposes.
+ *
+ * @see AbstractClient#getHostHealth()
+ */
+public class HostHealth {
+    /** The host. */
+    public final @NonNull String host;
+
+    /** Whether the last exchange with this host succeeded. */
+    public final boolean isUp;
+
+    /** Timestamp of the last exchange with this host (ms since the epoch). */
+    public final long lastTryTimestamp;
+
+    /** Moving average of the host's response time (ms), or a negative value if it has never responded. */
+    public final double latency;
+
+    /** Moving average of the host's failure rate, between 0 and 1. */
+    public final double errorRate;
+
+    HostHealth(@NonNull String host, boolean isUp, long lastTryTimestamp, double latency, double errorRate) {
+        this.host = host;
+        this.isUp = isUp;
+        this.lastTryTimestamp = lastTryTimestamp;
+        this.latency = latency;
+        this.errorRate = errorRate;
+    }
+
+    @Override public @NonNull String toString() {
+        return String.format("%s{host: %s, isUp: %b, latency: %.1f ms, errorRate: %.3f}", this.getClass().getSimpleName(), host, isUp, latency, errorRate);
+    }
+}
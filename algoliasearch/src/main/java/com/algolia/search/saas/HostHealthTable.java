@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the health of hosts: whether they are up, and moving averages of their latency and error rate.
+ * <p>
+ * This class is thread-safe and lock-free. Each host's state is allocated once, then updated in place with atomic
+ * operations. Fields of a given host are updated independently, so a reader may briefly observe the effects of one
+ * exchange on some fields and not on others.
+ * </p>
+ */
+class HostHealthTable {
+    // ----------------------------------------------------------------------
+    // Types
+    // ----------------------------------------------------------------------
+
+    /** Mutable state of one host. */
+    private static final class HostStatus {
+        volatile boolean isUp = true;
+        volatile long lastTryTimestamp;
+
+        /** Moving average of the response time (ms), or a negative value if never measured. Stored as raw bits. */
+        final AtomicLong latencyBits = new AtomicLong(Double.doubleToRawLongBits(-1));
+
+        /** Moving average of the failure rate, between 0 and 1. Stored as raw bits. */
+        final AtomicLong errorRateBits = new AtomicLong(Double.doubleToRawLongBits(0));
+
+        double latency() {
+            return Double.longBitsToDouble(latencyBits.get());
+        }
+
+        double errorRate() {
+            return Double.longBitsToDouble(errorRateBits.get());
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Constants
+    // ----------------------------------------------------------------------
+
+    /** Weight of the latest sample in the moving averages. */
+    private static final double WEIGHT = 0.3;
+
+    // ----------------------------------------------------------------------
+    // Fields
+    // ----------------------------------------------------------------------
+
+    private final ConcurrentMap<String, HostStatus> statuses = new ConcurrentHashMap<>();
+
+    // ----------------------------------------------------------------------
+    // Updates
+    // ----------------------------------------------------------------------
+
+    /**
+     * Record a successful exchange with a host.
+     *
+     * @param host     The host.
+     * @param duration Time taken by the exchange (ms).
+     */
+    void recordSuccess(@NonNull String host, long duration) {
+        final HostStatus status = getOrCreate(host);
+        status.isUp = true;
+        status.lastTryTimestamp = System.currentTimeMillis();
+        long bits;
+        double latency;
+        do {
+            bits = status.latencyBits.get();
+            latency = Double.longBitsToDouble(bits);
+            latency = latency < 0 ? duration : latency + WEIGHT * (duration - latency);
+        } while (!status.latencyBits.compareAndSet(bits, Double.doubleToRawLongBits(latency)));
+        updateErrorRate(status, 0);
+    }
+
+    /**
+     * Record a failed exchange with a host.
+     *
+     * @param host The host.
+     */
+    void recordFailure(@NonNull String host) {
+        final HostStatus status = getOrCreate(host);
+        status.isUp = false;
+        status.lastTryTimestamp = System.currentTimeMillis();
+        updateErrorRate(status, 1);
+    }
+
+    /**
+     * Forget everything about all hosts.
+     */
+    void reset() {
+        statuses.clear();
+    }
+
+    private static void updateErrorRate(@NonNull HostStatus status, double sample) {
+        long bits;
+        double errorRate;
+        do {
+            bits = status.errorRateBits.get();
+            errorRate = Double.longBitsToDouble(bits);
+            errorRate += WEIGHT * (sample - errorRate);
+        } while (!status.errorRateBits.compareAndSet(bits, Double.doubleToRawLongBits(errorRate)));
+    }
+
+    private @NonNull HostStatus getOrCreate(@NonNull String host) {
+        HostStatus status = statuses.get(host);
+        if (status == null) {
+            final HostStatus newStatus = new HostStatus();
+            status = statuses.putIfAbsent(host, newStatus);
+            if (status == null) {
+                status = newStatus;
+            }
+        }
+        return status;
+    }
+
+    // ----------------------------------------------------------------------
+    // Queries
+    // ----------------------------------------------------------------------
+
+    /**
+     * Test whether a host is up, or has been down long enough to be retried.
+     *
+     * @param host          The host.
+     * @param hostDownDelay Delay to wait when a host is down before retrying it (ms).
+     * @return true if the host may be used, false otherwise.
+     */
+    boolean isUpOrCouldBeRetried(@NonNull String host, long hostDownDelay) {
+        final HostStatus status = statuses.get(host);
+        return status == null || status.isUp || System.currentTimeMillis() - status.lastTryTimestamp >= hostDownDelay;
+    }
+
+    /**
+     * Estimate the time a request to a host will take, accounting for the risk of failure.
+     *
+     * @param host    The host.
+     * @param timeout Time lost when a request fails (ms).
+     * @return The expected latency (ms), or a negative value if the host has never responded.
+     */
+    double expectedLatency(@NonNull String host, int timeout) {
+        final HostStatus status = statuses.get(host);
+        if (status == null) {
+            return -1;
+        }
+        final double latency = status.latency();
+        return latency < 0 ? -1 : latency + status.errorRate() * timeout;
+    }
+
+    /**
+     * Get the last time a host was tried.
+     *
+     * @param host The host.
+     * @return The timestamp of the last exchange with this host (ms since the epoch), or 0 if it was never tried.
+     */
+    long getLastTryTimestamp(@NonNull String host) {
+        final HostStatus status = statuses.get(host);
+        return status == null ? 0 : status.lastTryTimestamp;
+    }
+
+    /**
+     * Take a snapshot of the health of all known hosts.
+     *
+     * @return The health of each host that has been tried at least once, by host.
+     */
+    @NonNull Map<String, HostHealth> snapshot() {
+        final Map<String, HostHealth> snapshot = new HashMap<>(statuses.size());
+        for (Map.Entry<String, HostStatus> entry : statuses.entrySet()) {
+            final HostStatus status = entry.getValue();
+            snapshot.put(entry.getKey(), new HostHealth(entry.getKey(), status.isUp, status.lastTryTimestamp, status.latency(), status.errorRate()));
+        }
+        return snapshot;
+    }
+}
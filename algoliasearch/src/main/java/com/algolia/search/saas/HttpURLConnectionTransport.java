@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The default transport, based on the platform's `HttpURLConnection`.
+ * <p>
+ * Connections are kept alive and reused by the platform's own pool once their response has been fully read (see the
+ * `http.keepAlive` and `http.maxConnections` system properties); connections of failed exchanges are disconnected.
+ * To control connection reuse per host, use {@link PooledTransport} instead.
+ * </p>
+ */
+public class HttpURLConnectionTransport implements Transport {
+    /** Size of the pooled buffers used to read responses whose length is unknown (bytes). */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Maximum number of idle read buffers retained. */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /** Maximum size allocated upfront from the announced content length (bytes), to resist bogus lengths. */
+    static final int MAX_PREALLOCATED_LENGTH = 256 * 1024;
+
+    /** Pool of read buffers. */
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    @Override
+    public @NonNull HttpResponse execute(@NonNull HttpRequest request) throws IOException {
+        InputStream stream = null;
+        HttpURLConnection connection = null;
+        // Whether the response has been fully consumed, hence the connection can be reused.
+        boolean reusable = false;
+        try {
+            // Open connection.
+            connection = (HttpURLConnection) request.url.openConnection();
+            // Interrupting the thread does not abort blocking I/O: disconnecting does.
+            final HttpURLConnection cancellableConnection = connection;
+            request.setCancellationHandler(new Runnable() {
+                @Override
+                public void run() {
+                    cancellableConnection.disconnect();
+                }
+            });
+            if (request.isCancelled()) {
+                throw new InterruptedIOException("Request cancelled");
+            }
+
+            //set timeouts
+            connection.setRequestMethod(request.method);
+            connection.setConnectTimeout(request.connectTimeout);
+            connection.setReadTimeout(request.readTimeout);
+
+            // Headers
+            for (Map.Entry<String, String> entry : request.headers.entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+
+            // write entity
+            if (request.body != null) {
+                connection.setDoOutput(true);
+                OutputStream output = connection.getOutputStream();
+                output.write(request.body);
+                output.close();
+            }
+
+            // read response
+            int code = connection.getResponseCode();
+            final boolean codeIsError = code / 100 != 2;
+            stream = codeIsError ? connection.getErrorStream() : connection.getInputStream();
+            // As per the official Java docs (not the Android docs):
+            // - `getErrorStream()` may return null => we have to handle this case.
+            //   See <https://docs.oracle.com/javase/7/docs/api/java/net/HttpURLConnection.html#getErrorStream()>.
+            // - `getInputStream()` should never return null... but let's err on the side of caution.
+            //   See <https://docs.oracle.com/javase/7/docs/api/java/net/URLConnection.html#getInputStream()>.
+            if (stream == null) {
+                throw new IOException(String.format("Null stream when reading connection (status %d)", code));
+            }
+
+            final byte[] body;
+            String encoding = connection.getContentEncoding();
+            if (encoding != null && encoding.equals("gzip")) {
+                // The content length is the compressed size: it says nothing about the decoded length.
+                body = _toByteArray(new GZIPInputStream(stream), -1, bufferPool);
+            } else {
+                body = _toByteArray(stream, connection.getContentLength(), bufferPool);
+            }
+            reusable = true;
+            return new HttpResponse(code, body);
+        } finally {
+            request.setCancellationHandler(null);
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (connection != null && !reusable) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Reads the InputStream into a byte array.
+     * <p>
+     * The expected length is read straight into the result, so that a response with an accurate `Content-Length`
+     * costs a single allocation and no copy. Any content beyond (or all of it, if the length is unknown) is read into
+     * buffers borrowed from the pool, then copied into the result. The expected length is only trusted up to
+     * {@link #MAX_PREALLOCATED_LENGTH}: larger contents are accumulated as they arrive.
+     * </p>
+     *
+     * @param stream         the InputStream to read
+     * @param expectedLength the expected number of bytes, or a negative value if unknown
+     * @param pool           the pool of read buffers
+     * @return the stream's content as a byte[]
+     * @throws IOException if the stream can't be read
+     */
+    static byte[] _toByteArray(@NonNull InputStream stream, int expectedLength, @NonNull BufferPool pool) throws IOException {
+        byte[] head = new byte[Math.min(Math.max(expectedLength, 0), MAX_PREALLOCATED_LENGTH)];
+        int length = _readFully(stream, head);
+        if (length < head.length) {
+            return Arrays.copyOf(head, length);
+        }
+        List<byte[]> chunks = new ArrayList<>();
+        try {
+            while (true) {
+                byte[] chunk = pool.acquire();
+                chunks.add(chunk);
+                int read = _readFully(stream, chunk);
+                length += read;
+                if (read < chunk.length) {
+                    break;
+                }
+            }
+            if (length == head.length) {
+                return head;
+            }
+            byte[] result = Arrays.copyOf(head, length);
+            int offset = head.length;
+            for (byte[] chunk : chunks) {
+                int count = Math.min(chunk.length, length - offset);
+                System.arraycopy(chunk, 0, result, offset, count);
+                offset += count;
+            }
+            return result;
+        } finally {
+            for (byte[] chunk : chunks) {
+                pool.release(chunk);
+            }
+        }
+    }
+
+    /**
+     * Reads from the InputStream until the buffer is full or the end of stream is reached.
+     *
+     * @return the number of bytes read, less than the buffer's length only if the end of stream was reached
+     */
+    private static int _readFully(@NonNull InputStream stream, @NonNull byte[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int read = stream.read(buffer, count, buffer.length - count);
+            if (read == -1) {
+                break;
+            }
+            count += read;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical requests while they are in flight.
+ * <p>
+ * The first caller for a given key (the "leader") actually executes the request. Callers arriving with the same key
+ * before it completes wait for the leader's outcome instead of issuing their own network call, and receive the same
+ * result (or the same exception). Once the request has completed, the key is released: subsequent callers trigger a
+ * new request.
+ * </p>
+ * <p>
+ * If the leader is cancelled (i.e. its thread is interrupted) or fails with an unexpected runtime exception, waiting
+ * callers do not inherit that outcome: one of them takes over and executes the request itself.
+ * </p>
+ *
+ * @param <K> Type of the keys identifying requests.
+ * @param <V> Type of the results.
+ */
+class InFlightRequests<K, V> {
+    /**
+     * A request that can be coalesced.
+     */
+    interface Call<V> {
+        @NonNull V call() throws AlgoliaException;
+    }
+
+    /** Outcome of one in-flight request. Fields are published by counting down the latch. */
+    private static class Flight<V> {
+        final CountDownLatch done = new CountDownLatch(1);
+        V value;
+        AlgoliaException error;
+        /** Whether the leader gave up without a meaningful outcome. */
+        boolean abandoned = true;
+    }
+
+    /** Requests currently in flight, by key. */
+    private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+    /** Number of calls that were served by another caller's request. */
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * Execute a request, or join an identical one already in flight.
+     *
+     * @param key  Key identifying the request.
+     * @param call The request to execute if none is in flight for that key.
+     * @return The request's result.
+     * @throws AlgoliaException If the request failed, or the calling thread was interrupted while waiting.
+     */
+    @NonNull V execute(@NonNull K key, @NonNull Call<V> call) throws AlgoliaException {
+        while (true) {
+            Flight<V> flight = new Flight<>();
+            Flight<V> existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return lead(key, flight, call);
+            }
+            try {
+                existing.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AlgoliaException("Request interrupted", e);
+            }
+            if (existing.abandoned) {
+                continue;
+            }
+            sharedCount.incrementAndGet();
+            if (existing.error != null) {
+                throw existing.error;
+            }
+            return existing.value;
+        }
+    }
+
+    private @NonNull V lead(@NonNull K key, @NonNull Flight<V> flight, @NonNull Call<V> call) throws AlgoliaException {
+        try {
+            flight.value = call.call();
+            flight.abandoned = false;
+            return flight.value;
+        } catch (AlgoliaException e) {
+            flight.error = e;
+            flight.abandoned = Thread.currentThread().isInterrupted();
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * Get the number of calls that were served by another caller's request instead of hitting the network.
+     *
+     * @return The number of shared calls.
+     */
+    long getSharedCount() {
+        return sharedCount.get();
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fake transport that never touches the network.
+ * <p>
+ * Responses are produced by {@link Responder}s, configured per host. Each host can also be given a simulated latency,
+ * or be made unreachable, which makes it possible to exercise (and benchmark) timeouts, retries and host failover
+ * without any network.
+ * </p>
+ * <p>
+ * Timeouts are honored: a host slower than the request's read timeout, or an unreachable host, results in a
+ * {@link SocketTimeoutException} after the corresponding delay. So is cancellation: cancelling a request aborts its
+ * simulated delay.
+ * </p>
+ */
+public class InMemoryTransport implements Transport {
+    /**
+     * Produces responses for a fake host.
+     */
+    public interface Responder {
+        /**
+         * Build the response to a request.
+         *
+         * @param request The request being sent.
+         * @return The response to return.
+         * @throws IOException To simulate a network error.
+         */
+        @NonNull HttpResponse respond(@NonNull HttpRequest request) throws IOException;
+    }
+
+    /** Responders, by host. */
+    private final Map<String, Responder> responders = new HashMap<>();
+
+    /** Simulated latencies, by host (ms). */
+    private final Map<String, Long> latencies = new HashMap<>();
+
+    /** Hosts that cannot be reached. */
+    private final Set<String> unreachableHosts = new HashSet<>();
+
+    /** Responder used for hosts without a specific responder. */
+    private @Nullable Responder defaultResponder;
+
+    /** Requests executed so far, in order. */
+    private final List<HttpRequest> requests = new ArrayList<>();
+
+    // ----------------------------------------------------------------------
+    // Configuration
+    // ----------------------------------------------------------------------
+
+    /**
+     * Set the responder for a host.
+     *
+     * @param host      The host.
+     * @param responder The responder, or null to use the default responder.
+     * @return This instance (used to chain calls).
+     */
+    public synchronized @NonNull InMemoryTransport setResponder(@NonNull String host, @Nullable Responder responder) {
+        if (responder == null) {
+            responders.remove(host);
+        } else {
+            responders.put(host, responder);
+        }
+        return this;
+    }
+
+    /**
+     * Set the responder used for hosts without a specific responder.
+     *
+     * @param responder The responder, or null to fail requests to those hosts with a 404 status.
+     * @return This instance (used to chain calls).
+     */
+    public synchronized @NonNull InMemoryTransport setDefaultResponder(@Nullable Responder responder) {
+        this.defaultResponder = responder;
+        return this;
+    }
+
+    /**
+     * Make a host always return the same response.
+     *
+     * @param host       The host.
+     * @param statusCode The HTTP status code to return.
+     * @param body       The body to return.
+     * @return This instance (used to chain calls).
+     */
+    public @NonNull InMemoryTransport setResponse(@NonNull String host, final int statusCode, @NonNull String body) {
+        final HttpResponse response = new HttpResponse(statusCode, utf8(body));
+        return setResponder(host, new Responder() {
+            @NonNull
+            @Override
+            public HttpResponse respond(@NonNull HttpRequest request) {
+                return response;
+            }
+        });
+    }
+
+    /**
+     * Set the simulated latency of a host.
+     *
+     * @param host    The host.
+     * @param latency The time taken by the host to respond (ms).
+     * @return This instance (used to chain calls).
+     */
+    public synchronized @NonNull InMemoryTransport setLatency(@NonNull String host, long latency) {
+        latencies.put(host, latency);
+        return this;
+    }
+
+    /**
+     * Make a host reachable or not.
+     * Requests to an unreachable host fail once their connect timeout has elapsed.
+     *
+     * @param host      The host.
+     * @param reachable Whether the host can be reached.
+     * @return This instance (used to chain calls).
+     */
+    public synchronized @NonNull InMemoryTransport setReachable(@NonNull String host, boolean reachable) {
+        if (reachable) {
+            unreachableHosts.remove(host);
+        } else {
+            unreachableHosts.add(host);
+        }
+        return this;
+    }
+
+    // ----------------------------------------------------------------------
+    // Inspection
+    // ----------------------------------------------------------------------
+
+    /**
+     * Get all the requests executed so far, in order.
+     *
+     * @return A copy of the executed requests.
+     */
+    public synchronized @NonNull List<HttpRequest> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    /**
+     * Get the number of requests sent to a host so far.
+     *
+     * @param host The host.
+     * @return The number of requests sent to this host.
+     */
+    public synchronized int getRequestCount(@NonNull String host) {
+        int count = 0;
+        for (HttpRequest request : requests) {
+            if (request.host.equals(host)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forget all the requests executed so far.
+     */
+    public synchronized void clearRequests() {
+        requests.clear();
+    }
+
+    // ----------------------------------------------------------------------
+    // Transport
+    // ----------------------------------------------------------------------
+
+    @Override
+    public @NonNull HttpResponse execute(@NonNull HttpRequest request) throws IOException {
+        final Responder responder;
+        final long latency;
+        final boolean reachable;
+        synchronized (this) {
+            requests.add(request);
+            Responder hostResponder = responders.get(request.host);
+            responder = hostResponder != null ? hostResponder : defaultResponder;
+            Long hostLatency = latencies.get(request.host);
+            latency = hostLatency != null ? hostLatency : 0;
+            reachable = !unreachableHosts.contains(request.host);
+        }
+        if (!reachable) {
+            sleep(request, request.connectTimeout);
+            throw new SocketTimeoutException("connect timed out");
+        }
+        if (latency > request.readTimeout) {
+            sleep(request, request.readTimeout);
+            throw new SocketTimeoutException("Read timed out");
+        }
+        sleep(request, latency);
+        if (responder == null) {
+            return new HttpResponse(404, utf8("{\"message\":\"No responder for host " + request.host + "\",\"status\":404}"));
+        }
+        return responder.respond(request);
+    }
+
+    /**
+     * Simulate waiting for the network. Like real I/O, the wait is aborted by cancelling the request.
+     */
+    private static void sleep(@NonNull HttpRequest request, long duration) throws IOException {
+        if (duration <= 0) {
+            return;
+        }
+        final CountDownLatch cancellation = new CountDownLatch(1);
+        request.setCancellationHandler(new Runnable() {
+            @Override
+            public void run() {
+                cancellation.countDown();
+            }
+        });
+        try {
+            if (cancellation.await(duration, TimeUnit.MILLISECONDS)) {
+                throw new InterruptedIOException("Request cancelled");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            request.setCancellationHandler(null);
+        }
+    }
+
+    private static byte[] utf8(@NonNull String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // should never happen: UTF-8 is always supported
+        }
+    }
+}
@@ -32,12 +32,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A proxy to an Algolia index.
@@ -59,8 +61,54 @@ public class Index {
     /** This index's name, URL-encoded. Cached for optimization. */
     private String encodedIndexName;
 
-    private ExpiringCache<String, byte[]> searchCache;
-    private boolean isCacheEnabled = false;
+    private volatile ExpiringCache<QueryFingerprint, byte[]> searchCache;
+    private volatile boolean isCacheEnabled = false;
+
+    /** Duration during which expired search results may still be served, while being refreshed (seconds). */
+    private volatile int searchCacheStaleGracePeriod = 0;
+
+    /** Notified when the search cache evicts results. */
+    private volatile SearchCacheEvictionListener searchCacheEvictionListener;
+
+    /** Whether search cache keys are checked against the full query parameters. For debugging purposes. */
+    private volatile boolean searchCacheKeyVerified = false;
+
+    /** Exhaustive search results reused for refinements of their query text. Null if disabled. */
+    private volatile PrefixSearchCache prefixSearchCache;
+
+    /** Compressor of the in-memory search cache's entries. Null if compression is disabled. */
+    private volatile CacheCompressor searchCacheCompressor;
+
+    /** Objects retrieved by ID. Null if disabled. */
+    private volatile ObjectCache objectCache;
+
+    /** Buffer batching single-object writes. Null if disabled. */
+    private volatile WriteBuffer writeBuffer;
+
+    /** Maximum number of operations per batch request. */
+    private volatile int maxBatchOperations = BatchUploader.DEFAULT_MAX_OPERATIONS;
+
+    /** Maximum size of a batch request (bytes). */
+    private volatile long maxBatchBytes = BatchUploader.DEFAULT_MAX_BYTES;
+
+    /** Maximum number of batch requests sent at the same time by one call. */
+    private volatile int batchConcurrency = BatchUploader.DEFAULT_CONCURRENCY;
+
+    /** Persistent tier of the search cache, behind the in-memory one. Null if disabled. */
+    private volatile DiskCache searchDiskCache;
+
+    /** Time to live of search results in the persistent cache (ms). */
+    private volatile long searchDiskCacheTimeout;
+
+    /** Searches currently in flight, keyed like the search cache. */
+    private final InFlightRequests<QueryFingerprint, byte[]> inFlightSearches = new InFlightRequests<>();
+
+    /**
+     * Index generation the persistent and prefix search caches were filled at. These caches are not keyed by
+     * generation (the former outlives the process, the latter matches across keys), so they are cleared when the
+     * generation changes.
+     */
+    private volatile long searchCacheGeneration;
 
     // ----------------------------------------------------------------------
     // Constants
@@ -68,6 +116,20 @@ public class Index {
 
     private static final long MAX_TIME_MS_TO_WAIT = 10000L;
 
+    /** Maximum number of queries sent in one request when warming the search cache. */
+    private static final int WARMING_BATCH_SIZE = 50;
+
+    /** Pause between two requests when warming the search cache (ms). */
+    private static final long WARMING_PAUSE = 1000;
+
+    /** Weighs search cache entries by their approximate memory footprint (bytes). */
+    private static final ExpiringCache.Weigher<QueryFingerprint, byte[]> SEARCH_CACHE_WEIGHER = new ExpiringCache.Weigher<QueryFingerprint, byte[]>() {
+        @Override
+        public int weigh(QueryFingerprint key, byte[] value) {
+            return value.length + 2 * key.parameters.length();
+        }
+    };
+
     // ----------------------------------------------------------------------
     // Initialization
     // ----------------------------------------------------------------------
@@ -127,6 +189,35 @@ public class Index {
         }.start();
     }
 
+    /**
+     * Search inside this index (asynchronously), with stale-while-revalidate semantics.
+     * <p>
+     * When the search cache holds a stale result for the query (see {@link #setSearchCacheStaleGracePeriod(int)}),
+     * that result is delivered right away to the completion handler, and the query is sent to the API in the
+     * background. The fresh result then updates the cache, and is delivered to the revalidation handler.
+     * Otherwise, this behaves like {@link #searchAsync(Query, RequestOptions, CompletionHandler)}, and the
+     * revalidation handler is never called.
+     * </p>
+     *
+     * @param query               Search parameters. May be null to use an empty query.
+     * @param requestOptions      Request-specific options.
+     * @param completionHandler   The listener that will be notified of the request's outcome.
+     * @param revalidationHandler The listener that will be notified of the fresh result, if a stale one was delivered.
+     * @return A cancellable request. Cancelling it does not cancel the revalidation.
+     */
+    public Request searchAsync(@Nullable Query query, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler, @Nullable final CompletionHandler revalidationHandler) {
+        if (revalidationHandler == null) {
+            return searchAsync(query, requestOptions, completionHandler);
+        }
+        final Query queryCopy = query != null ? new Query(query) : new Query();
+        return getClient().new AsyncTaskRequest(completionHandler) {
+            @NonNull
+            @Override protected JSONObject run() throws AlgoliaException {
+                return search(queryCopy, requestOptions, revalidationHandler);
+            }
+        }.start();
+    }
+
     /**
      * Search inside this index (asynchronously).
      *
@@ -336,6 +427,10 @@ public class Index {
      * @return A cancellable request.
      */
     public Request addObjectAsync(final @NonNull JSONObject object, @Nullable CompletionHandler completionHandler) {
+        final Request buffered = bufferWrite("addObject", /* objectID: */ null, object, /* requestOptions: */ null, completionHandler);
+        if (buffered != null) {
+            return buffered;
+        }
         return getClient().new AsyncTaskRequest(completionHandler) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
@@ -376,6 +471,10 @@ public class Index {
      * @return A cancellable request.
      */
     public Request addObjectAsync(final @NonNull JSONObject object, final @NonNull String objectID, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
+        final Request buffered = bufferWrite("updateObject", objectID, object, requestOptions, completionHandler);
+        if (buffered != null) {
+            return buffered;
+        }
         return getClient().new AsyncTaskRequest(completionHandler) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
@@ -393,10 +492,27 @@ public class Index {
      * @return A cancellable request.
      */
     public Request addObjectsAsync(final @NonNull JSONArray objects, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
+        return addObjectsAsync(objects, /* waitForIndexing: */ false, requestOptions, completionHandler);
+    }
+
+    /**
+     * Add several objects to this index (asynchronously).
+     * <p>
+     * Large arrays are uploaded as several batches: see {@link #setMaxBatchOperations(int)}. The result
+     * then lists the <code>taskIDs</code> of all batches.
+     * </p>
+     *
+     * @param objects           Objects to add.
+     * @param waitForIndexing   Whether to wait until the objects have been indexed before completing.
+     * @param requestOptions    Request-specific options.
+     * @param completionHandler The listener that will be notified of the request's outcome.
+     * @return A cancellable request.
+     */
+    public Request addObjectsAsync(final @NonNull JSONArray objects, final boolean waitForIndexing, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
         return getClient().new AsyncTaskRequest(completionHandler) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
-                return addObjects(objects, requestOptions);
+                return addObjects(objects, waitForIndexing, requestOptions);
             }
         }.start();
     }
@@ -434,6 +550,10 @@ public class Index {
      * @return A cancellable request.
      */
     public Request saveObjectAsync(final @NonNull JSONObject object, final @NonNull String objectID, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
+        final Request buffered = bufferWrite("updateObject", objectID, object, requestOptions, completionHandler);
+        if (buffered != null) {
+            return buffered;
+        }
         return getClient().new AsyncTaskRequest(completionHandler) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
@@ -462,10 +582,27 @@ public class Index {
      * @return A cancellable request.
      */
     public Request saveObjectsAsync(final @NonNull JSONArray objects, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
+        return saveObjectsAsync(objects, /* waitForIndexing: */ false, requestOptions, completionHandler);
+    }
+
+    /**
+     * Update several objects (asynchronously).
+     * <p>
+     * Large arrays are uploaded as several batches: see {@link #setMaxBatchOperations(int)}. The result
+     * then lists the <code>taskIDs</code> of all batches.
+     * </p>
+     *
+     * @param objects           Objects to update. Each object must contain an <code>objectID</code> attribute.
+     * @param waitForIndexing   Whether to wait until the objects have been indexed before completing.
+     * @param requestOptions    Request-specific options.
+     * @param completionHandler The listener that will be notified of the request's outcome.
+     * @return A cancellable request.
+     */
+    public Request saveObjectsAsync(final @NonNull JSONArray objects, final boolean waitForIndexing, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
         return getClient().new AsyncTaskRequest(completionHandler) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
-                return saveObjects(objects, requestOptions);
+                return saveObjects(objects, waitForIndexing, requestOptions);
             }
         }.start();
     }
@@ -510,6 +647,10 @@ public class Index {
      * @return A cancellable request.
      */
     public Request partialUpdateObjectAsync(final @NonNull JSONObject partialObject, final @NonNull String objectID, final boolean createIfNotExists, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
+        final Request buffered = bufferWrite(createIfNotExists ? "partialUpdateObject" : "partialUpdateObjectNoCreate", objectID, partialObject, requestOptions, completionHandler);
+        if (buffered != null) {
+            return buffered;
+        }
         return getClient().new AsyncTaskRequest(completionHandler) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
@@ -719,6 +860,10 @@ public class Index {
      * @return A cancellable request.
      */
     public Request deleteObjectAsync(final @NonNull String objectID, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
+        final Request buffered = objectID.length() > 0 ? bufferWrite("deleteObject", objectID, /* body: */ null, requestOptions, completionHandler) : null;
+        if (buffered != null) {
+            return buffered;
+        }
         return getClient().new AsyncTaskRequest(completionHandler) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
@@ -986,8 +1131,255 @@ public class Index {
      * @param maxRequests      maximum amount of requests to keep before removing the least recently used
      */
     public void enableSearchCache(int timeoutInSeconds, int maxRequests) {
+        enableSearchCache(timeoutInSeconds, maxRequests, 0);
+    }
+
+    /**
+     * Enable search cache with custom parameters and a memory budget.
+     * <p>
+     * The size of a search result varies a lot, depending on the number of hits and attributes retrieved. With a
+     * memory budget, the least recently used results are evicted as soon as the cached results exceed the budget,
+     * regardless of their number. Results bigger than the whole budget are not cached.
+     * </p>
+     * <p>
+     * Writes to this index going through the same {@link Client} invalidate the cache. See
+     * {@link Client#setSearchCacheInvalidatedOnTaskPublication(boolean)} to also invalidate it once writes have been
+     * applied by the engine.
+     * </p>
+     *
+     * @param timeoutInSeconds duration during which an request is kept in cache
+     * @param maxRequests      maximum amount of requests to keep before removing the least recently used
+     * @param maxBytes         maximum total size of the cached results (bytes), or zero for no size limit
+     */
+    public void enableSearchCache(int timeoutInSeconds, int maxRequests, long maxBytes) {
+        final ExpiringCache<QueryFingerprint, byte[]> cache = new ExpiringCache<>(timeoutInSeconds, maxRequests, maxBytes, SEARCH_CACHE_WEIGHER, new ExpiringCache.EvictionListener<QueryFingerprint, byte[]>() {
+            @Override
+            public void onEviction(QueryFingerprint key, byte[] value, int weight) {
+                final SearchCacheEvictionListener listener = searchCacheEvictionListener;
+                if (listener != null) {
+                    listener.onSearchCacheEviction(Index.this, key.parameters, value.length);
+                }
+            }
+        });
+        cache.setStaleGracePeriodMillis(TimeUnit.SECONDS.toMillis(searchCacheStaleGracePeriod));
+        searchCache = cache;
         isCacheEnabled = true;
-        searchCache = new ExpiringCache<>(timeoutInSeconds, maxRequests);
+    }
+
+    /**
+     * Get the stale grace period of the search cache.
+     *
+     * @return The stale grace period (seconds).
+     */
+    public int getSearchCacheStaleGracePeriod() {
+        return searchCacheStaleGracePeriod;
+    }
+
+    /**
+     * Set the stale grace period of the search cache, enabling stale-while-revalidate.
+     * <p>
+     * During this period after a cached search result has expired, a search for the same query returns the stale
+     * result immediately, and refreshes it in the background. The fresh result updates the cache, and is delivered
+     * to the revalidation handler passed to
+     * {@link #searchAsync(Query, RequestOptions, CompletionHandler, CompletionHandler)}, if any.
+     * </p>
+     *
+     * @param gracePeriodInSeconds The stale grace period (seconds), or zero to never serve stale results (default).
+     */
+    public void setSearchCacheStaleGracePeriod(int gracePeriodInSeconds) {
+        searchCacheStaleGracePeriod = gracePeriodInSeconds;
+        final ExpiringCache<QueryFingerprint, byte[]> cache = searchCache;
+        if (cache != null) {
+            cache.setStaleGracePeriodMillis(TimeUnit.SECONDS.toMillis(gracePeriodInSeconds));
+        }
+    }
+
+    /**
+     * Test whether search cache keys are verified against the full query parameters.
+     *
+     * @return true if verification is enabled, false otherwise (default).
+     */
+    public boolean isSearchCacheKeyVerified() {
+        return searchCacheKeyVerified;
+    }
+
+    /**
+     * Enable or disable the verification of search cache keys. For debugging purposes.
+     * <p>
+     * The search cache identifies queries by a 128-bit fingerprint of their parameters, index name and generation,
+     * rather than by the full query string. When verification is enabled, lookups also compare the full parameters,
+     * so that a fingerprint collision results in a cache miss, and is logged as an error.
+     * </p>
+     *
+     * @param verified true to verify keys, false otherwise (default).
+     */
+    public void setSearchCacheKeyVerified(boolean verified) {
+        searchCacheKeyVerified = verified;
+    }
+
+    /**
+     * Get the listener notified when the search cache evicts results.
+     *
+     * @return The eviction listener, or null if none.
+     */
+    public @Nullable SearchCacheEvictionListener getSearchCacheEvictionListener() {
+        return searchCacheEvictionListener;
+    }
+
+    /**
+     * Set a listener to be notified when the search cache evicts results because it is full. This helps tune the
+     * cache's size and memory budget.
+     *
+     * @param listener The eviction listener, or null to remove it.
+     */
+    public void setSearchCacheEvictionListener(@Nullable SearchCacheEvictionListener listener) {
+        this.searchCacheEvictionListener = listener;
+    }
+
+    /**
+     * Store the results of the search cache compressed, without a preset dictionary.
+     *
+     * @see #enableSearchCacheCompression(byte[])
+     */
+    public void enableSearchCacheCompression() {
+        enableSearchCacheCompression(null);
+    }
+
+    /**
+     * Store the results of the search cache compressed.
+     * <p>
+     * Search results are verbose JSON: compressing them typically allows 3 to 5 times more results to fit in the
+     * same memory budget (see {@link #enableSearchCache(int, int, long)}). Results are compressed on the search thread
+     * when cached, and decompressed on every cache hit, which adds a small latency to hits (typically well under a
+     * millisecond for results of a few dozen kilobytes). This mode is thus most useful when the cache is bounded by
+     * memory.
+     * </p>
+     * <p>
+     * A preset dictionary made of content typical of the results (e.g. a sample response from the index, or the
+     * attribute names and values that appear in most hits) improves compression, especially of small results.
+     * Results already cached with another dictionary are treated as misses.
+     * </p>
+     *
+     * @param dictionary Preset dictionary (at most 32 KB are used), or null for none. Must not be modified afterwards.
+     */
+    public void enableSearchCacheCompression(@Nullable byte[] dictionary) {
+        searchCacheCompressor = new CacheCompressor(dictionary);
+    }
+
+    /**
+     * Store the results of the search cache uncompressed (default). Results already cached compressed are treated
+     * as misses.
+     */
+    public void disableSearchCacheCompression() {
+        searchCacheCompressor = null;
+    }
+
+    /**
+     * Fill the search cache with the results of predicted queries.
+     *
+     * @see #warmSearchCacheAsync(List, SearchCacheWarmingCondition, CompletionHandler)
+     */
+    public Request warmSearchCacheAsync(@NonNull List<Query> queries, @Nullable CompletionHandler completionHandler) {
+        return warmSearchCacheAsync(queries, /* condition: */ null, completionHandler);
+    }
+
+    /**
+     * Fill the search cache with the results of predicted queries (e.g. the empty query, landing pages or trending
+     * terms), so that the first searches are served locally.
+     * <p>
+     * Queries whose results are already cached are skipped. The others are sent in as few multiple-queries requests
+     * as possible, spaced out, on a low-priority background thread that does not compete with searches. Their
+     * results go into the regular search cache, and therefore expire like any other.
+     * </p>
+     * <p>
+     * Warming is opportunistic: the <code>condition</code>, if any, is checked before each request, and warming
+     * stops as soon as it returns false. Typically, it checks that the device is idle and on an unmetered network.
+     * Warming also stops if the request is cancelled.
+     * </p>
+     *
+     * @param queries           The queries to warm the cache with.
+     * @param condition         Condition for warming to proceed, or null to always proceed.
+     * @param completionHandler The listener that will be notified of the request's outcome. The content has the number
+     *                          of queries fetched (<code>warmedQueryCount</code>) and whether all queries are now
+     *                          cached (<code>complete</code>).
+     * @return A cancellable request.
+     * @throws IllegalStateException if the search cache is disabled.
+     */
+    public Request warmSearchCacheAsync(@NonNull List<Query> queries, @Nullable final SearchCacheWarmingCondition condition, @Nullable CompletionHandler completionHandler) {
+        if (!isCacheEnabled || searchCache == null) {
+            throw new IllegalStateException("The search cache is disabled");
+        }
+        final List<Query> queriesCopy = new ArrayList<>(queries.size());
+        for (Query query : queries) {
+            queriesCopy.add(new Query(query));
+        }
+        return getClient().new AsyncTaskRequest(completionHandler, client.getTaskExecutorService()) {
+            @NonNull
+            @Override protected JSONObject run() throws AlgoliaException {
+                return warmSearchCache(queriesCopy, condition);
+            }
+        }.start();
+    }
+
+    private JSONObject warmSearchCache(@NonNull List<Query> queries, @Nullable SearchCacheWarmingCondition condition) throws AlgoliaException {
+        int warmedQueryCount = 0;
+        boolean complete = true;
+        for (int start = 0; start < queries.size(); start += WARMING_BATCH_SIZE) {
+            final ExpiringCache<QueryFingerprint, byte[]> cache = isCacheEnabled ? searchCache : null;
+            if (cache == null) {
+                complete = false;
+                break;
+            }
+            final List<IndexQuery> missingQueries = new ArrayList<>();
+            for (Query query : queries.subList(start, Math.min(start + WARMING_BATCH_SIZE, queries.size()))) {
+                if (!cache.containsKey(cacheKeyFor(query, client.getIndexGeneration(rawIndexName)))) {
+                    missingQueries.add(new IndexQuery(this, query));
+                }
+            }
+            if (missingQueries.isEmpty()) {
+                continue;
+            }
+            if (warmedQueryCount > 0) {
+                try {
+                    Thread.sleep(WARMING_PAUSE);
+                } catch (InterruptedException e) {
+                    complete = false; // cancelled
+                    break;
+                }
+            }
+            if (condition != null && !condition.canWarm()) {
+                complete = false;
+                break;
+            }
+            client.multipleQueries(missingQueries, /* strategy: */ null, /* requestOptions: */ null);
+            warmedQueryCount += missingQueries.size();
+        }
+        try {
+            return new JSONObject().put("warmedQueryCount", warmedQueryCount).put("complete", complete);
+        } catch (JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+    }
+
+    /**
+     * Get statistics about the search cache: hits, misses, evictions, time spent fetching results, etc.
+     * They help tune the cache's timeout and size.
+     *
+     * @return A snapshot of the statistics, or null if the search cache is disabled.
+     */
+    public @Nullable CacheStats getSearchCacheStats() {
+        final ExpiringCache<QueryFingerprint, byte[]> cache = searchCache;
+        return isCacheEnabled && cache != null ? cache.stats() : null;
+    }
+
+    /**
+     * Reset the statistics of the search cache. Cached results are kept.
+     */
+    public void resetSearchCacheStats() {
+        final ExpiringCache<QueryFingerprint, byte[]> cache = searchCache;
+        if (cache != null) {
+            cache.resetStats();
+        }
     }
 
     /**
@@ -1007,6 +1399,303 @@ public class Index {
         if (searchCache != null) {
             searchCache.reset();
         }
+        clearGenerationlessCaches();
+    }
+
+    /**
+     * Enable as-you-type reuse of search results, with default parameters.
+     *
+     * @see #enablePrefixSearchCache(int, int)
+     */
+    public void enablePrefixSearchCache() {
+        enablePrefixSearchCache(ExpiringCache.defaultExpirationTimeout, ExpiringCache.defaultMaxSize);
+    }
+
+    /**
+     * Enable as-you-type reuse of search results.
+     * <p>
+     * When a search response is exhaustive (i.e. it contains all the matching hits), a later search whose query text
+     * extends that response's query text, all other parameters being equal, is answered locally: the previous hits
+     * are filtered client-side, and no network call is made. For example, if the search for "ip" returned all of its
+     * hits, the search for "iph" is answered from them.
+     * </p>
+     * <p>
+     * Local filtering is an approximation: a hit is kept if every word of the query text is found in its highlighted
+     * attributes, ignoring case and diacritics; only the last word may be a prefix, unless the query uses
+     * {@link Query.QueryType#PREFIX_ALL}. Synonyms and ranking are not re-evaluated, and hits keep their previous order
+     * and highlighting. Locally answered searches are not seen by the API, hence not counted in analytics. Queries
+     * that may match with typos (i.e. with typo tolerance enabled and a word of at least {@code minWordSizefor1Typo}
+     * characters), requesting facets, using pagination beyond the first page, optional words or word removal, or
+     * searches with request options, always go to the API.
+     * </p>
+     *
+     * @param timeoutInSeconds duration during which a response is reused
+     * @param maxQueries       maximum number of responses kept
+     */
+    public void enablePrefixSearchCache(int timeoutInSeconds, int maxQueries) {
+        prefixSearchCache = new PrefixSearchCache(timeoutInSeconds, maxQueries);
+    }
+
+    /**
+     * Disable as-you-type reuse of search results.
+     */
+    public void disablePrefixSearchCache() {
+        prefixSearchCache = null;
+    }
+
+    /**
+     * Enable the persistent search cache.
+     * <p>
+     * Search results are stored on disk, in addition to the in-memory search cache (if enabled), and survive process
+     * restarts. They are kept for their time to live even across restarts: typically, the queries repeated right after
+     * the application launches can then be served without any network round trip.
+     * </p>
+     * <p>
+     * The directory is only read when the cache is first used, which happens on a background thread for asynchronous
+     * searches. It should be dedicated to this index, and is typically a subdirectory of the application's cache
+     * directory (see <code>Context.getCacheDir()</code>). I/O errors are treated as cache misses.
+     * </p>
+     *
+     * @param directory        directory in which to store cached results
+     * @param timeoutInSeconds duration during which a result is kept on disk
+     * @param maxBytes         maximum size of the cache files (bytes)
+     */
+    public void enablePersistentSearchCache(@NonNull File directory, int timeoutInSeconds, long maxBytes) {
+        final DiskCache previous = searchDiskCache;
+        searchDiskCacheTimeout = TimeUnit.SECONDS.toMillis(timeoutInSeconds);
+        searchDiskCache = new DiskCache(directory, maxBytes);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Disable the persistent search cache, and delete its files.
+     */
+    public void disablePersistentSearchCache() {
+        final DiskCache diskCache = searchDiskCache;
+        searchDiskCache = null;
+        if (diskCache != null) {
+            diskCache.clear();
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Object cache
+    // ----------------------------------------------------------------------
+
+    /**
+     * Enable the object cache with default parameters.
+     *
+     * @see #enableObjectCache(int, int)
+     */
+    public void enableObjectCache() {
+        enableObjectCache(ExpiringCache.defaultExpirationTimeout, ExpiringCache.defaultMaxSize);
+    }
+
+    /**
+     * Enable the object cache.
+     * <p>
+     * Objects retrieved by {@link #getObjectAsync getObject} or {@link #getObjectsAsync getObjects} are cached by ID
+     * and list of retrieved attributes, and served from the cache until they expire. When only some of the objects
+     * passed to <code>getObjects</code> are cached, only the others are requested from the API.
+     * </p>
+     * <p>
+     * Writes made through this index instance (adding, saving, updating or deleting objects, batches, clearing the
+     * index, changing its settings) invalidate the objects they touch. Since the engine applies writes
+     * asynchronously, the touched objects are also not cached again for a few seconds after the write. Writes made by
+     * other means (e.g. another <code>Index</code> instance, or {@link Client#batchAsync}) are not detected: cached
+     * objects are then up to <code>timeoutInSeconds</code> old. Requests with request options bypass the cache.
+     * </p>
+     *
+     * @param timeoutInSeconds duration during which an object is kept in cache
+     * @param maxObjects       maximum number of objects to keep before removing the least recently used
+     */
+    public void enableObjectCache(int timeoutInSeconds, int maxObjects) {
+        objectCache = new ObjectCache(timeoutInSeconds, maxObjects);
+    }
+
+    /**
+     * Disable and reset the object cache.
+     */
+    public void disableObjectCache() {
+        objectCache = null;
+    }
+
+    /**
+     * Remove all objects from the object cache.
+     */
+    public void clearObjectCache() {
+        final ObjectCache cache = objectCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Write buffer
+    // ----------------------------------------------------------------------
+
+    /**
+     * Enable the write buffer with default parameters: batches of up to 1000 operations or 1 MB, sent at most one
+     * second after their first operation.
+     *
+     * @see #enableWriteBuffer(int, long, long)
+     */
+    public void enableWriteBuffer() {
+        enableWriteBuffer(WriteBuffer.DEFAULT_MAX_OPERATIONS, WriteBuffer.DEFAULT_MAX_BYTES, WriteBuffer.DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Enable the write buffer.
+     * <p>
+     * Single-object writes without request options ({@link #addObjectAsync addObject}, {@link #saveObjectAsync
+     * saveObject}, {@link #partialUpdateObjectAsync partialUpdateObject} and {@link #deleteObjectAsync deleteObject})
+     * are then buffered, and sent together as one batch when the buffer holds <code>maxOperations</code> operations
+     * or <code>maxBytes</code> bytes, or <code>maxDelayMillis</code> after the first buffered operation, whichever
+     * comes first. Each completion handler receives its operation's slice of the batch result: the
+     * <code>taskID</code> of the batch and the <code>objectID</code> of the operation. If the batch fails, every
+     * operation in it fails with the same error.
+     * </p>
+     * <p>
+     * Batches are sent in order, one at a time. However, writes that are not buffered (e.g. with request options,
+     * or on several objects) may overtake buffered ones: call {@link #flushWriteBuffer()} first if ordering matters.
+     * A buffered write can be cancelled until its batch is sent.
+     * </p>
+     *
+     * @param maxOperations  maximum number of operations per batch
+     * @param maxBytes       maximum size of a batch (bytes)
+     * @param maxDelayMillis maximum time during which an operation is buffered (ms)
+     */
+    public void enableWriteBuffer(int maxOperations, long maxBytes, long maxDelayMillis) {
+        final WriteBuffer oldBuffer = writeBuffer;
+        writeBuffer = new WriteBuffer(this, maxOperations, maxBytes, maxDelayMillis);
+        if (oldBuffer != null) {
+            oldBuffer.close();
+        }
+    }
+
+    /**
+     * Disable the write buffer. Buffered operations are sent immediately.
+     */
+    public void disableWriteBuffer() {
+        final WriteBuffer oldBuffer = writeBuffer;
+        writeBuffer = null;
+        if (oldBuffer != null) {
+            oldBuffer.close();
+        }
+    }
+
+    /**
+     * Send the operations held by the write buffer immediately, without waiting for a threshold to be reached.
+     * Does nothing if the write buffer is disabled.
+     */
+    public void flushWriteBuffer() {
+        final WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * Buffer a single-object write, if the write buffer is enabled and no request options are specified.
+     *
+     * @return The buffered request, or null if the write must be sent on its own.
+     */
+    private @Nullable Request bufferWrite(@NonNull String action, @Nullable String objectID, @Nullable JSONObject body, @Nullable RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
+        final WriteBuffer buffer = writeBuffer;
+        if (buffer == null || requestOptions != null) {
+            return null;
+        }
+        try {
+            final JSONObject operation = new JSONObject().put("action", action);
+            if (objectID != null) {
+                operation.put("objectID", objectID);
+            }
+            // Like `deleteObjects`, deletions identify the object in their body.
+            operation.put("body", body != null ? body : new JSONObject().put("objectID", objectID));
+            return buffer.add(operation, completionHandler);
+        } catch (JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Batch uploads
+    // ----------------------------------------------------------------------
+
+    /**
+     * Get the maximum number of operations sent in one batch request.
+     *
+     * @return The maximum number of operations per request.
+     */
+    public int getMaxBatchOperations() {
+        return maxBatchOperations;
+    }
+
+    /**
+     * Set the maximum number of operations sent in one batch request.
+     * <p>
+     * Methods writing several objects ({@link #addObjectsAsync addObjects}, {@link #saveObjectsAsync saveObjects},
+     * {@link #partialUpdateObjectsAsync partialUpdateObjects} and {@link #deleteObjectsAsync deleteObjects}) split
+     * large arrays into several batch requests, bounded by their number of operations and their size (see
+     * {@link #setMaxBatchBytes(long)}). Requests are sent in order, one at a time, unless a higher concurrency is
+     * allowed by {@link #setBatchConcurrency(int)}; the call completes once all of them have been accepted. The
+     * result then holds the <code>objectIDs</code> of all objects, in order, the <code>taskIDs</code> of all
+     * requests, and as <code>taskID</code> the highest of them: since the tasks of an index are applied in order,
+     * waiting for it waits for all requests. If a request fails, the call fails with a {@link BatchUploadException},
+     * whose {@link BatchUploadException#getPartialResult() partial result} describes the requests accepted before the
+     * failure: their objects have been written nonetheless.
+     * </p>
+     *
+     * @param maxOperations The maximum number of operations per request (default: 1000).
+     */
+    public void setMaxBatchOperations(int maxOperations) {
+        maxBatchOperations = maxOperations;
+    }
+
+    /**
+     * Get the maximum size of a batch request.
+     *
+     * @return The maximum size of a request (bytes).
+     */
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Set the maximum size of a batch request, once encoded as UTF-8. A single larger object is sent in a request of
+     * its own.
+     *
+     * @param maxBytes The maximum size of a request (bytes, default: 1 MB).
+     * @see #setMaxBatchOperations(int)
+     */
+    public void setMaxBatchBytes(long maxBytes) {
+        maxBatchBytes = maxBytes;
+    }
+
+    /**
+     * Get the maximum number of batch requests sent at the same time when writing a large array of objects.
+     *
+     * @return The maximum number of concurrent requests.
+     */
+    public int getBatchConcurrency() {
+        return batchConcurrency;
+    }
+
+    /**
+     * Set the maximum number of batch requests sent at the same time when writing a large array of objects.
+     * <p>
+     * Parallel requests may reach the engine in any order. Requests touching the same object are therefore still
+     * sent one after the other, in order, so that operations on an object are applied in the order of the array.
+     * Requests run on the client's executor, which bounds the effective concurrency.
+     * </p>
+     *
+     * @param concurrency The maximum number of concurrent requests (default: 1, i.e. sequential upload).
+     * @see #setMaxBatchOperations(int)
+     */
+    public void setBatchConcurrency(int concurrency) {
+        batchConcurrency = concurrency;
     }
 
     // ----------------------------------------------------------------------
@@ -1021,7 +1710,13 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject addObject(JSONObject obj, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return client.postRequest("/1/indexes/" + encodedIndexName, /* urlParameters: */ null, obj.toString(), false, requestOptions);
+        JSONObject task = null;
+        try {
+            task = client.postRequest("/1/indexes/" + encodedIndexName, /* urlParameters: */ null, obj.toString(), false, requestOptions);
+            return task;
+        } finally {
+            written(task);
+        }
     }
 
     /**
@@ -1034,10 +1729,15 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject addObject(JSONObject obj, String objectID, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
-            return client.putRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), /* urlParameters: */ null, obj.toString(), requestOptions);
+            task = client.putRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), /* urlParameters: */ null, obj.toString(), requestOptions);
+            return task;
         } catch (UnsupportedEncodingException e) {
             throw new AlgoliaException(e.getMessage());
+        } finally {
+            written(task);
+            invalidateObject(objectID);
         }
     }
 
@@ -1049,15 +1749,35 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject batch(JSONArray actions, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
             JSONObject content = new JSONObject();
             content.put("requests", actions);
-            return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            task = client.postRequest("/1/indexes/" + encodedIndexName + "/batch", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            return task;
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
+        } finally {
+            written(task);
+            final ObjectCache cache = objectCache;
+            if (cache != null) {
+                cache.invalidate(actions);
+            }
         }
     }
 
+    /**
+     * Send batch operations, split into as many requests as needed.
+     *
+     * @param actions         the batch operations.
+     * @param waitForIndexing whether to wait until all requests have been applied.
+     * @param requestOptions  Request-specific options.
+     * @throws AlgoliaException
+     */
+    private JSONObject uploadBatch(JSONArray actions, boolean waitForIndexing, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        return new BatchUploader(this, maxBatchOperations, maxBatchBytes, batchConcurrency).upload(actions, requestOptions, waitForIndexing);
+    }
+
     /**
      * Add several objects
      *
@@ -1066,6 +1786,18 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject addObjects(JSONArray inputArray, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        return addObjects(inputArray, /* waitForIndexing: */ false, requestOptions);
+    }
+
+    /**
+     * Add several objects, in as many batches as needed
+     *
+     * @param inputArray      contains an array of objects to add.
+     * @param waitForIndexing whether to wait until all batches have been applied.
+     * @param requestOptions  Request-specific options.
+     * @throws AlgoliaException
+     */
+    protected JSONObject addObjects(JSONArray inputArray, boolean waitForIndexing, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         try {
             JSONArray array = new JSONArray();
             for (int n = 0; n < inputArray.length(); n++) {
@@ -1074,7 +1806,7 @@ public class Index {
                 action.put("body", inputArray.getJSONObject(n));
                 array.put(action);
             }
-            return batch(array, requestOptions);
+            return uploadBatch(array, waitForIndexing, requestOptions);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
         }
@@ -1088,11 +1820,7 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject getObject(String objectID, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        try {
-            return client.getRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), /* urlParameters: */ null, false, requestOptions);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        return getObject(objectID, /* attributesToRetrieve: */ null, requestOptions);
     }
 
     /**
@@ -1104,6 +1832,22 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject getObject(String objectID, List<String> attributesToRetrieve, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        final ObjectCache cache = requestOptions == null ? objectCache : null;
+        if (cache != null) {
+            final JSONObject object = cache.get(objectID, attributesToRetrieve);
+            if (object != null) {
+                return object;
+            }
+        }
+        final long startTime = System.currentTimeMillis();
+        final JSONObject object = fetchObject(objectID, attributesToRetrieve, requestOptions);
+        if (cache != null) {
+            cache.put(objectID, attributesToRetrieve, object, startTime);
+        }
+        return object;
+    }
+
+    private JSONObject fetchObject(String objectID, List<String> attributesToRetrieve, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         try {
             String path = "/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8");
             Map<String, String> urlParameters = new HashMap<>();
@@ -1135,6 +1879,42 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject getObjects(@NonNull List<String> objectIDs, @Nullable List<String> attributesToRetrieve, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        final ObjectCache cache = requestOptions == null ? objectCache : null;
+        if (cache == null) {
+            return fetchObjects(objectIDs, attributesToRetrieve, requestOptions);
+        }
+        try {
+            // Only request the objects that are not cached.
+            final JSONObject[] objects = new JSONObject[objectIDs.size()];
+            final List<String> missingIDs = new ArrayList<>();
+            for (int i = 0; i < objects.length; ++i) {
+                objects[i] = cache.get(objectIDs.get(i), attributesToRetrieve);
+                if (objects[i] == null) {
+                    missingIDs.add(objectIDs.get(i));
+                }
+            }
+            JSONArray missingObjects = null;
+            if (!missingIDs.isEmpty()) {
+                final long startTime = System.currentTimeMillis();
+                missingObjects = fetchObjects(missingIDs, attributesToRetrieve, requestOptions).getJSONArray("results");
+                for (int i = 0; i < missingIDs.size(); ++i) {
+                    final JSONObject object = missingObjects.optJSONObject(i);
+                    if (object != null) {
+                        cache.put(missingIDs.get(i), attributesToRetrieve, object, startTime);
+                    }
+                }
+            }
+            final JSONArray results = new JSONArray();
+            for (int i = 0, j = 0; i < objects.length; ++i) {
+                results.put(objects[i] != null ? objects[i] : missingObjects.get(j++));
+            }
+            return new JSONObject().put("results", results);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    private JSONObject fetchObjects(@NonNull List<String> objectIDs, @Nullable List<String> attributesToRetrieve, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         try {
             JSONArray requests = new JSONArray();
             for (String id : objectIDs) {
@@ -1162,15 +1942,20 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject partialUpdateObject(JSONObject partialObject, String objectID, Boolean createIfNotExists, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
             String path = "/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8") + "/partial";
             Map<String, String> urlParameters = new HashMap<>();
             if (createIfNotExists != null) {
                 urlParameters.put("createIfNotExists", createIfNotExists.toString());
             }
-            return client.postRequest(path, urlParameters, partialObject.toString(), false, requestOptions);
+            task = client.postRequest(path, urlParameters, partialObject.toString(), false, requestOptions);
+            return task;
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
+        } finally {
+            written(task);
+            invalidateObject(objectID);
         }
     }
 
@@ -1193,7 +1978,7 @@ public class Index {
                 operation.put("body", obj);
                 array.put(operation);
             }
-            return batch(array, requestOptions);
+            return uploadBatch(array, /* waitForIndexing: */ false, requestOptions);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
         }
@@ -1207,10 +1992,15 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject saveObject(JSONObject object, String objectID, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
-            return client.putRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), /* urlParameters: */ null, object.toString(), requestOptions);
+            task = client.putRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), /* urlParameters: */ null, object.toString(), requestOptions);
+            return task;
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
+        } finally {
+            written(task);
+            invalidateObject(objectID);
         }
     }
 
@@ -1222,6 +2012,18 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject saveObjects(JSONArray inputArray, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        return saveObjects(inputArray, /* waitForIndexing: */ false, requestOptions);
+    }
+
+    /**
+     * Override the content of several objects, in as many batches as needed
+     *
+     * @param inputArray      contains an array of objects to update (each object must contains an objectID attribute)
+     * @param waitForIndexing whether to wait until all batches have been applied.
+     * @param requestOptions  Request-specific options.
+     * @throws AlgoliaException
+     */
+    protected JSONObject saveObjects(JSONArray inputArray, boolean waitForIndexing, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         try {
             JSONArray array = new JSONArray();
             for (int n = 0; n < inputArray.length(); n++) {
@@ -1232,7 +2034,7 @@ public class Index {
                 action.put("body", obj);
                 array.put(action);
             }
-            return batch(array, requestOptions);
+            return uploadBatch(array, waitForIndexing, requestOptions);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
         }
@@ -1249,10 +2051,15 @@ public class Index {
         if (objectID.length() == 0) {
             throw new AlgoliaException("Invalid objectID");
         }
+        JSONObject task = null;
         try {
-            return client.deleteRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), /* urlParameters: */ null, requestOptions);
+            task = client.deleteRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), /* urlParameters: */ null, requestOptions);
+            return task;
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
+        } finally {
+            written(task);
+            invalidateObject(objectID);
         }
     }
 
@@ -1274,7 +2081,7 @@ public class Index {
                 action.put("body", obj);
                 array.put(action);
             }
-            return batch(array, requestOptions);
+            return uploadBatch(array, /* waitForIndexing: */ false, requestOptions);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
         }
@@ -1332,11 +2139,16 @@ public class Index {
      *
      */
     protected JSONObject deleteBy(@NonNull Query query, RequestOptions requestOptions) throws AlgoliaException {
+        JSONObject task = null;
         try {
-            return client.postRequest("/1/indexes/" + encodedIndexName + "/deleteByQuery", query.getParameters(), new JSONObject().put("params", query.build()).toString(), false, requestOptions);
+            task = client.postRequest("/1/indexes/" + encodedIndexName + "/deleteByQuery", query.getParameters(), new JSONObject().put("params", query.build()).toString(), false, requestOptions);
+            return task;
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
+        } finally {
+            written(task);
+            invalidateAllObjects();
         }
     }
 
@@ -1348,22 +2160,54 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject search(@Nullable Query query, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        return search(query, requestOptions, null);
+    }
+
+    private JSONObject search(@Nullable Query query, @Nullable RequestOptions requestOptions, @Nullable CompletionHandler revalidationHandler) throws AlgoliaException {
         if (query == null) {
             query = new Query();
         }
 
-        String cacheKey = null;
+        final long generation = client.getIndexGeneration(rawIndexName);
+        final QueryFingerprint cacheKey = cacheKeyFor(query, generation);
+        // Request options may alter the response (e.g. a user token or extra headers), and are not part of the
+        // cache key: searches using them bypass the cache altogether.
+        final ExpiringCache<QueryFingerprint, byte[]> cache = isCacheEnabled && requestOptions == null ? searchCache : null;
+        final DiskCache diskCache = requestOptions == null ? searchDiskCache : null;
+        if (generation != searchCacheGeneration) {
+            searchCacheGeneration = generation;
+            clearGenerationlessCaches();
+        }
         byte[] rawResponse = null;
-        if (isCacheEnabled) {
-            cacheKey = query.build();
-            rawResponse = searchCache.get(cacheKey);
+        if (cache != null) {
+            final ExpiringCache.Lookup<byte[]> lookup = cache.lookup(cacheKey);
+            if (lookup != null) {
+                rawResponse = decompressFromCache(lookup.value);
+                if (rawResponse != null && lookup.stale) {
+                    revalidate(query, cacheKey, requestOptions, cache, revalidationHandler);
+                }
+            }
+        }
+        if (rawResponse == null && diskCache != null) {
+            final DiskCache.Entry entry = diskCache.get(cacheKey.parameters);
+            if (entry != null) {
+                rawResponse = entry.value;
+                if (cache != null) {
+                    // Don't let the in-memory copy outlive the persistent one.
+                    cache.put(cacheKey, compressForCache(rawResponse), Math.min(entry.expirationTime, System.currentTimeMillis() + cache.getExpirationTimeoutMillis()));
+                }
+            }
         }
         try {
             if (rawResponse == null) {
-                rawResponse = searchRaw(query, requestOptions);
-                if (isCacheEnabled) {
-                    searchCache.put(cacheKey, rawResponse);
+                final PrefixSearchCache prefixCache = prefixSearchCache;
+                if (prefixCache != null && requestOptions == null) {
+                    final JSONObject content = prefixCache.get(query);
+                    if (content != null) {
+                        return content;
+                    }
                 }
+                rawResponse = searchNetwork(query, cacheKey, requestOptions, cache);
             }
             return Client._getJSONObject(rawResponse);
         } catch (UnsupportedEncodingException | JSONException e) {
@@ -1371,6 +2215,173 @@ public class Index {
         }
     }
 
+    /**
+     * Refresh a stale search result in the background.
+     *
+     * @param revalidationHandler Listener notified of the fresh result. May be null.
+     */
+    private void revalidate(@NonNull final Query query, @NonNull final QueryFingerprint cacheKey, @Nullable final RequestOptions requestOptions, @NonNull final ExpiringCache<QueryFingerprint, byte[]> cache, @Nullable final CompletionHandler revalidationHandler) {
+        client.searchExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject content = null;
+                AlgoliaException error = null;
+                try {
+                    content = Client._getJSONObject(searchNetwork(query, cacheKey, requestOptions, cache));
+                } catch (AlgoliaException e) {
+                    error = e;
+                } catch (UnsupportedEncodingException | JSONException e) {
+                    error = new AlgoliaException(e.getMessage());
+                }
+                if (revalidationHandler != null) {
+                    final JSONObject finalContent = content;
+                    final AlgoliaException finalError = error;
+                    client.completionExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            revalidationHandler.requestCompleted(finalContent, finalError);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private byte[] searchNetwork(@NonNull final Query query, @NonNull final QueryFingerprint cacheKey, @Nullable final RequestOptions requestOptions, @Nullable final ExpiringCache<QueryFingerprint, byte[]> cache) throws AlgoliaException {
+        if (requestOptions == null) {
+            // Identical searches issued concurrently share a single network call. Request options may alter
+            // the response, so searches using them always go to the network on their own.
+            return inFlightSearches.execute(cacheKey, new InFlightRequests.Call<byte[]>() {
+                @NonNull
+                @Override public byte[] call() throws AlgoliaException {
+                    return searchRawAndCache(query, cacheKey, null, cache);
+                }
+            });
+        } else {
+            return searchRawAndCache(query, cacheKey, requestOptions, cache);
+        }
+    }
+
+    private byte[] searchRawAndCache(@NonNull Query query, @NonNull QueryFingerprint cacheKey, @Nullable RequestOptions requestOptions, @Nullable ExpiringCache<QueryFingerprint, byte[]> cache) throws AlgoliaException {
+        final long startTime = System.nanoTime();
+        byte[] rawResponse = searchRaw(query, requestOptions);
+        if (cache != null) {
+            cache.recordLoad(System.nanoTime() - startTime);
+        }
+        if (cacheKey.generation != client.getIndexGeneration(rawIndexName)) {
+            // The index has been written to during the search: the response may predate the write.
+            return rawResponse;
+        }
+        if (cache != null) {
+            cache.put(cacheKey, compressForCache(rawResponse));
+        }
+        if (requestOptions != null) {
+            return rawResponse; // not cacheable
+        }
+        final DiskCache diskCache = searchDiskCache;
+        if (diskCache != null) {
+            diskCache.put(cacheKey.parameters, rawResponse, System.currentTimeMillis() + searchDiskCacheTimeout);
+        }
+        final PrefixSearchCache prefixCache = prefixSearchCache;
+        if (prefixCache != null) {
+            prefixCache.put(query, rawResponse);
+        }
+        return rawResponse;
+    }
+
+    /**
+     * Compute the key of a query in the in-memory search cache, for multiple queries.
+     *
+     * @param query The query.
+     * @return The cache key, or null if the search cache is disabled.
+     */
+    @Nullable QueryFingerprint searchCacheKey(@NonNull Query query) {
+        return isCacheEnabled && searchCache != null ? cacheKeyFor(query, client.getIndexGeneration(rawIndexName)) : null;
+    }
+
+    /**
+     * Look up a valid result in the in-memory search cache, for multiple queries.
+     *
+     * @param cacheKey The query's cache key, as returned by {@link #searchCacheKey(Query)}.
+     * @return A copy of the cached result, or null if not cached.
+     */
+    @Nullable JSONObject getCachedSearchResult(@NonNull QueryFingerprint cacheKey) {
+        final ExpiringCache<QueryFingerprint, byte[]> cache = isCacheEnabled ? searchCache : null;
+        final byte[] cachedResult = cache != null ? cache.get(cacheKey) : null;
+        final byte[] rawResult = cachedResult != null ? decompressFromCache(cachedResult) : null;
+        try {
+            return rawResult != null ? Client._getJSONObject(rawResult) : null;
+        } catch (UnsupportedEncodingException | JSONException e) {
+            return null; // should never happen: we only cache valid results
+        }
+    }
+
+    /**
+     * Put a result in the in-memory search cache, for multiple queries.
+     * Nothing is cached if this index has been written to since the cache key was computed.
+     *
+     * @param cacheKey The query's cache key, as returned by {@link #searchCacheKey(Query)}.
+     * @param result   The query's result.
+     */
+    void putCachedSearchResult(@NonNull QueryFingerprint cacheKey, @NonNull JSONObject result) {
+        final ExpiringCache<QueryFingerprint, byte[]> cache = isCacheEnabled ? searchCache : null;
+        if (cache == null || cacheKey.generation != client.getIndexGeneration(rawIndexName)) {
+            return;
+        }
+        try {
+            // Cache the result as a plain search would return it, i.e. without the index name.
+            final Object indexName = result.remove("index");
+            final byte[] rawResult = result.toString().getBytes("UTF-8");
+            if (indexName != null) {
+                result.put("index", indexName);
+            }
+            cache.put(cacheKey, compressForCache(rawResult));
+        } catch (UnsupportedEncodingException | JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+    }
+
+    /**
+     * Compress a response for the in-memory search cache, if compression is enabled.
+     */
+    private @NonNull byte[] compressForCache(@NonNull byte[] rawResponse) {
+        final CacheCompressor compressor = searchCacheCompressor;
+        return compressor != null ? compressor.compress(rawResponse) : rawResponse;
+    }
+
+    /**
+     * Decompress a value of the in-memory search cache.
+     *
+     * @return The raw response, or null if it cannot be decompressed with the current settings.
+     */
+    private @Nullable byte[] decompressFromCache(@NonNull byte[] value) {
+        if (!CacheCompressor.isCompressed(value)) {
+            return value;
+        }
+        final CacheCompressor compressor = searchCacheCompressor;
+        return compressor != null ? compressor.decompress(value) : null;
+    }
+
+    /**
+     * Build the in-memory search cache key of a query. It includes the index name and generation, so that results
+     * cached before a write are never looked up after it.
+     */
+    private @NonNull QueryFingerprint cacheKeyFor(@NonNull Query query, long generation) {
+        return query.fingerprint().forIndex(rawIndexName, generation, searchCacheKeyVerified);
+    }
+
+    private void clearGenerationlessCaches() {
+        final DiskCache diskCache = searchDiskCache;
+        if (diskCache != null) {
+            // May run on the search path: leave the file deletion to the disk cache's writer.
+            diskCache.clearAsync();
+        }
+        final PrefixSearchCache prefixCache = prefixSearchCache;
+        if (prefixCache != null) {
+            prefixCache.clear();
+        }
+    }
+
     /**
      * Search inside the index
      *
@@ -1410,6 +2421,8 @@ public class Index {
             while (true) {
                 JSONObject obj = client.getRequest("/1/indexes/" + encodedIndexName + "/task/" + URLEncoder.encode(taskID, "UTF-8"), /* urlParameters: */ null, false, /* requestOptions: */ null);
                 if (obj.getString("status").equals("published")) {
+                    // Results cached while the task was pending may predate it.
+                    client.indexWritten(rawIndexName, /* taskID: */ null);
                     return obj;
                 }
                 try {
@@ -1477,7 +2490,15 @@ public class Index {
     protected JSONObject setSettings(JSONObject settings, boolean forwardToReplicas, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         Map<String, String> urlParameters = new HashMap<>();
         urlParameters.put("forwardToReplicas", Boolean.toString(forwardToReplicas));
-        return client.putRequest("/1/indexes/" + encodedIndexName + "/settings", urlParameters, settings.toString(), requestOptions);
+        JSONObject task = null;
+        try {
+            task = client.putRequest("/1/indexes/" + encodedIndexName + "/settings", urlParameters, settings.toString(), requestOptions);
+            return task;
+        } finally {
+            written(task);
+            // Settings such as unretrievable attributes affect retrieved objects.
+            invalidateAllObjects();
+        }
     }
 
     /**
@@ -1487,7 +2508,37 @@ public class Index {
      * @throws AlgoliaException
      */
     protected JSONObject clearIndex(@Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return client.postRequest("/1/indexes/" + encodedIndexName + "/clear", /* urlParameters: */ null, "", false, requestOptions);
+        JSONObject task = null;
+        try {
+            task = client.postRequest("/1/indexes/" + encodedIndexName + "/clear", /* urlParameters: */ null, "", false, requestOptions);
+            return task;
+        } finally {
+            written(task);
+            invalidateAllObjects();
+        }
+    }
+
+    /**
+     * Notify the client that this index has been written to, invalidating search caches.
+     *
+     * @param task The write's response, if any.
+     */
+    private void written(@Nullable JSONObject task) {
+        client.indexWritten(rawIndexName, Client.taskIDOf(task));
+    }
+
+    private void invalidateObject(String objectID) {
+        final ObjectCache cache = objectCache;
+        if (cache != null && objectID != null) {
+            cache.invalidate(objectID);
+        }
+    }
+
+    private void invalidateAllObjects() {
+        final ObjectCache cache = objectCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
     }
 
     protected JSONObject browse(@NonNull Query query, @Nullable RequestOptions requestOptions) throws AlgoliaException {
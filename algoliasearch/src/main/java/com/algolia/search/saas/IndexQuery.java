@@ -24,6 +24,7 @@
 package com.algolia.search.saas;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 /**
  * A search query targeting a specific index.
@@ -32,14 +33,19 @@ public class IndexQuery {
     private final String indexName;
     private final Query query;
 
+    /** The targeted index, if known. Used to look up its search cache. */
+    private final Index index;
+
     public IndexQuery(@NonNull String indexName, @NonNull Query query)  {
         this.indexName = indexName;
         this.query = query;
+        this.index = null;
     }
 
     public IndexQuery(@NonNull Index index, @NonNull Query query)  {
         this.indexName = index.getRawIndexName();
         this.query = query;
+        this.index = index;
     }
 
     public @NonNull String getIndexName() {
@@ -49,4 +55,8 @@ public class IndexQuery {
     public @NonNull Query getQuery() {
         return query;
     }
+
+    @Nullable Index getIndex() {
+        return index;
+    }
 }
\ No newline at end of file
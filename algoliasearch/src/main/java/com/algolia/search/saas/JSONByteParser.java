@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A JSON parser decoding UTF-8 bytes straight into `org.json` objects.
+ * <p>
+ * The platform's `JSONObject` can only be built from a `String`, which forces the whole response to be decoded into
+ * an intermediate character buffer first. This parser reads the raw bytes in a single pass instead, and only
+ * materializes the strings that end up in the result. Object keys, which repeat for every hit of a search response,
+ * are additionally shared through a small cache.
+ * </p>
+ * <p>
+ * The accepted syntax is strict JSON (RFC 8259). Numbers are converted like `JSONTokener` does: integral values
+ * become an `Integer` or a `Long`, other values a `Double`.
+ * </p>
+ * <p>
+ * Instances are not thread-safe; use one per parse.
+ * </p>
+ */
+class JSONByteParser {
+    /** Number of slots in the object key cache. Must be a power of two. */
+    private static final int KEY_CACHE_SIZE = 256;
+
+    /** Maximum length (in bytes) of object keys eligible for caching. */
+    private static final int MAX_CACHED_KEY_LENGTH = 32;
+
+    private final byte[] input;
+    private int position;
+    private final int end;
+
+    /** Scratch buffer used to decode strings. */
+    private char[] chars = new char[64];
+
+    /** Recently seen object keys, indexed by hash. Only ASCII keys without escapes are cached. */
+    private final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+    /**
+     * Create a new parser.
+     *
+     * @param input UTF-8 encoded JSON text.
+     */
+    JSONByteParser(@NonNull byte[] input) {
+        this.input = input;
+        this.position = 0;
+        this.end = input.length;
+    }
+
+    /**
+     * Parse a JSON object.
+     *
+     * @param input UTF-8 encoded JSON text, whose top-level value must be an object.
+     * @return The decoded object.
+     * @throws JSONException If the input is not a valid JSON object.
+     */
+    static @NonNull JSONObject parseObject(@NonNull byte[] input) throws JSONException {
+        JSONByteParser parser = new JSONByteParser(input);
+        parser.skipWhitespace();
+        JSONObject object = parser.readObject();
+        parser.skipWhitespace();
+        if (parser.position != parser.end) {
+            throw parser.syntaxError("Unexpected trailing content");
+        }
+        return object;
+    }
+
+    // ----------------------------------------------------------------------
+    // Values
+    // ----------------------------------------------------------------------
+
+    private Object readValue() throws JSONException {
+        if (position >= end) {
+            throw syntaxError("Unexpected end of input");
+        }
+        switch (input[position]) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString(false);
+            case 't':
+                expectLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectLiteral("null");
+                return JSONObject.NULL;
+            default:
+                return readNumber();
+        }
+    }
+
+    private JSONObject readObject() throws JSONException {
+        expect('{');
+        JSONObject object = new JSONObject();
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw syntaxError("Expected object key");
+            }
+            String key = readString(true);
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            object.put(key, readValue());
+            skipWhitespace();
+            byte next = next();
+            if (next == '}') {
+                return object;
+            } else if (next != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private JSONArray readArray() throws JSONException {
+        expect('[');
+        JSONArray array = new JSONArray();
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return array;
+        }
+        while (true) {
+            skipWhitespace();
+            array.put(readValue());
+            skipWhitespace();
+            byte next = next();
+            if (next == ']') {
+                return array;
+            } else if (next != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+        }
+    }
+
+    private String readString(boolean isKey) throws JSONException {
+        expect('"');
+        final int start = position;
+        // Fast path: ASCII without escapes, which covers virtually all keys and most values.
+        int hash = 0;
+        while (position < end) {
+            byte b = input[position];
+            if (b == '"') {
+                final int length = position - start;
+                position++;
+                if (isKey && length <= MAX_CACHED_KEY_LENGTH) {
+                    return cachedKey(start, length, hash);
+                }
+                return newAsciiString(start, length);
+            }
+            if (b == '\\' || b < 0x20) {  // bytes >= 0x80 are negative
+                break;
+            }
+            hash = 31 * hash + b;
+            position++;
+        }
+        // Slow path: decode escapes and multi-byte sequences.
+        int length = position - start;
+        ensureCapacity(length + 16);
+        for (int i = 0; i < length; ++i) {
+            chars[i] = (char) input[start + i];
+        }
+        while (true) {
+            if (position >= end) {
+                throw syntaxError("Unterminated string");
+            }
+            int b = input[position++];
+            if (b == '"') {
+                return new String(chars, 0, length);
+            }
+            ensureCapacity(length + 2);
+            if (b == '\\') {
+                chars[length++] = readEscape();
+            } else if (b >= 0x20) {
+                chars[length++] = (char) b;
+            } else if (b >= 0) {
+                throw syntaxError("Unescaped control character in string");
+            } else {
+                length = decodeMultiByte(b & 0xFF, length);
+            }
+        }
+    }
+
+    private char readEscape() throws JSONException {
+        if (position >= end) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        byte b = input[position++];
+        switch (b) {
+            case '"':
+                return '"';
+            case '\\':
+                return '\\';
+            case '/':
+                return '/';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                if (position + 4 > end) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+                int value = 0;
+                for (int i = 0; i < 4; ++i) {
+                    int digit = Character.digit(input[position++], 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    /**
+     * Decode a multi-byte UTF-8 sequence into the scratch buffer.
+     *
+     * @param first  First byte of the sequence, as an unsigned value.
+     * @param length Current length of the scratch buffer.
+     * @return New length of the scratch buffer.
+     */
+    private int decodeMultiByte(int first, int length) throws JSONException {
+        int codePoint;
+        int continuationCount;
+        if ((first & 0xE0) == 0xC0) {
+            codePoint = first & 0x1F;
+            continuationCount = 1;
+        } else if ((first & 0xF0) == 0xE0) {
+            codePoint = first & 0x0F;
+            continuationCount = 2;
+        } else if ((first & 0xF8) == 0xF0) {
+            codePoint = first & 0x07;
+            continuationCount = 3;
+        } else {
+            throw syntaxError("Invalid UTF-8 sequence");
+        }
+        if (position + continuationCount > end) {
+            throw syntaxError("Truncated UTF-8 sequence");
+        }
+        for (int i = 0; i < continuationCount; ++i) {
+            int b = input[position++] & 0xFF;
+            if ((b & 0xC0) != 0x80) {
+                throw syntaxError("Invalid UTF-8 sequence");
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            // NOTE: `Character.highSurrogate()` and `lowSurrogate()` are not available on older API levels.
+            final int offset = codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+            chars[length++] = (char) (Character.MIN_HIGH_SURROGATE + (offset >>> 10));
+            chars[length++] = (char) (Character.MIN_LOW_SURROGATE + (offset & 0x3FF));
+        } else {
+            chars[length++] = (char) codePoint;
+        }
+        return length;
+    }
+
+    private Object readNumber() throws JSONException {
+        final int start = position;
+        boolean integral = true;
+        if (peek() == '-') {
+            position++;
+        }
+        if (!isDigit(peek())) {
+            throw syntaxError("Unexpected character");
+        }
+        while (position < end) {
+            byte b = input[position];
+            if (isDigit(b)) {
+                position++;
+            } else if (b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+                integral = false;
+                position++;
+            } else {
+                break;
+            }
+        }
+        final int length = position - start;
+        // Most numbers in responses are small integers: parse them without allocating a string.
+        if (integral && length <= 18) {
+            long value = 0;
+            int i = input[start] == '-' ? start + 1 : start;
+            for (; i < position; ++i) {
+                value = value * 10 + (input[i] - '0');
+            }
+            if (input[start] == '-') {
+                value = -value;
+            }
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return (int) value;
+            }
+            return value;
+        }
+        String literal = newAsciiString(start, length);
+        try {
+            if (integral) {
+                try {
+                    return Long.parseLong(literal);
+                } catch (NumberFormatException e) {
+                    // Too large for a long: fall back to a double, like `JSONTokener` does.
+                }
+            }
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number");
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Utils
+    // ----------------------------------------------------------------------
+
+    private String cachedKey(int start, int length, int hash) {
+        final int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+        String cached = keyCache[slot];
+        if (cached != null && cached.length() == length) {
+            boolean equal = true;
+            for (int i = 0; i < length; ++i) {
+                if (cached.charAt(i) != input[start + i]) {
+                    equal = false;
+                    break;
+                }
+            }
+            if (equal) {
+                return cached;
+            }
+        }
+        String key = newAsciiString(start, length);
+        keyCache[slot] = key;
+        return key;
+    }
+
+    private String newAsciiString(int start, int length) {
+        ensureCapacity(length);
+        for (int i = 0; i < length; ++i) {
+            chars[i] = (char) input[start + i];
+        }
+        return new String(chars, 0, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (chars.length < capacity) {
+            char[] newChars = new char[Math.max(capacity, chars.length * 2)];
+            System.arraycopy(chars, 0, newChars, 0, chars.length);
+            chars = newChars;
+        }
+    }
+
+    private void expectLiteral(String literal) throws JSONException {
+        if (position + literal.length() > end) {
+            throw syntaxError("Unexpected end of input");
+        }
+        for (int i = 0; i < literal.length(); ++i) {
+            if (input[position + i] != literal.charAt(i)) {
+                throw syntaxError("Unexpected character");
+            }
+        }
+        position += literal.length();
+    }
+
+    private void expect(char c) throws JSONException {
+        if (next() != c) {
+            position--;
+            throw syntaxError("Expected '" + c + "'");
+        }
+    }
+
+    private byte peek() {
+        return position < end ? input[position] : 0;
+    }
+
+    private byte next() throws JSONException {
+        if (position >= end) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return input[position++];
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            byte b = input[position];
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                position++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at byte " + position);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples, and computes percentiles over them.
+ * This class is thread-safe.
+ */
+class LatencySampler {
+    /** Ring buffer of samples (ms). */
+    private final long[] samples;
+
+    /** Number of valid samples in the buffer. */
+    private int count;
+
+    /** Index where the next sample will be written. */
+    private int nextIndex;
+
+    /**
+     * Create a new sampler.
+     *
+     * @param capacity Maximum number of samples kept. Older samples are discarded first.
+     */
+    LatencySampler(int capacity) {
+        samples = new long[capacity];
+    }
+
+    /**
+     * Record a new sample.
+     *
+     * @param latency The measured latency (ms).
+     */
+    synchronized void record(long latency) {
+        samples[nextIndex] = latency;
+        nextIndex = (nextIndex + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Get the number of samples currently kept.
+     *
+     * @return The number of samples.
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Compute a percentile of the kept samples.
+     *
+     * @param percentile The percentile to compute, between 0 and 100.
+     * @return The latency below which this percentage of samples fall (ms), or -1 if there are no samples.
+     */
+    long percentile(double percentile) {
+        final long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
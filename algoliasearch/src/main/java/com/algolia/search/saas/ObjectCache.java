@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A cache of objects retrieved by ID, invalidated by writes.
+ * <p>
+ * Objects are keyed by ID and list of retrieved attributes. They are stored serialized, so that callers get their
+ * own copy and may modify it.
+ * </p>
+ * <p>
+ * Writes to an index are applied asynchronously by the engine: for a while after a write has been acknowledged,
+ * reads may still return the previous version of an object. Therefore, a write not only evicts the objects it
+ * touches, but also prevents them from being cached again for a short settle period.
+ * </p>
+ */
+class ObjectCache {
+    /** Duration after a write during which the objects it touched are not cached (ms). */
+    static final long WRITE_SETTLE_PERIOD = 5000;
+
+    /** Above this number of objects, a batch invalidates the whole cache rather than individual objects. */
+    private static final int MAX_BATCH_INVALIDATIONS = 100;
+
+    /** Above this number of tracked writes, writes older than the settle period are pruned. */
+    private static final int MAX_TRACKED_WRITES = 1000;
+
+    /** Cached objects, keyed by ID, then by retrieved attributes. Maps are never modified once cached. */
+    private final ExpiringCache<String, Map<String, String>> objects;
+
+    /** Date of the last write touching an object, by ID (ms since the epoch). */
+    private final ConcurrentMap<String, Long> writeTimes = new ConcurrentHashMap<>();
+
+    /** Date of the last write touching all objects (ms since the epoch). */
+    private volatile long globalWriteTime;
+
+    /**
+     * Create a new object cache.
+     *
+     * @param timeoutInSeconds Duration during which an object is cached.
+     * @param maxObjects       Maximum number of cached objects.
+     */
+    ObjectCache(int timeoutInSeconds, int maxObjects) {
+        objects = new ExpiringCache<>(timeoutInSeconds, maxObjects);
+    }
+
+    /**
+     * Get an object.
+     *
+     * @param objectID             The object's ID.
+     * @param attributesToRetrieve The retrieved attributes, or null for the default.
+     * @return A copy of the object, or null if not cached.
+     */
+    @Nullable JSONObject get(@NonNull String objectID, @Nullable List<String> attributesToRetrieve) {
+        final Map<String, String> versions = objects.get(objectID);
+        final String json = versions != null ? versions.get(keyFor(attributesToRetrieve)) : null;
+        try {
+            return json != null ? new JSONObject(json) : null;
+        } catch (JSONException e) {
+            return null; // should never happen: we serialized it ourselves
+        }
+    }
+
+    /**
+     * Cache an object, unless it has been written recently.
+     *
+     * @param objectID             The object's ID.
+     * @param attributesToRetrieve The retrieved attributes, or null for the default.
+     * @param object               The object.
+     * @param readStartTime        When the read that returned the object was started (ms since the epoch).
+     */
+    void put(@NonNull String objectID, @Nullable List<String> attributesToRetrieve, @NonNull JSONObject object, long readStartTime) {
+        if (isSettling(objectID, readStartTime)) {
+            return;
+        }
+        final Map<String, String> previousVersions = objects.get(objectID);
+        final Map<String, String> versions = previousVersions != null ? new HashMap<>(previousVersions) : new HashMap<String, String>();
+        versions.put(keyFor(attributesToRetrieve), object.toString());
+        objects.put(objectID, Collections.unmodifiableMap(versions));
+        // A write may have happened while we were storing.
+        if (isSettling(objectID, readStartTime)) {
+            objects.remove(objectID);
+        }
+    }
+
+    /**
+     * Invalidate an object, after (or while) writing it.
+     *
+     * @param objectID The object's ID.
+     */
+    void invalidate(@NonNull String objectID) {
+        final long now = System.currentTimeMillis();
+        if (writeTimes.size() >= MAX_TRACKED_WRITES) {
+            final Iterator<Long> iterator = writeTimes.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() < now - WRITE_SETTLE_PERIOD) {
+                    iterator.remove();
+                }
+            }
+        }
+        writeTimes.put(objectID, now);
+        objects.remove(objectID);
+    }
+
+    /**
+     * Invalidate the objects touched by a batch of write operations.
+     *
+     * @param actions The batch operations.
+     */
+    void invalidate(@NonNull JSONArray actions) {
+        if (actions.length() > MAX_BATCH_INVALIDATIONS) {
+            invalidateAll();
+            return;
+        }
+        for (int i = 0; i < actions.length(); ++i) {
+            final JSONObject action = actions.optJSONObject(i);
+            if (action == null) {
+                continue;
+            }
+            String objectID = action.optString("objectID", null);
+            if (objectID == null) {
+                final JSONObject body = action.optJSONObject("body");
+                objectID = body != null ? body.optString("objectID", null) : null;
+            }
+            if (objectID != null) {
+                invalidate(objectID);
+            } else if (!"addObject".equals(action.optString("action"))) {
+                // An operation on unknown objects (e.g. clearing the index).
+                invalidateAll();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Invalidate all objects, after (or while) a write touching an unknown set of objects.
+     */
+    void invalidateAll() {
+        globalWriteTime = System.currentTimeMillis();
+        writeTimes.clear();
+        objects.reset();
+    }
+
+    /**
+     * Remove all objects, without considering them written.
+     */
+    void clear() {
+        objects.reset();
+    }
+
+    private boolean isSettling(@NonNull String objectID, long readStartTime) {
+        final long settleLimit = readStartTime - WRITE_SETTLE_PERIOD;
+        final Long writeTime = writeTimes.get(objectID);
+        if (writeTime != null && writeTime < settleLimit) {
+            writeTimes.remove(objectID, writeTime);
+        }
+        return globalWriteTime >= settleLimit || (writeTime != null && writeTime >= settleLimit);
+    }
+
+    private static @NonNull String keyFor(@Nullable List<String> attributesToRetrieve) {
+        StringBuilder key = new StringBuilder();
+        if (attributesToRetrieve != null) {
+            for (String attribute : attributesToRetrieve) {
+                key.append(attribute).append(',');
+            }
+        } else {
+            key.append('*');
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Single-pass UTF-8 percent-encoder for URL query strings.
+ * <p>
+ * The output is identical to <code>URLEncoder.encode(value, "UTF-8").replace("+", "%20")</code>: ASCII letters,
+ * digits and <code>.-*_</code> are kept as is, spaces become <code>%20</code>, and every other character is
+ * percent-encoded as UTF-8 (unpaired surrogates being encoded as <code>?</code>, like the platform charset encoder
+ * does). Unlike this idiom, it writes straight into the caller's builder, without any intermediate string or byte
+ * array.
+ * </p>
+ */
+final class PercentEncoder {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /** Whether each ASCII character may be output as is. */
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; ++c) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; ++c) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; ++c) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['.'] = true;
+        UNRESERVED['-'] = true;
+        UNRESERVED['*'] = true;
+        UNRESERVED['_'] = true;
+    }
+
+    private PercentEncoder() {
+        // Not instantiable.
+    }
+
+    /**
+     * Percent-encode a string.
+     *
+     * @param value The string to encode.
+     * @return The encoded string.
+     */
+    static @NonNull String encode(@NonNull CharSequence value) {
+        return encode(value, new StringBuilder(value.length() + 16)).toString();
+    }
+
+    /**
+     * Percent-encode a string into a builder.
+     *
+     * @param value The string to encode.
+     * @param out   The builder to append to.
+     * @return The builder (used to chain calls).
+     */
+    static @NonNull StringBuilder encode(@NonNull CharSequence value, @NonNull StringBuilder out) {
+        final int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                if (UNRESERVED[c]) {
+                    out.append(c);
+                } else if (c == ' ') {
+                    out.append("%20");
+                } else {
+                    appendByte(out, c);
+                }
+            } else if (c < 0x800) {
+                appendByte(out, 0xC0 | (c >> 6));
+                appendByte(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendByte(out, 0xF0 | (codePoint >> 18));
+                appendByte(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(out, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                appendByte(out, '?'); // unpaired surrogate: unmappable
+            } else {
+                appendByte(out, 0xE0 | (c >> 12));
+                appendByte(out, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(out, 0x80 | (c & 0x3F));
+            }
+        }
+        return out;
+    }
+
+    private static void appendByte(@NonNull StringBuilder out, int b) {
+        out.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+}
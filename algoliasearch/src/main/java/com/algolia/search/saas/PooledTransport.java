@@ -0,0 +1,647 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A transport keeping a bounded pool of keep-alive connections per host.
+ * <p>
+ * {@link HttpURLConnectionTransport} relies on the platform's connection pool, whose limits are process-wide system
+ * properties. This transport speaks HTTP/1.1 over its own sockets instead, hence controls their reuse:
+ * </p>
+ * <ul>
+ *     <li>each host has at most {@code maxConnectionsPerHost} open connections; further requests wait for one to be
+ *     released, up to their connect timeout;</li>
+ *     <li>at most {@code maxIdleConnectionsPerHost} of them are kept open between requests;</li>
+ *     <li>idle connections are closed once they have been idle for longer than the keep-alive duration.</li>
+ * </ul>
+ * <p>
+ * Hit, miss and eviction counters help tune these limits. A request failing on a reused connection before any
+ * response was received (typically because the server closed the idle connection) is retried on another one.
+ * </p>
+ * <p>
+ * Use it with {@link AbstractClient#setTransport(Transport)}. Call {@link #evictAll()} to close the idle connections
+ * when the transport is no longer needed.
+ * </p>
+ */
+public class PooledTransport implements Transport {
+    /** Default maximum number of open connections per host. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+    /** Default maximum number of idle connections kept per host. */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+
+    /** Default duration after which an idle connection is closed (ms). */
+    public static final long DEFAULT_KEEP_ALIVE_DURATION = 60000;
+
+    /** Maximum length of a status or header line (bytes). */
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    /** Size of the pooled buffers used to read responses whose length is unknown (bytes). */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Maximum number of idle read buffers retained. */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /** An open connection to a host. */
+    private static class Connection {
+        final @NonNull Socket socket;
+        final @NonNull InputStream input;
+        final @NonNull OutputStream output;
+
+        /** Whether the current exchange has received part of its response. */
+        boolean responseStarted;
+
+        /** When the connection was last released (ms since boot, as per `System.nanoTime()`). */
+        long idleSince;
+
+        Connection(@NonNull Socket socket) throws IOException {
+            this.socket = socket;
+            this.input = new BufferedInputStream(socket.getInputStream());
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /** The connections to a host. */
+    private static class Route {
+        /** Idle connections, most recently used first. */
+        final Deque<Connection> idle = new ArrayDeque<>();
+
+        /** Number of open connections, idle or not. */
+        int openCount;
+    }
+
+    /** The outcome of an exchange. */
+    private static class Exchange {
+        final @NonNull HttpResponse response;
+
+        /** Whether the connection can serve another exchange. */
+        final boolean reusable;
+
+        Exchange(@NonNull HttpResponse response, boolean reusable) {
+            this.response = response;
+            this.reusable = reusable;
+        }
+    }
+
+    private final int maxConnectionsPerHost;
+    private final int maxIdleConnectionsPerHost;
+    private final long keepAliveDuration;
+
+    /** Connections, by route (scheme, host and port). Guarded by `this`. */
+    private final Map<String, Route> routes = new HashMap<>();
+
+    /** Pool of read buffers. */
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    // Statistics. Guarded by `this`.
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    // ----------------------------------------------------------------------
+    // Initialization
+    // ----------------------------------------------------------------------
+
+    /**
+     * Create a new transport with default limits.
+     */
+    public PooledTransport() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_DURATION);
+    }
+
+    /**
+     * Create a new transport.
+     *
+     * @param maxConnectionsPerHost     Maximum number of open connections per host. Must be positive.
+     * @param maxIdleConnectionsPerHost Maximum number of idle connections kept per host. Zero disables reuse.
+     * @param keepAliveDuration         Duration after which an idle connection is closed (ms).
+     */
+    public PooledTransport(int maxConnectionsPerHost, int maxIdleConnectionsPerHost, long keepAliveDuration) {
+        if (maxConnectionsPerHost <= 0 || maxIdleConnectionsPerHost < 0 || keepAliveDuration < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+        this.keepAliveDuration = keepAliveDuration;
+    }
+
+    // ----------------------------------------------------------------------
+    // Statistics
+    // ----------------------------------------------------------------------
+
+    /**
+     * @return the number of requests served by a pooled connection.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of requests that had to open a new connection.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the number of idle connections closed for having exceeded the keep-alive duration.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the number of idle connections currently kept, all hosts included.
+     */
+    public synchronized int getIdleConnectionCount() {
+        int count = 0;
+        for (Route route : routes.values()) {
+            count += route.idle.size();
+        }
+        return count;
+    }
+
+    // ----------------------------------------------------------------------
+    // Pool management
+    // ----------------------------------------------------------------------
+
+    /**
+     * Close the connections that have been idle for longer than the keep-alive duration.
+     * This happens automatically whenever a connection is acquired.
+     */
+    public void evictIdleConnections() {
+        closeAll(removeIdle(false));
+    }
+
+    /**
+     * Close all idle connections. Connections in use are closed when released.
+     */
+    public void evictAll() {
+        closeAll(removeIdle(true));
+    }
+
+    private synchronized @NonNull List<Connection> removeIdle(boolean all) {
+        final List<Connection> removed = new ArrayList<>();
+        final long now = System.nanoTime() / 1000000;
+        final Iterator<Route> routeIterator = routes.values().iterator();
+        while (routeIterator.hasNext()) {
+            final Route route = routeIterator.next();
+            // Oldest connections are at the end.
+            while (!route.idle.isEmpty() && (all || now - route.idle.peekLast().idleSince > keepAliveDuration)) {
+                removed.add(route.idle.removeLast());
+                route.openCount--;
+                if (!all) {
+                    evictionCount++;
+                }
+            }
+            if (route.openCount == 0) {
+                routeIterator.remove();
+            }
+        }
+        if (!removed.isEmpty()) {
+            notifyAll();
+        }
+        return removed;
+    }
+
+    /**
+     * Take an idle connection to a route, or reserve a slot for a new one.
+     *
+     * @return An idle connection, or null if the caller must open a new one.
+     * @throws SocketTimeoutException if no slot became available within the connect timeout.
+     */
+    private synchronized @Nullable Connection acquire(@NonNull String routeKey, @NonNull HttpRequest request) throws IOException {
+        final long deadline = System.nanoTime() / 1000000 + request.connectTimeout;
+        while (true) {
+            Route route = routes.get(routeKey);
+            if (route == null) {
+                route = new Route();
+                routes.put(routeKey, route);
+            }
+            final Connection connection = route.idle.pollFirst();
+            if (connection != null) {
+                hitCount++;
+                return connection;
+            }
+            if (route.openCount < maxConnectionsPerHost) {
+                route.openCount++;
+                missCount++;
+                return null;
+            }
+            final long remaining = deadline - System.nanoTime() / 1000000;
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("No connection available to " + request.host);
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Give a connection slot back, keeping the connection for reuse if possible.
+     *
+     * @param connection The connection, or null if it could not be opened.
+     * @param reusable   Whether the connection can serve another exchange.
+     */
+    private void release(@NonNull String routeKey, @Nullable Connection connection, boolean reusable) {
+        synchronized (this) {
+            final Route route = routes.get(routeKey);
+            if (connection != null && reusable && route.idle.size() < maxIdleConnectionsPerHost) {
+                connection.idleSince = System.nanoTime() / 1000000;
+                connection.responseStarted = false;
+                route.idle.addFirst(connection);
+                connection = null;
+            } else {
+                route.openCount--;
+                if (route.openCount == 0) {
+                    routes.remove(routeKey);
+                }
+            }
+            notifyAll();
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private static void closeAll(@NonNull List<Connection> connections) {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Transport
+    // ----------------------------------------------------------------------
+
+    @Override
+    public @NonNull HttpResponse execute(@NonNull HttpRequest request) throws IOException {
+        final String protocol = request.url.getProtocol();
+        if (!protocol.equals("https") && !protocol.equals("http")) {
+            throw new ProtocolException("Unsupported protocol: " + protocol);
+        }
+        final int port = request.url.getPort() != -1 ? request.url.getPort() : request.url.getDefaultPort();
+        final String routeKey = protocol + "://" + request.url.getHost() + ":" + port;
+        evictIdleConnections();
+        while (true) {
+            final Connection pooled = acquire(routeKey, request);
+            Connection connection = pooled;
+            boolean reusable = false;
+            try {
+                if (connection == null) {
+                    connection = connect(request.url, port, request.connectTimeout);
+                }
+                final Connection cancellableConnection = connection;
+                // Closing the socket aborts blocking I/O, which interrupting the thread does not.
+                request.setCancellationHandler(new Runnable() {
+                    @Override
+                    public void run() {
+                        cancellableConnection.close();
+                    }
+                });
+                if (request.isCancelled()) {
+                    throw new InterruptedIOException("Request cancelled");
+                }
+                final Exchange exchange = exchange(connection, request);
+                reusable = exchange.reusable && !request.isCancelled();
+                return exchange.response;
+            } catch (IOException e) {
+                // The server may have closed an idle connection: try another one, unless the request went through.
+                if (pooled != null && !pooled.responseStarted && !request.isCancelled()) {
+                    continue;
+                }
+                throw e;
+            } finally {
+                request.setCancellationHandler(null);
+                release(routeKey, connection, reusable);
+            }
+        }
+    }
+
+    private static @NonNull Connection connect(@NonNull URL url, int port, int connectTimeout) throws IOException {
+        final String host = url.getHost();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setTcpNoDelay(true);
+            if (url.getProtocol().equals("https")) {
+                final SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+                socket = sslSocket;
+                sslSocket.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+                    throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                }
+            }
+            return new Connection(socket);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                // Nothing to do.
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Send a request over a connection and read its response.
+     */
+    private @NonNull Exchange exchange(@NonNull Connection connection, @NonNull HttpRequest request) throws IOException {
+        connection.socket.setSoTimeout(request.readTimeout);
+
+        // Send the request.
+        final URL url = request.url;
+        final StringBuilder head = new StringBuilder();
+        head.append(request.method).append(' ').append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        boolean acceptEncoding = false;
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            acceptEncoding |= header.getKey().equalsIgnoreCase("Accept-Encoding");
+        }
+        if (!acceptEncoding) {
+            head.append("Accept-Encoding: gzip\r\n");
+        }
+        if (request.body != null) {
+            head.append("Content-Length: ").append(request.body.length).append("\r\n");
+        } else if (request.method.equals("POST") || request.method.equals("PUT")) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+        connection.output.write(head.toString().getBytes("ISO-8859-1"));
+        if (request.body != null) {
+            connection.output.write(request.body);
+        }
+        connection.output.flush();
+
+        // Read the response, skipping interim ones.
+        String version;
+        int statusCode;
+        Map<String, String> headers;
+        do {
+            final String statusLine = readLine(connection.input);
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            connection.responseStarted = true;
+            final String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new ProtocolException("Invalid status line: " + statusLine);
+            }
+            version = parts[0];
+            try {
+                statusCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid status line: " + statusLine);
+            }
+            headers = readHeaders(connection.input);
+        } while (statusCode / 100 == 1);
+
+        final String connectionHeader = headers.get("connection");
+        boolean reusable = version.equals("HTTP/1.1") ? !"close".equalsIgnoreCase(connectionHeader) : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+        // Read the body, so that the connection can be reused.
+        byte[] body;
+        final String transferEncoding = headers.get("transfer-encoding");
+        final String contentLength = headers.get("content-length");
+        if (request.method.equals("HEAD") || statusCode == 204 || statusCode == 304) {
+            body = new byte[0];
+        } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            body = HttpURLConnectionTransport._toByteArray(new ChunkedInputStream(connection.input), -1, bufferPool);
+        } else if (contentLength != null) {
+            final int length;
+            try {
+                length = Integer.parseInt(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid content length: " + contentLength);
+            }
+            body = HttpURLConnectionTransport._toByteArray(new FixedLengthInputStream(connection.input, length), length, bufferPool);
+            if (body.length < length) {
+                throw new EOFException("Truncated response body");
+            }
+        } else {
+            // Delimited by the end of the connection.
+            body = HttpURLConnectionTransport._toByteArray(connection.input, -1, bufferPool);
+            reusable = false;
+        }
+        if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+            body = HttpURLConnectionTransport._toByteArray(new GZIPInputStream(new ByteArrayInputStream(body)), -1, bufferPool);
+        }
+        return new Exchange(new HttpResponse(statusCode, body), reusable);
+    }
+
+    /**
+     * Read header lines until an empty line.
+     *
+     * @return The headers, by lowercase name. Repeated headers are joined with commas.
+     */
+    private static @NonNull Map<String, String> readHeaders(@NonNull InputStream input) throws IOException {
+        final Map<String, String> headers = new HashMap<>();
+        while (true) {
+            final String line = readLine(input);
+            if (line == null) {
+                throw new EOFException("Truncated response headers");
+            }
+            if (line.isEmpty()) {
+                return headers;
+            }
+            final int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new ProtocolException("Invalid header line: " + line);
+            }
+            final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            final String value = line.substring(colon + 1).trim();
+            final String previous = headers.get(name);
+            headers.put(name, previous == null ? value : previous + ", " + value);
+        }
+    }
+
+    /**
+     * Read a line terminated by LF (optionally preceded by CR).
+     *
+     * @return The line without its terminator, or null if the stream ended before the first byte.
+     */
+    private static @Nullable String readLine(@NonNull InputStream input) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        while (true) {
+            final int c = input.read();
+            if (c == -1) {
+                if (line.length() == 0) {
+                    return null;
+                }
+                throw new EOFException("Truncated line");
+            }
+            if (c == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line too long");
+            }
+            line.append((char) c);
+        }
+    }
+
+    /**
+     * A body delimited by a content length. Does not close the underlying stream.
+     */
+    private static class FixedLengthInputStream extends InputStream {
+        private final @NonNull InputStream input;
+        private long remaining;
+
+        FixedLengthInputStream(@NonNull InputStream input, long length) {
+            this.input = input;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = input.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read == -1) {
+                throw new EOFException("Truncated response body");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * A body using the chunked transfer encoding. Does not close the underlying stream.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final @NonNull InputStream input;
+
+        /** Bytes left in the current chunk. */
+        private long remaining;
+
+        /** Whether the current chunk is the first one. */
+        private boolean first = true;
+
+        /** Whether the last chunk and the trailers have been read. */
+        private boolean done;
+
+        ChunkedInputStream(@NonNull InputStream input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (remaining == 0) {
+                if (!first && readLine(input) == null) { // CRLF ending the previous chunk
+                    throw new EOFException("Truncated chunk");
+                }
+                first = false;
+                final String sizeLine = readLine(input);
+                if (sizeLine == null) {
+                    throw new EOFException("Truncated chunk");
+                }
+                final int extension = sizeLine.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk size: " + sizeLine);
+                }
+                if (remaining == 0) {
+                    readHeaders(input); // trailers
+                    done = true;
+                    return -1;
+                }
+            }
+            final int read = input.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read == -1) {
+                throw new EOFException("Truncated chunk");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+}
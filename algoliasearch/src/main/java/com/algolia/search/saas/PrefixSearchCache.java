@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Reuses exhaustive search results to answer refinements of their query text locally (as-you-type search).
+ * <p>
+ * When typing, each keystroke usually extends the query text of the previous search, all other parameters being
+ * equal. If the response to the previous search was exhaustive (i.e. it contained all the matching hits), the hits
+ * matching the extended text are a subset of those hits: they can be found by filtering the previous hits
+ * client-side, without a network call.
+ * </p>
+ * <p>
+ * Entries are therefore keyed by the query's parameters <em>except</em> the query text, and remember the text they
+ * were obtained for.
+ * </p>
+ * <p>
+ * Local filtering is an approximation of the engine's matching: a hit is kept if every word of the query text is
+ * found in the hit's highlighted attributes (by default, the searchable ones), ignoring case and diacritics. As with
+ * the engine's default {@link Query.QueryType#PREFIX_LAST}, only the last word may be a prefix; other words must
+ * match whole words. Synonyms and ranking are not re-evaluated; hits keep the order (and highlighting) of the
+ * previous response.
+ * </p>
+ * <p>
+ * Typos cannot be re-evaluated either, so only queries that cannot match with typos are eligible: either typo
+ * tolerance is disabled, or all words are shorter than {@code minWordSizefor1Typo} (as set on the query, otherwise
+ * the engine's default of {@value #DEFAULT_MIN_WORD_SIZE_FOR_1_TYPO}).
+ * </p>
+ */
+class PrefixSearchCache {
+    /** Parameters that may widen the results of a refined query, or whose output cannot be recomputed locally. */
+    private static final String[] INELIGIBLE_PARAMETERS = {
+        "facets", "optionalWords", "removeWordsIfNoResults", "offset", "length", "aroundLatLngViaIP",
+        "attributesToHighlight", "restrictSearchableAttributes"
+    };
+
+    /** Engine's default minimum length of a word for it to match with one typo. */
+    static final int DEFAULT_MIN_WORD_SIZE_FOR_1_TYPO = 4;
+
+    /** Engine's default highlighting tags. */
+    private static final String DEFAULT_HIGHLIGHT_PRE_TAG = "<em>";
+    private static final String DEFAULT_HIGHLIGHT_POST_TAG = "</em>";
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /** An exhaustive response, and the query text it was obtained for. */
+    private static class Entry {
+        final @NonNull String queryText;
+        final @NonNull byte[] response;
+
+        Entry(@NonNull String queryText, @NonNull byte[] response) {
+            this.queryText = queryText;
+            this.response = response;
+        }
+    }
+
+    /** Exhaustive responses, keyed by query parameters without the query text. */
+    private final ExpiringCache<String, Entry> entries;
+
+    /**
+     * Create a new prefix cache.
+     *
+     * @param timeoutInSeconds Duration during which a response is reused.
+     * @param maxEntries       Maximum number of responses kept.
+     */
+    PrefixSearchCache(int timeoutInSeconds, int maxEntries) {
+        entries = new ExpiringCache<>(timeoutInSeconds, maxEntries);
+    }
+
+    /**
+     * Remember a response, if it is exhaustive.
+     *
+     * @param query    The query.
+     * @param response The raw response to the query.
+     */
+    void put(@NonNull Query query, @NonNull byte[] response) {
+        if (!isEligible(query)) {
+            return;
+        }
+        try {
+            final JSONObject content = JSONByteParser.parseObject(response);
+            final JSONArray hits = content.optJSONArray("hits");
+            if (hits == null || content.optInt("nbHits", -1) != hits.length() || !content.optBoolean("exhaustiveNbHits", true)) {
+                return;
+            }
+            final String queryText = query.getQuery();
+            entries.put(keyFor(query), new Entry(queryText != null ? queryText : "", response));
+        } catch (JSONException e) {
+            // Not a search response: nothing to reuse.
+        }
+    }
+
+    /**
+     * Answer a query locally from an exhaustive response to a prefix of its query text.
+     *
+     * @param query The query.
+     * @return The filtered response, or null if the query cannot be answered locally.
+     */
+    @Nullable JSONObject get(@NonNull Query query) {
+        if (!isEligible(query)) {
+            return null;
+        }
+        final Entry entry = entries.get(keyFor(query));
+        if (entry == null) {
+            return null;
+        }
+        final String queryText = query.getQuery() != null ? query.getQuery() : "";
+        final String normalizedText = normalize(queryText);
+        if (!normalizedText.startsWith(normalize(entry.queryText))) {
+            return null;
+        }
+        try {
+            final JSONObject content = JSONByteParser.parseObject(entry.response);
+            final String[] words = split(normalizedText);
+            final boolean prefixAll = query.getQueryType() == Query.QueryType.PREFIX_ALL;
+            final String preTag = query.get("highlightPreTag") != null ? query.get("highlightPreTag") : DEFAULT_HIGHLIGHT_PRE_TAG;
+            final String postTag = query.get("highlightPostTag") != null ? query.get("highlightPostTag") : DEFAULT_HIGHLIGHT_POST_TAG;
+            final JSONArray hits = content.getJSONArray("hits");
+            final JSONArray filteredHits = new JSONArray();
+            for (int i = 0; i < hits.length(); ++i) {
+                final JSONObject hit = hits.getJSONObject(i);
+                final JSONObject highlights = hit.optJSONObject("_highlightResult");
+                if (highlights == null) {
+                    // Nothing tells which attributes are searchable.
+                    return null;
+                }
+                final List<String> hitWords = new ArrayList<>();
+                collectWords(highlights, preTag, postTag, hitWords);
+                if (matches(hitWords, words, prefixAll)) {
+                    filteredHits.put(hit);
+                }
+            }
+            content.put("hits", filteredHits);
+            content.put("nbHits", filteredHits.length());
+            content.put("nbPages", filteredHits.length() > 0 ? 1 : 0);
+            content.put("query", queryText);
+            content.put("params", query.build());
+            return content;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    void clear() {
+        entries.reset();
+    }
+
+    // ----------------------------------------------------------------------
+    // Utils
+    // ----------------------------------------------------------------------
+
+    /**
+     * Test whether refining a query's text can only narrow its results, so that they can be computed locally.
+     */
+    static boolean isEligible(@NonNull Query query) {
+        for (String name : INELIGIBLE_PARAMETERS) {
+            if (query.get(name) != null) {
+                return false;
+            }
+        }
+        final String page = query.get("page");
+        if (page != null && !page.equals("0")) {
+            return false;
+        }
+        if (query.getQueryType() == Query.QueryType.PREFIX_NONE) {
+            return false;
+        }
+        // Quotes and exclusions change the meaning of the text.
+        final Boolean advancedSyntax = query.getAdvancedSyntax();
+        final String queryText = query.getQuery();
+        if (advancedSyntax != null && advancedSyntax && queryText != null && (queryText.contains("\"") || queryText.contains("-"))) {
+            return false;
+        }
+        // A longer word may match with typos, i.e. match hits that the shorter one did not.
+        if (query.getTypoTolerance() == Query.TypoTolerance.FALSE || queryText == null) {
+            return true;
+        }
+        final Integer minWordSize = query.getMinWordSizefor1Typo();
+        final int maxLength = (minWordSize != null ? minWordSize : DEFAULT_MIN_WORD_SIZE_FOR_1_TYPO) - 1;
+        for (String word : split(normalize(queryText))) {
+            if (word.codePointCount(0, word.length()) > maxLength) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Key of a query, i.e. all its parameters except the query text. */
+    private static @NonNull String keyFor(@NonNull Query query) {
+        return new Query(query).setQuery(null).build();
+    }
+
+    /**
+     * Test whether a hit's words match the query words. The last query word may be a prefix; so may the others if
+     * `prefixAll` is true.
+     */
+    private static boolean matches(@NonNull List<String> hitWords, @NonNull String[] words, boolean prefixAll) {
+        for (int i = 0; i < words.length; ++i) {
+            final boolean prefix = prefixAll || i == words.length - 1;
+            boolean found = false;
+            for (String hitWord : hitWords) {
+                if (prefix ? hitWord.startsWith(words[i]) : hitWord.equals(words[i])) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Collect the normalized words of all highlighted values in a hit's `_highlightResult`. */
+    private static void collectWords(@NonNull Object value, @NonNull String preTag, @NonNull String postTag, @NonNull List<String> words) throws JSONException {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            final Object highlighted = object.opt("value");
+            if (highlighted instanceof String) {
+                final String text = ((String) highlighted).replace(preTag, "").replace(postTag, "");
+                for (String word : split(normalize(text))) {
+                    words.add(word);
+                }
+                return;
+            }
+            final Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                collectWords(object.get(keys.next()), preTag, postTag, words);
+            }
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); ++i) {
+                collectWords(array.get(i), preTag, postTag, words);
+            }
+        }
+    }
+
+    private static @NonNull String normalize(@NonNull String text) {
+        return DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    private static @NonNull String[] split(@NonNull String text) {
+        final String trimmed = WORD_SEPARATORS.matcher(text).replaceAll(" ").trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split(" ");
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * A compact, 128-bit fingerprint of a query's parameters, used as search cache and in-flight request key.
+ * <p>
+ * Serialized queries can be kilobytes long (e.g. with long filters), and hashing or comparing them would scan all of
+ * it on every lookup. A fingerprint is computed once per query (and memoized until the query changes); afterwards,
+ * hashing and comparing keys is constant-time. The two 64-bit halves are computed with independent hash functions
+ * over the canonical serialization of the parameters (sorted by name), so that accidental collisions are
+ * negligible.
+ * </p>
+ * <p>
+ * A fingerprint also keeps the serialized parameters it was computed from, for diagnostic purposes. Verified
+ * fingerprints are additionally checked for equal parameters when compared, and collisions are logged.
+ * </p>
+ */
+final class QueryFingerprint {
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    final long high;
+    final long low;
+
+    /** Generation of the index when this key was made. Zero for fingerprints of bare parameters. */
+    final long generation;
+
+    /** The serialized parameters. */
+    final @NonNull String parameters;
+
+    /** Whether this fingerprint is checked for equal parameters when compared. For debugging purposes. */
+    private final boolean verified;
+
+    private QueryFingerprint(long high, long low, long generation, @NonNull String parameters, boolean verified) {
+        this.high = high;
+        this.low = low;
+        this.generation = generation;
+        this.parameters = parameters;
+        this.verified = verified;
+    }
+
+    /**
+     * Compute the fingerprint of serialized query parameters.
+     *
+     * @param parameters The parameters, as built by {@link AbstractQuery#build()}.
+     * @return The fingerprint.
+     */
+    static @NonNull QueryFingerprint of(@NonNull String parameters) {
+        long fnv = FNV_OFFSET_BASIS;
+        long mix = GOLDEN_GAMMA;
+        for (int i = 0; i < parameters.length(); ++i) {
+            final char c = parameters.charAt(i);
+            fnv = (fnv ^ c) * FNV_PRIME;
+            mix = Long.rotateLeft((mix ^ c) * GOLDEN_GAMMA, 31);
+        }
+        return new QueryFingerprint(fmix64(fnv ^ parameters.length()), fmix64(mix + parameters.length()), 0, parameters, false);
+    }
+
+    /**
+     * Derive the key of these parameters for a given index and generation.
+     *
+     * @param indexName  The index's name.
+     * @param generation The index's generation.
+     * @param verified   Whether to check for equal parameters when comparing the derived fingerprint.
+     * @return A fingerprint that differs when any of the parameters, index name or generation differ.
+     */
+    @NonNull QueryFingerprint forIndex(@NonNull String indexName, long generation, boolean verified) {
+        final QueryFingerprint index = of(indexName);
+        return new QueryFingerprint(
+                fmix64(high ^ Long.rotateLeft(index.high, 17) ^ generation * GOLDEN_GAMMA),
+                fmix64(low + index.low * FNV_PRIME + generation),
+                generation, parameters, verified);
+    }
+
+    @Override public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof QueryFingerprint)) {
+            return false;
+        }
+        final QueryFingerprint fingerprint = (QueryFingerprint) other;
+        if (high != fingerprint.high || low != fingerprint.low || generation != fingerprint.generation) {
+            return false;
+        }
+        if ((verified || fingerprint.verified) && !parameters.equals(fingerprint.parameters)) {
+            Log.e(getClass().getName(), String.format("Fingerprint collision between \"%s\" and \"%s\"", parameters, fingerprint.parameters));
+            return false;
+        }
+        return true;
+    }
+
+    @Override public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    @Override public @NonNull String toString() {
+        return String.format("%s{%016x%016x}", getClass().getSimpleName(), high, low);
+    }
+
+    /** MurmurHash3's 64-bit finalizer: spreads every input bit over the output. */
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE185EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Notified when search results are evicted from an index's search cache to make room for others, i.e. because the
+ * cache reached its maximum number of entries or its memory budget.
+ * <p>
+ * Entries that merely expired, or that are cleared explicitly, are not reported.
+ * </p>
+ *
+ * @see Index#setSearchCacheEvictionListener(SearchCacheEvictionListener)
+ */
+public interface SearchCacheEvictionListener {
+    /**
+     * Called after a search result has been evicted.
+     * <p>
+     * WARNING: This method is called on the thread that caused the eviction, which is usually a background thread.
+     * </p>
+     *
+     * @param index           The index whose cache evicted the result.
+     * @param queryParameters The evicted query, as URL-encoded parameters.
+     * @param size            The size of the evicted result (bytes).
+     */
+    void onSearchCacheEviction(@NonNull Index index, @NonNull String queryParameters, int size);
+}
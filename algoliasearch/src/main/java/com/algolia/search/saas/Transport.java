@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Performs HTTP exchanges on behalf of a client.
+ * <p>
+ * The client is responsible for building requests (URL, headers, body) and for walking through hosts; the transport
+ * only has to send one request to one host and return the response. This makes it possible to plug in another HTTP
+ * stack, or a fake one for testing and benchmarking.
+ * </p>
+ * <p>
+ * Implementations must be thread-safe: a client executes several requests concurrently. They should also support
+ * cancellation (see {@link HttpRequest#setCancellationHandler(Runnable)}): the client cancels the requests it no
+ * longer needs, e.g. the slower attempts of a hedged search.
+ * </p>
+ */
+public interface Transport {
+    /**
+     * An HTTP request, as built by the client.
+     */
+    class HttpRequest {
+        /** HTTP method (e.g. `GET`). */
+        public final @NonNull String method;
+
+        /** Host targeted by this request, as configured in the client. */
+        public final @NonNull String host;
+
+        /** Full URL, including the query string. */
+        public final @NonNull URL url;
+
+        /** HTTP headers. */
+        public final @NonNull Map<String, String> headers;
+
+        /** Body, or null if the request does not enclose an entity. */
+        public final @Nullable byte[] body;
+
+        /** Connect timeout (ms). */
+        public final int connectTimeout;
+
+        /** Read timeout (ms). */
+        public final int readTimeout;
+
+        /** Whether this request has been cancelled. Guarded by `this`. */
+        private boolean cancelled;
+
+        /** Aborts the exchange in progress, if any. Guarded by `this`. */
+        private @Nullable Runnable cancellationHandler;
+
+        public HttpRequest(@NonNull String method, @NonNull String host, @NonNull URL url, @NonNull Map<String, String> headers, @Nullable byte[] body, int connectTimeout, int readTimeout) {
+            this.method = method;
+            this.host = host;
+            this.url = url;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        /**
+         * Cancel this request. The exchange in progress, if any, is aborted through the transport's cancellation
+         * handler: thread interruption alone does not abort blocking network I/O.
+         */
+        public void cancel() {
+            final Runnable handler;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                handler = cancellationHandler;
+            }
+            if (handler != null) {
+                handler.run();
+            }
+        }
+
+        /**
+         * Test whether this request has been cancelled.
+         *
+         * @return true if {@link #cancel()} has been called, false otherwise.
+         */
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Set how to abort the exchange in progress when this request is cancelled. Transports set it while executing
+         * the request, and clear it once done. The handler may be called from any thread, and must make the exchange
+         * fail with an {@link IOException}.
+         *
+         * @param handler The cancellation handler, or null to clear it. Run immediately if the request is already
+         *                cancelled.
+         */
+        public void setCancellationHandler(@Nullable Runnable handler) {
+            synchronized (this) {
+                cancellationHandler = handler;
+                if (!cancelled) {
+                    return;
+                }
+            }
+            if (handler != null) {
+                handler.run();
+            }
+        }
+
+        @Override public String toString() {
+            return String.format("%s{%s %s}", this.getClass().getSimpleName(), method, url);
+        }
+    }
+
+    /**
+     * An HTTP response, as returned by the server.
+     */
+    class HttpResponse {
+        /** HTTP status code. */
+        public final int statusCode;
+
+        /** Body, already decoded from any content encoding. */
+        public final @NonNull byte[] body;
+
+        public HttpResponse(int statusCode, @NonNull byte[] body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Send a request and wait for its response.
+     * <p>
+     * HTTP errors (4xx and 5xx status codes) are not exceptional: they must be returned as a regular response.
+     * </p>
+     *
+     * @param request The request to send.
+     * @return The response returned by the server.
+     * @throws IOException If the host could not be reached or the exchange failed. The client will try the next host.
+     */
+    @NonNull HttpResponse execute(@NonNull HttpRequest request) throws IOException;
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects single-object writes to an index, and sends them as batches.
+ * <p>
+ * Operations are buffered until their number, their total size or the age of the oldest one reaches a threshold;
+ * they are then sent as one {@link Index#batch batch} request, and each caller is notified with its own slice of
+ * the batch's result. Batches are sent one at a time, in order, so that operations touching the same object are
+ * applied in the order they were made.
+ * </p>
+ * <p>
+ * Batches are sent on the client's executor; the buffer owns no thread. Delayed flushes are triggered by a timer
+ * shared by all buffers, running on a daemon thread.
+ * </p>
+ */
+class WriteBuffer {
+    /** Default maximum number of operations per batch. */
+    static final int DEFAULT_MAX_OPERATIONS = 1000;
+
+    /** Default maximum size of a batch (bytes). */
+    static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /** Default maximum time during which an operation is buffered (ms). */
+    static final long DEFAULT_MAX_DELAY = 1000;
+
+    /** The index written to. */
+    private final @NonNull Index index;
+
+    private final int maxOperations;
+    private final long maxBytes;
+    private final long maxDelay;
+
+    /** Triggers the delayed flushes of all buffers. Lazily created. */
+    private static ScheduledExecutorService timer;
+
+    /** Batches waiting to be sent, in order. Guarded by `this`. */
+    private final Queue<List<Operation>> batches = new LinkedList<>();
+
+    /** Whether a task sending the queued batches is running. Guarded by `this`. */
+    private boolean sending;
+
+    /** Operations waiting to be sent. Guarded by `this`. */
+    private List<Operation> operations = new ArrayList<>();
+
+    /** Approximate size of the buffered operations (bytes). Guarded by `this`. */
+    private long byteCount;
+
+    /** Pending delayed flush, if any. Guarded by `this`. */
+    private ScheduledFuture<?> scheduledFlush;
+
+    /** Whether this buffer has been closed. Guarded by `this`. */
+    private boolean closed;
+
+    /**
+     * A buffered operation, as seen by the caller.
+     */
+    private class Operation implements Request {
+        final @NonNull JSONObject action;
+        final int size;
+        final @Nullable CompletionHandler completionHandler;
+        volatile boolean cancelled;
+        volatile boolean finished;
+
+        Operation(@NonNull JSONObject action, @Nullable CompletionHandler completionHandler) {
+            this.action = action;
+            this.size = utf8Length(action.toString());
+            this.completionHandler = completionHandler;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            synchronized (WriteBuffer.this) {
+                if (operations.remove(this)) {
+                    byteCount -= size;
+                    finished = true;
+                }
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished || cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Create a new write buffer.
+     *
+     * @param index         The index written to.
+     * @param maxOperations Maximum number of operations per batch.
+     * @param maxBytes      Maximum size of a batch (bytes).
+     * @param maxDelay      Maximum time during which an operation is buffered (ms).
+     */
+    WriteBuffer(@NonNull Index index, int maxOperations, long maxBytes, long maxDelay) {
+        this.index = index;
+        this.maxOperations = maxOperations;
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Buffer an operation.
+     *
+     * @param action            The batch action (e.g. <code>{"action": "updateObject", "objectID": ..., "body": ...}</code>).
+     * @param completionHandler Notified with the operation's slice of the batch result: the batch's
+     *                          <code>taskID</code> and the operation's <code>objectID</code>.
+     * @return A request that can be cancelled until its batch has been sent.
+     */
+    @NonNull Request add(@NonNull JSONObject action, @Nullable CompletionHandler completionHandler) {
+        final Operation operation = new Operation(action, completionHandler);
+        final boolean full;
+        synchronized (this) {
+            if (closed) {
+                final List<Operation> rejected = new ArrayList<>(1);
+                rejected.add(operation);
+                complete(rejected, null, new AlgoliaException("Write buffer closed"));
+                return operation;
+            }
+            operations.add(operation);
+            byteCount += operation.size;
+            full = operations.size() >= maxOperations || byteCount >= maxBytes;
+            if (!full && scheduledFlush == null) {
+                scheduledFlush = getTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, maxDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            flush();
+        }
+        return operation;
+    }
+
+    /**
+     * Send the buffered operations now, asynchronously.
+     */
+    void flush() {
+        synchronized (this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (operations.isEmpty()) {
+                return;
+            }
+            batches.add(operations);
+            operations = new ArrayList<>();
+            byteCount = 0;
+            if (sending) {
+                return; // the running sender will pick it up
+            }
+            sending = true;
+        }
+        try {
+            index.getClient().searchExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendBatches();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The client's executor has been shut down: fail the operations rather than dropping them silently.
+            final List<Operation> rejected = new ArrayList<>();
+            synchronized (this) {
+                while (!batches.isEmpty()) {
+                    rejected.addAll(batches.remove());
+                }
+                sending = false;
+            }
+            complete(rejected, null, new AlgoliaException("Write buffer closed"));
+        }
+    }
+
+    /**
+     * Send the buffered operations, then stop accepting new ones.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    /**
+     * Send queued batches, one at a time, until the queue is empty.
+     */
+    private void sendBatches() {
+        while (true) {
+            final List<Operation> batch;
+            synchronized (this) {
+                batch = batches.poll();
+                if (batch == null) {
+                    sending = false;
+                    return;
+                }
+            }
+            send(batch);
+        }
+    }
+
+    private void send(@NonNull List<Operation> batch) {
+        final List<Operation> sent = new ArrayList<>(batch.size());
+        final JSONArray actions = new JSONArray();
+        for (Operation operation : batch) {
+            if (!operation.cancelled) {
+                sent.add(operation);
+                actions.put(operation.action);
+            }
+        }
+        if (sent.isEmpty()) {
+            return;
+        }
+        try {
+            complete(sent, index.batch(actions, /* requestOptions: */ null), null);
+        } catch (AlgoliaException e) {
+            complete(sent, null, e);
+        }
+    }
+
+    private void complete(@NonNull List<Operation> batch, @Nullable JSONObject result, @Nullable final AlgoliaException error) {
+        final JSONArray objectIDs = result != null ? result.optJSONArray("objectIDs") : null;
+        for (int i = 0; i < batch.size(); ++i) {
+            final Operation operation = batch.get(i);
+            final JSONObject content = result != null ? sliceOf(result, objectIDs, i) : null;
+            operation.finished = true;
+            final CompletionHandler completionHandler = operation.completionHandler;
+            if (completionHandler == null) {
+                continue;
+            }
+            index.getClient().completionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!operation.cancelled) {
+                        completionHandler.requestCompleted(content, error);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Compute the length of a string once encoded as UTF-8, without encoding it.
+     *
+     * @param value The string.
+     * @return Its length (bytes).
+     */
+    static int utf8Length(@NonNull CharSequence value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static synchronized @NonNull ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "AlgoliaWriteBufferTimer");
+                    thread.setDaemon(true); // must not keep the process alive
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Extract the result of one operation from the result of its batch.
+     */
+    private static @NonNull JSONObject sliceOf(@NonNull JSONObject result, @Nullable JSONArray objectIDs, int position) {
+        try {
+            final JSONObject content = new JSONObject().put("taskID", result.opt("taskID"));
+            if (objectIDs != null && position < objectIDs.length()) {
+                content.put("objectID", objectIDs.get(position));
+            }
+            return content;
+        } catch (JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+    }
+}
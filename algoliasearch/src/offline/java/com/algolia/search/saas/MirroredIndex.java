@@ -835,6 +835,28 @@ public class MirroredIndex extends Index
         }
     }
 
+    /**
+     * Search the online API, falling back to the local mirror if enabled in case of error.
+     * <p>
+     * A mirrored index delivers a single result per search: stale cached results are still refreshed in the
+     * background, but the revalidation handler is not called.
+     * </p>
+     *
+     * @param query Search query.
+     * @param requestOptions Request-specific options.
+     * @param completionHandler The listener that will be notified of the request's outcome.
+     * @param revalidationHandler The listener that will be notified of the fresh result (non-mirrored index only).
+     * @return A cancellable request.
+     */
+    @Override
+    public Request searchAsync(@Nullable Query query, @Nullable RequestOptions requestOptions, @Nullable CompletionHandler completionHandler, @Nullable CompletionHandler revalidationHandler) {
+        if (!mirrored) {
+            return super.searchAsync(query, requestOptions, completionHandler, revalidationHandler);
+        } else {
+            return searchAsync(query != null ? query : new Query(), requestOptions, completionHandler);
+        }
+    }
+
     /**
      * A mixed online/offline request.
      * This request encapsulates two concurrent online and offline requests, to optimize response time.
@@ -154,16 +154,18 @@ public class OfflineClient extends Client
      */
     @Override
     public @NonNull MirroredIndex getIndex(@NonNull String indexName) {
-        MirroredIndex index = null;
-        WeakReference<Object> existingIndex = indices.get(indexName);
-        if (existingIndex != null) {
-            index = (MirroredIndex)existingIndex.get();
-        }
-        if (index == null) {
-            index = new MirroredIndex(this, indexName);
-            indices.put(indexName, new WeakReference<Object>(index));
+        synchronized (indices) {
+            MirroredIndex index = null;
+            WeakReference<Object> existingIndex = indices.get(indexName);
+            if (existingIndex != null) {
+                index = (MirroredIndex)existingIndex.get();
+            }
+            if (index == null) {
+                index = new MirroredIndex(this, indexName);
+                indices.put(indexName, new WeakReference<Object>(index));
+            }
+            return index;
         }
-        return index;
     }
 
     /**
@@ -175,16 +177,18 @@ public class OfflineClient extends Client
      * **Warning:** The name should not overlap with any `MirroredIndex`. See {@link #getIndex(String)}.
      */
     public OfflineIndex getOfflineIndex(@NonNull String indexName) {
-        OfflineIndex index = null;
-        WeakReference<Object> existingIndex = indices.get(indexName);
-        if (existingIndex != null) {
-            index = (OfflineIndex)existingIndex.get();
-        }
-        if (index == null) {
-            index = new OfflineIndex(this, indexName);
-            indices.put(indexName, new WeakReference<Object>(index));
+        synchronized (indices) {
+            OfflineIndex index = null;
+            WeakReference<Object> existingIndex = indices.get(indexName);
+            if (existingIndex != null) {
+                index = (OfflineIndex)existingIndex.get();
+            }
+            if (index == null) {
+                index = new OfflineIndex(this, indexName);
+                indices.put(indexName, new WeakReference<Object>(index));
+            }
+            return index;
         }
-        return index;
     }
 
     /**
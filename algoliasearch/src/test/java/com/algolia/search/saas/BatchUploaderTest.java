@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for chunked batch uploads by `Index`, using an in-memory transport.
+ */
+public class BatchUploaderTest extends InMemoryClientTestCase {
+    /** Number of batch requests received so far. */
+    private final AtomicInteger batchCount = new AtomicInteger();
+
+    /** Number of batch requests being processed. */
+    private final AtomicInteger pendingBatchCount = new AtomicInteger();
+
+    /** Maximum number of batch requests processed at the same time. */
+    private final AtomicInteger maxPendingBatchCount = new AtomicInteger();
+
+    /** Start and end of each batch request, identified by the ID of its first object. */
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    /** ID of the first object of the batch request to reject, if any. */
+    private volatile String rejectedObjectID;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // Acknowledge batches with one task per request, echoing the object IDs. Tasks are always published.
+        transport.setResponder("host1", new InMemoryTransport.Responder() {
+            @NonNull
+            @Override
+            public Transport.HttpResponse respond(@NonNull Transport.HttpRequest request) throws IOException {
+                try {
+                    if (request.body == null) {
+                        return new Transport.HttpResponse(200, "{\"status\":\"published\"}".getBytes("UTF-8"));
+                    }
+                    final JSONArray requests = new JSONObject(new String(request.body, "UTF-8")).getJSONArray("requests");
+                    final String firstObjectID = requests.getJSONObject(0).getJSONObject("body").getString("objectID");
+                    if (firstObjectID.equals(rejectedObjectID)) {
+                        return new Transport.HttpResponse(400, "{\"message\":\"Too big\"}".getBytes("UTF-8"));
+                    }
+                    final int pending = pendingBatchCount.incrementAndGet();
+                    while (true) {
+                        final int max = maxPendingBatchCount.get();
+                        if (pending <= max || maxPendingBatchCount.compareAndSet(max, pending)) {
+                            break;
+                        }
+                    }
+                    events.add("start " + firstObjectID);
+                    Thread.sleep(20);
+                    final JSONArray objectIDs = new JSONArray();
+                    for (int i = 0; i < requests.length(); ++i) {
+                        objectIDs.put(requests.getJSONObject(i).getJSONObject("body").getString("objectID"));
+                    }
+                    final JSONObject response = new JSONObject().put("taskID", batchCount.incrementAndGet()).put("objectIDs", objectIDs);
+                    pendingBatchCount.decrementAndGet();
+                    events.add("end " + firstObjectID);
+                    return new Transport.HttpResponse(200, response.toString().getBytes("UTF-8"));
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void smallArraysAreSentAsOneBatch() throws Exception {
+        final JSONObject result = index.addObjects(newObjects(10, 0), /* requestOptions: */ null);
+        assertEquals(1, batchCount.get());
+        assertEquals(1, result.getInt("taskID"));
+        assertEquals(10, result.getJSONArray("objectIDs").length());
+        assertFalse(result.has("taskIDs"));
+    }
+
+    @Test
+    public void largeArraysAreChunkedByCount() throws Exception {
+        index.setBatchConcurrency(2);
+        final JSONObject result = index.saveObjects(newObjects(2500, 0), /* requestOptions: */ null);
+        assertEquals(3, batchCount.get());
+        assertTrue(maxPendingBatchCount.get() <= 2);
+        assertEquals(3, result.getJSONArray("taskIDs").length());
+        assertEquals(3, result.getLong("taskID"));
+        final JSONArray objectIDs = result.getJSONArray("objectIDs");
+        assertEquals(2500, objectIDs.length());
+        for (int i = 0; i < objectIDs.length(); ++i) {
+            assertEquals("id" + i, objectIDs.getString(i));
+        }
+    }
+
+    @Test
+    public void chunksAreSentSequentiallyByDefault() throws Exception {
+        index.saveObjects(newObjects(3500, 0), /* requestOptions: */ null);
+        assertEquals(4, batchCount.get());
+        assertEquals(1, maxPendingBatchCount.get());
+        assertEquals(Arrays.asList("start id0", "end id0", "start id1000", "end id1000", "start id2000", "end id2000", "start id3000", "end id3000"), events);
+    }
+
+    @Test
+    public void chunksTouchingTheSameObjectShareALane() throws Exception {
+        index.setBatchConcurrency(4);
+        final JSONArray objects = newObjects(4000, 0);
+        // The last chunk updates an object of the first one.
+        objects.put(3999, new JSONObject().put("objectID", "id0"));
+        index.saveObjects(objects, /* requestOptions: */ null);
+        assertEquals(4, batchCount.get());
+        assertTrue(maxPendingBatchCount.get() > 1);
+        // The chunk starting at "id3000" must not start before the first chunk has ended.
+        assertTrue(events.indexOf("end id0") < events.indexOf("start id3000"));
+    }
+
+    @Test
+    public void parallelUploadsFromTheClientExecutorComplete() throws Exception {
+        index.setBatchConcurrency(4);
+        final int callCount = 8;
+        final CountDownLatch done = new CountDownLatch(callCount);
+        for (int i = 0; i < callCount; ++i) {
+            index.addObjectsAsync(newObjects(3000, 0), null, new CompletionHandler() {
+                @Override
+                public void requestCompleted(JSONObject content, AlgoliaException error) {
+                    assertNull(error);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(callCount * 3, batchCount.get());
+    }
+
+    @Test
+    public void chunkSizeIsMeasuredInUtf8Bytes() throws Exception {
+        // Each object holds 300 CJK characters: about 350 chars, but 950 bytes.
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; ++i) {
+            text.append('\u4e2d');
+        }
+        final JSONArray objects = new JSONArray();
+        for (int i = 0; i < 4; ++i) {
+            objects.put(new JSONObject().put("objectID", "id" + i).put("text", text));
+        }
+        index.setMaxBatchBytes(2000);
+        index.addObjects(objects, /* requestOptions: */ null);
+        assertEquals(2, batchCount.get());
+    }
+
+    @Test
+    public void largeArraysAreChunkedBySize() throws Exception {
+        index.setMaxBatchBytes(1200); // two objects per batch
+        final JSONObject result = index.addObjects(newObjects(10, 500), /* requestOptions: */ null);
+        assertEquals(5, batchCount.get());
+        assertEquals(10, result.getJSONArray("objectIDs").length());
+    }
+
+    @Test
+    public void waitForIndexing() throws Exception {
+        index.addObjects(newObjects(2500, 0), /* waitForIndexing: */ true, /* requestOptions: */ null);
+        // Only the highest task is polled.
+        assertEquals(3 + 1, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void failedChunksFailTheCall() throws Exception {
+        transport.setResponse("host1", 400, "{\"message\":\"Too big\"}");
+        try {
+            index.addObjects(newObjects(2500, 0), /* requestOptions: */ null);
+            fail("The call should have failed");
+        } catch (AlgoliaException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void failedChunksReportThePartialResult() throws Exception {
+        rejectedObjectID = "id2000";
+        try {
+            index.addObjects(newObjects(3500, 0), /* requestOptions: */ null);
+            fail("The call should have failed");
+        } catch (BatchUploadException e) {
+            assertEquals(400, e.getStatusCode());
+            assertTrue(e.getCause() instanceof AlgoliaException);
+            // The first two chunks were accepted; the last one was never sent.
+            final JSONObject result = e.getPartialResult();
+            assertEquals(2, result.getJSONArray("taskIDs").length());
+            assertEquals(2, result.getLong("taskID"));
+            assertEquals(2000, result.getJSONArray("objectIDs").length());
+            assertEquals("id1999", result.getJSONArray("objectIDs").getString(1999));
+        }
+        assertEquals(2, batchCount.get());
+    }
+
+    /** Build objects with sequential IDs and a payload of the specified size. */
+    private static JSONArray newObjects(int count, int payloadSize) throws Exception {
+        final StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < payloadSize; ++i) {
+            payload.append('x');
+        }
+        final JSONArray objects = new JSONArray();
+        for (int i = 0; i < count; ++i) {
+            objects.put(new JSONObject().put("objectID", "id" + i).put("payload", payload.toString()));
+        }
+        return objects;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `BufferPool` class, and its use by the transport.
+ */
+public class BufferPoolTest extends RobolectricTestCase {
+    @Test
+    public void buffersAreReusedWithinBounds() {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] buffer1 = pool.acquire();
+        byte[] buffer2 = pool.acquire();
+        byte[] buffer3 = pool.acquire();
+        assertEquals(16, buffer1.length);
+        pool.release(buffer1);
+        pool.release(buffer2);
+        pool.release(buffer3); // over capacity: dropped
+        pool.release(new byte[8]); // wrong size: ignored
+        assertEquals(2, pool.getPooledCount());
+        assertSame(buffer2, pool.acquire());
+        assertSame(buffer1, pool.acquire());
+        assertNotSame(buffer3, pool.acquire());
+    }
+
+    @Test
+    public void readsStreamWithExpectedLength() throws Exception {
+        BufferPool pool = new BufferPool(1024, 4);
+        byte[] content = newContent(10000);
+        // Exact, underestimated, overestimated and unknown lengths.
+        for (int expectedLength : new int[] { 10000, 100, 20000, -1 }) {
+            byte[] read = HttpURLConnectionTransport._toByteArray(new ByteArrayInputStream(content), expectedLength, pool);
+            assertArrayEquals(content, read);
+        }
+        assertEquals(0, HttpURLConnectionTransport._toByteArray(new ByteArrayInputStream(new byte[0]), 0, pool).length);
+        assertEquals(0, HttpURLConnectionTransport._toByteArray(new ByteArrayInputStream(new byte[0]), -1, pool).length);
+        assertEquals(4, pool.getPooledCount());
+    }
+
+    @Test
+    public void bogusContentLengthIsNotPreallocated() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 4);
+        byte[] content = newContent(10000);
+        assertArrayEquals(content, HttpURLConnectionTransport._toByteArray(new ByteArrayInputStream(content), Integer.MAX_VALUE, pool));
+        // Accurate, but above the preallocation limit.
+        content = newContent(HttpURLConnectionTransport.MAX_PREALLOCATED_LENGTH + 5000);
+        assertArrayEquals(content, HttpURLConnectionTransport._toByteArray(new ByteArrayInputStream(content), content.length, pool));
+    }
+
+    /**
+     * Read a response of unknown length (e.g. gzipped) many times, and compare the bytes allocated by the pooled
+     * reader against the previous implementation (growing `ByteArrayOutputStream`). The pooled reader should only
+     * allocate the result, i.e. about the content's size per read.
+     */
+    @Test
+    public void allocationRate() throws Exception {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Method getAllocatedBytes = null;
+        try {
+            getAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            getAllocatedBytes.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            // Not a HotSpot-compatible VM.
+            getAllocatedBytes = null;
+        }
+        Assume.assumeTrue(getAllocatedBytes != null);
+
+        final int contentLength = 50 * 1024;
+        final int iterationCount = 200;
+        final byte[] content = newContent(contentLength);
+        final BufferPool pool = new BufferPool(8 * 1024, 16);
+        final long threadId = Thread.currentThread().getId();
+
+        // Warm up both code paths.
+        for (int i = 0; i < iterationCount; ++i) {
+            HttpURLConnectionTransport._toByteArray(new ByteArrayInputStream(content), -1, pool);
+            unpooledToByteArray(new ByteArrayInputStream(content));
+        }
+
+        long start = (Long) getAllocatedBytes.invoke(bean, threadId);
+        for (int i = 0; i < iterationCount; ++i) {
+            HttpURLConnectionTransport._toByteArray(new ByteArrayInputStream(content), -1, pool);
+        }
+        final long pooledBytes = (Long) getAllocatedBytes.invoke(bean, threadId) - start;
+
+        start = (Long) getAllocatedBytes.invoke(bean, threadId);
+        for (int i = 0; i < iterationCount; ++i) {
+            unpooledToByteArray(new ByteArrayInputStream(content));
+        }
+        final long unpooledBytes = (Long) getAllocatedBytes.invoke(bean, threadId) - start;
+
+        assertTrue("Pooled reads allocated " + pooledBytes / iterationCount + " bytes each", pooledBytes / iterationCount < contentLength * 1.2);
+        assertTrue("Unpooled reads allocated " + unpooledBytes / iterationCount + " bytes each", pooledBytes * 2 < unpooledBytes);
+    }
+
+    /** The reader used before buffers were pooled. */
+    private static byte[] unpooledToByteArray(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int read;
+        byte[] buffer = new byte[1024];
+        while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        out.flush();
+        return out.toByteArray();
+    }
+
+    private static byte[] newContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `CacheCompressor` class.
+ */
+public class CacheCompressorTest extends RobolectricTestCase {
+    @Test
+    public void roundTrip() throws Exception {
+        final byte[] response = newResponse(20, 0);
+        final CacheCompressor compressor = new CacheCompressor(null);
+        final byte[] compressed = compressor.compress(response);
+        assertTrue(CacheCompressor.isCompressed(compressed));
+        assertTrue(compressed.length * 3 < response.length);
+        assertArrayEquals(response, compressor.decompress(compressed));
+    }
+
+    @Test
+    public void rawValuesAreNotTouched() throws Exception {
+        final byte[] response = "{\"hits\":[]}".getBytes("UTF-8");
+        final CacheCompressor compressor = new CacheCompressor(null);
+        // Too small to shrink.
+        assertArrayEquals(response, compressor.compress(response));
+        assertFalse(CacheCompressor.isCompressed(response));
+        assertArrayEquals(response, compressor.decompress(response));
+    }
+
+    @Test
+    public void dictionary() throws Exception {
+        final byte[] dictionary = newResponse(5, 1);
+        final byte[] response = newResponse(2, 0);
+        final CacheCompressor compressor = new CacheCompressor(dictionary);
+        final byte[] compressed = compressor.compress(response);
+        assertTrue(compressed.length < new CacheCompressor(null).compress(response).length);
+        assertArrayEquals(response, compressor.decompress(compressed));
+
+        // Another dictionary, or none, cannot decompress it.
+        assertNull(new CacheCompressor(null).decompress(compressed));
+        assertNull(new CacheCompressor(newResponse(5, 2)).decompress(compressed));
+    }
+
+    @Test
+    public void corruptedValue() throws Exception {
+        final CacheCompressor compressor = new CacheCompressor(null);
+        final byte[] compressed = compressor.compress(newResponse(20, 0));
+        compressed[compressed.length / 2] ^= 0x55;
+        assertNull(compressor.decompress(compressed));
+    }
+
+    /**
+     * Compare compression with and without a dictionary, for several result sizes.
+     */
+    @Test
+    public void dictionaryHelpsAtAnySize() throws Exception {
+        final byte[] dictionary = newResponse(5, 1);
+        final CacheCompressor plain = new CacheCompressor(null);
+        final CacheCompressor primed = new CacheCompressor(dictionary);
+        for (int hitCount : new int[] { 1, 5, 20, 100 }) {
+            final byte[] response = newResponse(hitCount, 0);
+            final byte[] compressed = plain.compress(response);
+            final byte[] primedCompressed = primed.compress(response);
+            assertTrue(compressed.length < response.length);
+            assertTrue(primedCompressed.length < compressed.length);
+            assertArrayEquals(response, plain.decompress(compressed));
+            assertArrayEquals(response, primed.decompress(primedCompressed));
+        }
+    }
+
+    /** Build a search response resembling the API's, with pseudo-random contents. */
+    private static byte[] newResponse(int hitCount, long seed) throws Exception {
+        final Random random = new Random(seed);
+        final String[] words = { "phone", "case", "black", "wireless", "charger", "screen", "protector", "cable", "usb", "fast" };
+        StringBuilder json = new StringBuilder("{\"hits\":[");
+        for (int i = 0; i < hitCount; ++i) {
+            if (i > 0) {
+                json.append(',');
+            }
+            final String name = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)];
+            json.append("{\"name\":\"").append(name).append("\",\"price\":").append(random.nextInt(1000))
+                    .append(",\"objectID\":\"").append(random.nextInt(1000000))
+                    .append("\",\"_highlightResult\":{\"name\":{\"value\":\"<em>").append(name)
+                    .append("</em>\",\"matchLevel\":\"full\",\"fullyHighlighted\":true,\"matchedWords\":[\"")
+                    .append(name.split(" ")[0]).append("\"]}}}");
+        }
+        json.append("],\"nbHits\":").append(hitCount).append(",\"page\":0,\"nbPages\":1,\"hitsPerPage\":20,\"processingTimeMS\":1,\"query\":\"phone\",\"params\":\"query=phone\"}");
+        return json.toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `DiskCache` class.
+ */
+public class DiskCacheTest extends RobolectricTestCase {
+    private File directory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("DiskCacheTest", "");
+        assertTrue(directory.delete());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        new DiskCache(directory, 1).clear();
+        directory.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void entriesSurviveRestart() throws Exception {
+        final long expirationTime = System.currentTimeMillis() + 60000;
+        DiskCache cache = new DiskCache(directory, 1024 * 1024);
+        cache.put("a", "1".getBytes("UTF-8"), expirationTime);
+        cache.put("b", "2".getBytes("UTF-8"), expirationTime);
+        cache.put("a", "3".getBytes("UTF-8"), expirationTime);
+        cache.put("expired", "4".getBytes("UTF-8"), System.currentTimeMillis() - 1);
+        cache.remove("b");
+        assertArrayEquals("3".getBytes("UTF-8"), cache.get("a").value);
+        cache.close();
+
+        cache = new DiskCache(directory, 1024 * 1024);
+        DiskCache.Entry entry = cache.get("a");
+        assertNotNull(entry);
+        assertArrayEquals("3".getBytes("UTF-8"), entry.value);
+        assertEquals(expirationTime, entry.expirationTime);
+        assertNull(cache.get("b"));
+        assertNull(cache.get("expired"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void tornWriteIsDiscarded() throws Exception {
+        final long expirationTime = System.currentTimeMillis() + 60000;
+        DiskCache cache = new DiskCache(directory, 1024 * 1024);
+        cache.put("a", new byte[100], expirationTime);
+        cache.put("b", new byte[100], expirationTime);
+        cache.close();
+
+        // Simulate a crash in the middle of the last write.
+        File segment = new File(directory, "segment-0.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        cache = new DiskCache(directory, 1024 * 1024);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        cache.put("c", new byte[100], expirationTime);
+        cache.close();
+        cache = new DiskCache(directory, 1024 * 1024);
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void sizeIsBounded() throws Exception {
+        final long expirationTime = System.currentTimeMillis() + 60000;
+        DiskCache cache = new DiskCache(directory, 10000);
+        for (int i = 0; i < 100; ++i) {
+            cache.put("key" + i, new byte[500], expirationTime);
+            assertTrue(cache.byteSize() <= 10000);
+        }
+        assertNull(cache.get("key0"));
+        assertNotNull(cache.get("key99"));
+
+        // Entries too big for a segment are not cached.
+        cache.put("big", new byte[5000], expirationTime);
+        assertNull(cache.get("big"));
+    }
+
+    @Test
+    public void readsAndWritesDoNotWaitForTheDisk() throws Exception {
+        final long expirationTime = System.currentTimeMillis() + 60000;
+        DiskCache cache = new DiskCache(directory, 1024 * 1024);
+        cache.put("a", "1".getBytes("UTF-8"), expirationTime);
+        cache.close();
+
+        final DiskCache reopened = new DiskCache(directory, 1024 * 1024);
+        assertNotNull(reopened.get("a"));
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] results = new Object[2];
+        // Simulate a slow write in progress.
+        synchronized (reopened.writeLock) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reopened.put("b", "2".getBytes("UTF-8"), expirationTime);
+                        results[0] = reopened.get("a");
+                        results[1] = reopened.get("b");
+                    } catch (Exception e) {
+                        // Leave the results null.
+                    }
+                    done.countDown();
+                }
+            }).start();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+        assertArrayEquals("1".getBytes("UTF-8"), ((DiskCache.Entry) results[0]).value);
+        assertArrayEquals("2".getBytes("UTF-8"), ((DiskCache.Entry) results[1]).value);
+
+        // The pending write eventually reaches the disk.
+        reopened.close();
+        cache = new DiskCache(directory, 1024 * 1024);
+        assertArrayEquals("2".getBytes("UTF-8"), cache.get("b").value);
+    }
+
+    @Test
+    public void clearAsyncDoesNotWaitForTheDisk() throws Exception {
+        final long expirationTime = System.currentTimeMillis() + 60000;
+        DiskCache cache = new DiskCache(directory, 1024 * 1024);
+        cache.put("a", "1".getBytes("UTF-8"), expirationTime);
+        cache.close();
+
+        final DiskCache reopened = new DiskCache(directory, 1024 * 1024);
+        assertNotNull(reopened.get("a"));
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] results = new Object[2];
+        // Simulate a slow write in progress.
+        synchronized (reopened.writeLock) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reopened.clearAsync();
+                        results[0] = reopened.get("a");
+                        reopened.put("b", "2".getBytes("UTF-8"), expirationTime);
+                        results[1] = reopened.get("b");
+                    } catch (Exception e) {
+                        // Leave the results null.
+                    }
+                    done.countDown();
+                }
+            }).start();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+        assertNull(results[0]);
+        assertArrayEquals("2".getBytes("UTF-8"), ((DiskCache.Entry) results[1]).value);
+
+        // The old files are deleted, but entries put after the clear survive.
+        reopened.close();
+        cache = new DiskCache(directory, 1024 * 1024);
+        assertNull(cache.get("a"));
+        assertArrayEquals("2".getBytes("UTF-8"), cache.get("b").value);
+        assertEquals(1, cache.size());
+    }
+}
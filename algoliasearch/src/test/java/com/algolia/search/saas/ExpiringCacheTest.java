@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `ExpiringCache` class.
+ */
+public class ExpiringCacheTest extends RobolectricTestCase {
+    @Test
+    public void putAndGet() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(1, 10);
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertEquals("2", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.size());
+        cache.reset();
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(1, 10);
+        cache.put("a", "1");
+        Thread.sleep(1100);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void sizeIsBounded() throws Exception {
+        for (int maxSize : new int[] { 1, 10, 64, 100, 1000 }) {
+            ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(60, maxSize);
+            for (int i = 0; i < maxSize * 3; ++i) {
+                cache.put(i, i);
+            }
+            assertEquals(maxSize, cache.size());
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(60, 10);
+        for (int i = 0; i < 10; ++i) {
+            cache.put(i, i);
+        }
+        cache.get(0);
+        cache.put(10, 10);
+        assertEquals(0, (int) cache.get(0));
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        final ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(60, 256);
+        final AtomicInteger errorCount = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; ++i) {
+                        int key = i % 512;
+                        cache.put(key, key);
+                        Integer value = cache.get(key ^ 1);
+                        if (value != null && value != (key ^ 1)) {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errorCount.get());
+        assertTrue(cache.size() <= 256);
+    }
+
+    @Test
+    public void weightIsBounded() throws Exception {
+        final List<String> evictedKeys = new ArrayList<>();
+        ExpiringCache<String, byte[]> cache = new ExpiringCache<>(60, 1000, 1000, new ExpiringCache.Weigher<String, byte[]>() {
+            @Override
+            public int weigh(String key, byte[] value) {
+                return value.length;
+            }
+        }, new ExpiringCache.EvictionListener<String, byte[]>() {
+            @Override
+            public void onEviction(String key, byte[] value, int weight) {
+                evictedKeys.add(key);
+            }
+        });
+        for (int i = 0; i < 100; ++i) {
+            cache.put("key" + i, new byte[100]);
+            assertTrue(cache.weight() <= 1000);
+        }
+        assertEquals(1000, cache.weight());
+        assertEquals(10, cache.size());
+        assertEquals(90, evictedKeys.size());
+
+        // Replacing an entry adjusts the weight.
+        cache.put("key99", new byte[50]);
+        assertEquals(950, cache.weight());
+
+        // An entry bigger than the budget is not cached, and evicts nothing.
+        cache.put("big", new byte[1001]);
+        assertNull(cache.get("big"));
+        assertEquals(90, evictedKeys.size());
+
+        cache.reset();
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void weightEvictionIsLeastRecentlyUsed() throws Exception {
+        final List<String> evictedKeys = new ArrayList<>();
+        ExpiringCache<String, byte[]> cache = newWeighedCache(evictedKeys);
+        for (int i = 0; i < 10; ++i) {
+            cache.put("key" + i, new byte[100]);
+        }
+        // Use all entries but one, in whatever segment they are.
+        for (int i = 0; i < 10; ++i) {
+            if (i != 5) {
+                assertTrue(cache.get("key" + i) != null);
+            }
+        }
+        cache.put("new", new byte[100]);
+        assertEquals(1, evictedKeys.size());
+        assertEquals("key5", evictedKeys.get(0));
+    }
+
+    @Test
+    public void freshPutSurvivesWeightEviction() throws Exception {
+        final List<String> evictedKeys = new ArrayList<>();
+        ExpiringCache<String, byte[]> cache = newWeighedCache(evictedKeys);
+        for (int i = 0; i < 10; ++i) {
+            cache.put("key" + i, new byte[100]);
+        }
+        cache.put("fresh", new byte[1000]);
+        assertTrue(cache.get("fresh") != null);
+        assertEquals(10, evictedKeys.size());
+        assertEquals(1000, cache.weight());
+        assertEquals(1, cache.size());
+    }
+
+    /** Create a cache with many segments, holding up to 1000 bytes. */
+    private static ExpiringCache<String, byte[]> newWeighedCache(final List<String> evictedKeys) {
+        return new ExpiringCache<>(60, 1000, 1000, new ExpiringCache.Weigher<String, byte[]>() {
+            @Override
+            public int weigh(String key, byte[] value) {
+                return value.length;
+            }
+        }, new ExpiringCache.EvictionListener<String, byte[]>() {
+            @Override
+            public void onEviction(String key, byte[] value, int weight) {
+                evictedKeys.add(key);
+            }
+        });
+    }
+
+    @Test
+    public void staleLookup() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(1, 10);
+        cache.setStaleGracePeriodMillis(1000);
+        cache.put("a", "1");
+        assertFalse(cache.lookup("a").stale);
+        Thread.sleep(1100);
+        assertNull(cache.get("a"));
+        ExpiringCache.Lookup<String> lookup = cache.lookup("a");
+        assertTrue(lookup.stale);
+        assertEquals("1", lookup.value);
+        Thread.sleep(1000);
+        assertNull(cache.lookup("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void stats() throws Exception {
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(60, 2);
+        cache.put(1, 1);
+        cache.get(1);
+        cache.get(2);
+        cache.recordLoad(1000);
+        cache.put(2, 2);
+        cache.put(3, 3); // evicts 1
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.hitCount);
+        assertEquals(1, stats.missCount);
+        assertEquals(1, stats.evictionCount);
+        assertEquals(0, stats.expirationCount);
+        assertEquals(1, stats.loadCount);
+        assertEquals(1000.0, stats.averageLoadTime(), 0);
+        assertEquals(2, stats.size);
+        assertEquals(0.5, stats.hitRate(), 0);
+
+        cache.resetStats();
+        assertEquals(0, cache.stats().hitCount);
+        assertEquals(2, cache.stats().size);
+    }
+}
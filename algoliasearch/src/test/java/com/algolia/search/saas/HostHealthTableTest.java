@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `HostHealthTable` class.
+ */
+public class HostHealthTableTest extends RobolectricTestCase {
+    @Test
+    public void movingAverages() {
+        HostHealthTable table = new HostHealthTable();
+        assertEquals(-1, table.expectedLatency("host", 1000), 0);
+        table.recordSuccess("host", 100);
+        assertEquals(100, table.expectedLatency("host", 1000), 0.001);
+        table.recordSuccess("host", 200);
+        assertEquals(130, table.expectedLatency("host", 1000), 0.001);
+        table.recordFailure("host");
+        assertFalse(table.isUpOrCouldBeRetried("host", 1000));
+        assertTrue(table.isUpOrCouldBeRetried("host", 0));
+        assertEquals(130 + 0.3 * 1000, table.expectedLatency("host", 1000), 0.001);
+    }
+
+    @Test
+    public void concurrentUpdates() throws Exception {
+        final HostHealthTable table = new HostHealthTable();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            final String host = "host" + (i % 4);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; ++j) {
+                        table.recordSuccess(host, 50);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Map<String, HostHealth> snapshot = table.snapshot();
+        assertEquals(4, snapshot.size());
+        for (HostHealth health : snapshot.values()) {
+            assertTrue(health.isUp);
+            assertEquals(50, health.latency, 0.001);
+            assertEquals(0, health.errorRate, 0.001);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `InFlightRequests` class.
+ */
+public class InFlightRequestsTest extends RobolectricTestCase {
+    @Test
+    public void identicalSearchesAreCoalesced() throws Exception {
+        Client client = new Client("APPID", "APIKEY", new String[] { "host1" });
+        InMemoryTransport transport = new InMemoryTransport();
+        transport.setResponse("host1", 200, "{\"nbHits\":42}");
+        transport.setLatency("host1", 500);
+        client.setTransport(transport);
+        final Index index = client.getIndex("test");
+
+        final int threadCount = 3;
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicInteger hitCount = new AtomicInteger();
+        for (int i = 0; i < threadCount; ++i) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        JSONObject content = index.searchSync(new Query("foo"));
+                        hitCount.addAndGet(content.getInt("nbHits"));
+                    } catch (Exception e) {
+                        // Counted as a missing result below.
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(threadCount * 42, hitCount.get());
+        assertEquals(1, transport.getRequestCount("host1"));
+
+        // Once completed, the same search goes to the network again.
+        transport.setLatency("host1", 0);
+        index.searchSync(new Query("foo"));
+        assertEquals(2, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void abandonedLeaderIsTakenOver() throws Exception {
+        final InFlightRequests<String, String> flights = new InFlightRequests<>();
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final AtomicInteger callCount = new AtomicInteger();
+        Thread leader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flights.execute("key", new InFlightRequests.Call<String>() {
+                        @Override
+                        public String call() throws AlgoliaException {
+                            callCount.incrementAndGet();
+                            leaderStarted.countDown();
+                            try {
+                                Thread.sleep(5000);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new AlgoliaException("Request interrupted", e);
+                            }
+                            return "leader";
+                        }
+                    });
+                } catch (AlgoliaException e) {
+                    // Expected: the leader is cancelled.
+                }
+            }
+        });
+        leader.start();
+        assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+
+        final List<String> results = new ArrayList<>();
+        Thread follower = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String result = flights.execute("key", new InFlightRequests.Call<String>() {
+                        @Override
+                        public String call() {
+                            callCount.incrementAndGet();
+                            return "follower";
+                        }
+                    });
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                } catch (AlgoliaException e) {
+                    // Counted as a missing result below.
+                }
+            }
+        });
+        follower.start();
+        Thread.sleep(100);
+        leader.interrupt();
+        follower.join(5000);
+        assertEquals(2, callCount.get());
+        assertEquals(1, results.size());
+        assertEquals("follower", results.get(0));
+        assertEquals(0, flights.getSharedCount());
+    }
+}
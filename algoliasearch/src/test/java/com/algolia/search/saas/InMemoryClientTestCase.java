@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Base class for tests of a client talking to an in-memory transport.
+ * <p>
+ * The client has a single host, <code>host1</code>, and calls completion handlers synchronously, on the thread
+ * completing the request.
+ * </p>
+ */
+public abstract class InMemoryClientTestCase extends RobolectricTestCase {
+    protected Client client;
+    protected InMemoryTransport transport;
+
+    /** The index named <code>test</code>. */
+    protected Index index;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        client = new Client("APPID", "APIKEY", new String[] { "host1" });
+        transport = new InMemoryTransport();
+        client.setTransport(transport);
+        client.completionExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        index = client.getIndex("test");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the `JSONByteParser` class.
+ */
+public class JSONByteParserTest extends RobolectricTestCase {
+    @Test
+    public void matchesJSONTokener() throws Exception {
+        String[] inputs = {
+            "{}",
+            " { \"a\" : [ ] , \"b\" : { } } ",
+            "{\"hits\":[{\"objectID\":\"1\",\"name\":\"foo\"},{\"objectID\":\"2\",\"name\":\"bar\"}],\"nbHits\":2}",
+            "{\"int\":42,\"negative\":-7,\"long\":12345678901,\"double\":1.5,\"exp\":-2.5E-3}",
+            "{\"true\":true,\"false\":false,\"null\":null}",
+            "{\"escapes\":\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\\ud83d\\ude00\"}",
+            "{\"utf8\":\"caf\u00e9 \u6771\u4eac \ud83d\ude00\",\"\u00e9\":1}",
+        };
+        for (String input : inputs) {
+            JSONObject expected = new JSONObject(input);
+            JSONObject actual = JSONByteParser.parseObject(input.getBytes("UTF-8"));
+            assertJSONEquals(input, expected, actual);
+        }
+    }
+
+    @Test
+    public void numberTypes() throws Exception {
+        JSONObject object = JSONByteParser.parseObject("{\"a\":42,\"b\":12345678901,\"c\":1.5,\"d\":123456789012345678901234}".getBytes("UTF-8"));
+        assertEquals(Integer.class, object.get("a").getClass());
+        assertEquals(Long.class, object.get("b").getClass());
+        assertEquals(Double.class, object.get("c").getClass());
+        assertEquals(Double.class, object.get("d").getClass());
+    }
+
+    @Test
+    public void rejectsInvalidInput() throws Exception {
+        String[] inputs = {
+            "",
+            "[]",
+            "{",
+            "{\"a\"}",
+            "{\"a\":1,}",
+            "{\"a\":tru}",
+            "{\"a\":\"unterminated}",
+            "{\"a\":1} trailing",
+            "{\"a\":\"\\x\"}",
+            "{\"a\":-}",
+        };
+        for (String input : inputs) {
+            try {
+                JSONByteParser.parseObject(input.getBytes("UTF-8"));
+                fail("Invalid input was accepted: " + input);
+            } catch (JSONException e) {
+                // Expected.
+            }
+        }
+    }
+
+    private static void assertJSONEquals(String message, Object expected, Object actual) throws JSONException {
+        if (expected instanceof JSONObject) {
+            assertTrue(message, actual instanceof JSONObject);
+            JSONObject expectedObject = (JSONObject) expected;
+            JSONObject actualObject = (JSONObject) actual;
+            assertEquals(message, expectedObject.length(), actualObject.length());
+            Iterator<String> keys = expectedObject.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                assertJSONEquals(message, expectedObject.get(key), actualObject.get(key));
+            }
+        } else if (expected instanceof JSONArray) {
+            assertTrue(message, actual instanceof JSONArray);
+            JSONArray expectedArray = (JSONArray) expected;
+            JSONArray actualArray = (JSONArray) actual;
+            assertEquals(message, expectedArray.length(), actualArray.length());
+            for (int i = 0; i < expectedArray.length(); ++i) {
+                assertJSONEquals(message, expectedArray.get(i), actualArray.get(i));
+            }
+        } else if (expected instanceof Number && actual instanceof Number) {
+            assertEquals(message, ((Number) expected).doubleValue(), ((Number) actual).doubleValue(), 0);
+        } else {
+            assertEquals(message, expected, actual);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the `PercentEncoder` class.
+ */
+public class PercentEncoderTest extends RobolectricTestCase {
+    @Test
+    public void examples() throws Exception {
+        assertEquals("", PercentEncoder.encode(""));
+        assertEquals("aZ09.-*_", PercentEncoder.encode("aZ09.-*_"));
+        assertEquals("a%20b%2Bc%26d%3De", PercentEncoder.encode("a b+c&d=e"));
+        assertEquals("%C3%A9%E2%82%AC%F0%9F%98%80", PercentEncoder.encode("é€😀"));
+        assertEquals("%3Fx%3F", PercentEncoder.encode("\ud83dx\ude00"));
+    }
+
+    /**
+     * Check that the output is identical to the platform encoder's (with spaces patched), on random strings biased
+     * towards edge cases: ASCII punctuation, multi-byte characters, and paired or unpaired surrogates.
+     */
+    @Test
+    public void matchesPlatformEncoder() throws Exception {
+        final Random random = new Random(42);
+        for (int iteration = 0; iteration < 20000; ++iteration) {
+            final StringBuilder value = new StringBuilder();
+            final int length = random.nextInt(20);
+            for (int i = 0; i < length; ++i) {
+                switch (random.nextInt(6)) {
+                    case 0: value.append((char) random.nextInt(0x80)); break;
+                    case 1: value.append((char) (0x80 + random.nextInt(0x800 - 0x80))); break;
+                    case 2: value.append((char) (0x800 + random.nextInt(0x10000 - 0x800))); break;
+                    case 3: value.appendCodePoint(0x10000 + random.nextInt(0x110000 - 0x10000)); break;
+                    case 4: value.append((char) (0xD800 + random.nextInt(0x800))); break; // lone surrogate
+                    default: value.append(" +%&=?/"); break;
+                }
+            }
+            final String expected = URLEncoder.encode(value.toString(), "UTF-8").replace("+", "%20");
+            assertEquals("Encoding " + value, expected, PercentEncoder.encode(value));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `PooledTransport` class, against a local HTTP server.
+ */
+public class PooledTransportTest extends RobolectricTestCase {
+    /** A minimal keep-alive HTTP server, answering every request with the same body. */
+    private static class LocalServer implements Closeable {
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final AtomicInteger connectionCount = new AtomicInteger();
+        volatile long latency;
+        volatile boolean closeAfterResponse;
+        volatile boolean chunkedGzip;
+
+        LocalServer() throws IOException {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket socket = serverSocket.accept();
+                            connectionCount.incrementAndGet();
+                            new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(socket);
+                                }
+                            }).start();
+                        }
+                    } catch (IOException e) {
+                        // Server closed.
+                    }
+                }
+            }).start();
+        }
+
+        void serve(Socket socket) {
+            try {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                final OutputStream output = socket.getOutputStream();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // Skip the headers; requests have no body.
+                    while (line != null && !line.isEmpty()) {
+                        line = reader.readLine();
+                    }
+                    Thread.sleep(latency);
+                    final byte[] body = "{\"hello\":\"world\"}".getBytes("UTF-8");
+                    if (chunkedGzip) {
+                        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                        final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                        gzip.write(body);
+                        gzip.close();
+                        final byte[] bytes = compressed.toByteArray();
+                        final int half = bytes.length / 2;
+                        output.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nContent-Encoding: gzip\r\n\r\n"
+                                + Integer.toHexString(half) + "\r\n").getBytes("ISO-8859-1"));
+                        output.write(bytes, 0, half);
+                        output.write(("\r\n" + Integer.toHexString(bytes.length - half) + ";ext=1\r\n").getBytes("ISO-8859-1"));
+                        output.write(bytes, half, bytes.length - half);
+                        output.write("\r\n0\r\n\r\n".getBytes("ISO-8859-1"));
+                    } else {
+                        output.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+                        output.write(body);
+                    }
+                    output.flush();
+                    if (closeAfterResponse) {
+                        break;
+                    }
+                }
+                socket.close();
+            } catch (IOException | InterruptedException e) {
+                // Connection closed.
+            }
+        }
+
+        Transport.HttpRequest newRequest() throws IOException {
+            return new Transport.HttpRequest("GET", "localhost", new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/1/indexes"), new HashMap<String, String>(), null, 1000, 5000);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void connectionsAreReused() throws Exception {
+        final LocalServer server = new LocalServer();
+        try {
+            final PooledTransport transport = new PooledTransport();
+            for (int i = 0; i < 3; ++i) {
+                final Transport.HttpResponse response = transport.execute(server.newRequest());
+                assertEquals(200, response.statusCode);
+                assertEquals("{\"hello\":\"world\"}", new String(response.body, "UTF-8"));
+            }
+            assertEquals(1, server.connectionCount.get());
+            assertEquals(1, transport.getMissCount());
+            assertEquals(2, transport.getHitCount());
+            assertEquals(1, transport.getIdleConnectionCount());
+
+            transport.evictAll();
+            assertEquals(0, transport.getIdleConnectionCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws Exception {
+        final LocalServer server = new LocalServer();
+        try {
+            final PooledTransport transport = new PooledTransport(4, 4, 50);
+            transport.execute(server.newRequest());
+            Thread.sleep(100);
+            transport.execute(server.newRequest());
+            assertEquals(2, server.connectionCount.get());
+            assertEquals(1, transport.getEvictionCount());
+            assertEquals(0, transport.getHitCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectionsPerHostAreBounded() throws Exception {
+        final LocalServer server = new LocalServer();
+        server.latency = 100;
+        try {
+            final PooledTransport transport = new PooledTransport(1, 1, PooledTransport.DEFAULT_KEEP_ALIVE_DURATION);
+            final CountDownLatch done = new CountDownLatch(2);
+            final Exception[] errors = new Exception[2];
+            for (int i = 0; i < 2; ++i) {
+                final int index = i;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            transport.execute(server.newRequest());
+                        } catch (Exception e) {
+                            errors[index] = e;
+                        }
+                        done.countDown();
+                    }
+                }).start();
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertNull(errors[0]);
+            assertNull(errors[1]);
+            // The second request waited for the first one's connection.
+            assertEquals(1, server.connectionCount.get());
+            assertEquals(1, transport.getHitCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectionClosedByServerIsRetried() throws Exception {
+        final LocalServer server = new LocalServer();
+        server.closeAfterResponse = true;
+        try {
+            final PooledTransport transport = new PooledTransport();
+            transport.execute(server.newRequest());
+            Thread.sleep(100); // let the server close the connection
+            assertEquals(200, transport.execute(server.newRequest()).statusCode);
+            assertEquals(2, server.connectionCount.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void chunkedAndCompressedResponses() throws Exception {
+        final LocalServer server = new LocalServer();
+        server.chunkedGzip = true;
+        try {
+            final PooledTransport transport = new PooledTransport();
+            for (int i = 0; i < 2; ++i) {
+                assertEquals("{\"hello\":\"world\"}", new String(transport.execute(server.newRequest()).body, "UTF-8"));
+            }
+            // The whole body was consumed: the connection could be reused.
+            assertEquals(1, server.connectionCount.get());
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `QueryFingerprint` class.
+ */
+public class QueryFingerprintTest extends RobolectricTestCase {
+    @Test
+    public void equalQueriesHaveEqualKeys() {
+        final Query query1 = new Query("phone").setHitsPerPage(10).setFilters("price < 100");
+        final Query query2 = new Query("phone").setFilters("price < 100").setHitsPerPage(10);
+        final QueryFingerprint key1 = query1.fingerprint().forIndex("products", 1, false);
+        final QueryFingerprint key2 = query2.fingerprint().forIndex("products", 1, false);
+        assertEquals(key1, key2);
+        assertEquals(key1.hashCode(), key2.hashCode());
+        assertEquals(query1.build(), key1.parameters);
+    }
+
+    @Test
+    public void keysDependOnParametersIndexAndGeneration() {
+        final QueryFingerprint fingerprint = new Query("phone").fingerprint();
+        final QueryFingerprint key = fingerprint.forIndex("products", 1, false);
+        assertNotEquals(key, new Query("phones").fingerprint().forIndex("products", 1, false));
+        assertNotEquals(key, fingerprint.forIndex("products_price_asc", 1, false));
+        assertNotEquals(key, fingerprint.forIndex("products", 2, false));
+        assertEquals(key, fingerprint.forIndex("products", 1, true));
+    }
+
+    @Test
+    public void fingerprintIsMemoized() {
+        final Query query = new Query("phone");
+        final QueryFingerprint fingerprint = query.fingerprint();
+        assertSame(fingerprint, query.fingerprint());
+        assertSame(fingerprint, new Query(query).fingerprint());
+        query.setPage(2);
+        assertNotSame(fingerprint, query.fingerprint());
+        assertNotEquals(fingerprint, query.fingerprint());
+    }
+
+    @Test
+    public void noCollisions() {
+        final Set<QueryFingerprint> keys = new HashSet<>();
+        final Set<Long> halves = new HashSet<>();
+        for (int i = 0; i < 20000; ++i) {
+            final QueryFingerprint key = new Query("q" + i).setPage(i % 7).fingerprint().forIndex("products", 0, true);
+            assertTrue(keys.add(key));
+            assertTrue(halves.add(key.high));
+        }
+        assertFalse(keys.add(new Query("q42").setPage(0).fingerprint().forIndex("products", 0, false)));
+    }
+}
@@ -882,4 +882,47 @@ public class QueryTest extends RobolectricTestCase {
         assertEquals("true", query.get("facetingAfterDistinct"));
         assertEquals(query.getFacetingAfterDistinct(), Query.parse(query.build()).getFacetingAfterDistinct());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void buildIsMemoized() {
+        Query query = new Query("foo").setHitsPerPage(10).setFilters("a:b AND c:d");
+        final String built = query.build();
+        assertTrue(built == query.build());
+        query.setQuery("foo bar");
+        assertEquals("filters=a%3Ab%20AND%20c%3Ad&hitsPerPage=10&query=foo%20bar", query.build());
+        query.setHitsPerPage(null);
+        assertEquals("filters=a%3Ab%20AND%20c%3Ad&query=foo%20bar", query.build());
+
+        // Copies share the memoized form, but not its invalidation.
+        Query copy = new Query(query);
+        assertEquals(query.build(), copy.build());
+        copy.setQuery("baz");
+        assertEquals("filters=a%3Ab%20AND%20c%3Ad&query=foo%20bar", query.build());
+        assertEquals("filters=a%3Ab%20AND%20c%3Ad&query=baz", copy.build());
+        assertEquals(AbstractQuery.build(copy.getParameters()), copy.build());
+    }
+
+    /**
+     * Check the memoized build against a full re-encoding, when only the query text changes (as when typing).
+     */
+    @Test
+    public void memoizedBuildWhileTyping() {
+        Query query = new Query("")
+                .setAttributesToRetrieve("name", "description", "brand", "price", "image", "url")
+                .setAttributesToHighlight("name", "description")
+                .setAttributesToSnippet("description:20")
+                .setFacets("brand", "category", "price_range", "color")
+                .setFilters("(category:phones OR category:tablets) AND price > 100 AND NOT brand:\"No name\"")
+                .setHitsPerPage(20)
+                .setAroundLatLngViaIP(true)
+                .setRuleContexts("mobile", "home")
+                .setAnalyticsTags("android", "search-page");
+        final String text = "iphone 8 plus";
+        for (int i = 1; i <= text.length(); ++i) {
+            query.setQuery(text.substring(0, i));
+            final String built = query.build();
+            assertEquals(AbstractQuery.build(query.getParameters()), built);
+            assertTrue(built == query.build()); // once for the cache key, once for the request
+        }
+    }
+}
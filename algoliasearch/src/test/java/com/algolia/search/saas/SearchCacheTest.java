@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the search cache of `Index`, using an in-memory transport.
+ */
+public class SearchCacheTest extends InMemoryClientTestCase {
+    @Test
+    public void evictionListener() throws Exception {
+        transport.setResponse("host1", 200, "{\"hits\":[]}");
+        final List<String> evicted = new ArrayList<>();
+        index.enableSearchCache(60, 2);
+        index.setSearchCacheEvictionListener(new SearchCacheEvictionListener() {
+            @Override
+            public void onSearchCacheEviction(Index index, String queryParameters, int size) {
+                evicted.add(queryParameters);
+            }
+        });
+        index.searchSync(new Query("a"));
+        index.searchSync(new Query("b"));
+        index.searchSync(new Query("c"));
+        assertEquals(1, evicted.size());
+        assertEquals(new Query("a").build(), evicted.get(0));
+    }
+
+    @Test
+    public void requestOptionsBypassTheCache() throws Exception {
+        final File directory = File.createTempFile("SearchCacheTest", "");
+        assertTrue(directory.delete());
+        try {
+            index.enableSearchCache(60, 10);
+            index.enablePersistentSearchCache(directory, 60, 1024 * 1024);
+            final RequestOptions requestOptions = new RequestOptions().setHeader("X-Algolia-UserToken", "user1");
+
+            // An options search does not fill the cache...
+            transport.setResponse("host1", 200, "{\"version\":1}");
+            assertEquals(1, index.searchSync(new Query("a"), requestOptions).getInt("version"));
+            transport.setResponse("host1", 200, "{\"version\":2}");
+            assertEquals(2, index.searchSync(new Query("a")).getInt("version"));
+            assertEquals(2, transport.getRequestCount("host1"));
+
+            // ... nor hits it.
+            transport.setResponse("host1", 200, "{\"version\":3}");
+            assertEquals(3, index.searchSync(new Query("a"), requestOptions).getInt("version"));
+            assertEquals(3, transport.getRequestCount("host1"));
+            assertEquals(2, index.searchSync(new Query("a")).getInt("version"));
+            assertEquals(3, transport.getRequestCount("host1"));
+        } finally {
+            index.disablePersistentSearchCache();
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        transport.setResponse("host1", 200, "{\"version\":1}");
+        index.enableSearchCache(1, 10);
+        index.setSearchCacheStaleGracePeriod(60);
+        assertEquals(1, index.searchSync(new Query("a")).getInt("version"));
+
+        Thread.sleep(1100);
+        transport.setResponse("host1", 200, "{\"version\":2}");
+        final CountDownLatch revalidated = new CountDownLatch(1);
+        final JSONObject[] fresh = new JSONObject[1];
+        final JSONObject[] stale = new JSONObject[1];
+        index.searchAsync(new Query("a"), null, new CompletionHandler() {
+            @Override
+            public void requestCompleted(JSONObject content, AlgoliaException error) {
+                stale[0] = content;
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void requestCompleted(JSONObject content, AlgoliaException error) {
+                assertNull(error);
+                fresh[0] = content;
+                revalidated.countDown();
+            }
+        });
+        assertTrue(revalidated.await(5, TimeUnit.SECONDS));
+        assertEquals(2, fresh[0].getInt("version"));
+        assertEquals(2, transport.getRequestCount("host1"));
+        // The fresh result is now cached.
+        assertEquals(2, index.searchSync(new Query("a")).getInt("version"));
+        assertEquals(2, transport.getRequestCount("host1"));
+        Thread.sleep(100);
+        assertEquals(1, stale[0].getInt("version"));
+    }
+
+    /** A search response with one hit per name, highlighted like the engine would. */
+    private static String prefixResponse(String query, String... names) {
+        final StringBuilder hits = new StringBuilder();
+        for (int i = 0; i < names.length; ++i) {
+            hits.append(i > 0 ? "," : "").append("{\"objectID\":\"").append(i + 1).append("\",\"name\":\"").append(names[i])
+                    .append("\",\"_highlightResult\":{\"name\":{\"value\":\"").append(names[i]).append("\"}}}");
+        }
+        return "{\"hits\":[" + hits + "],\"nbHits\":" + names.length + ",\"page\":0,\"nbPages\":1,\"query\":\"" + query + "\"}";
+    }
+
+    @Test
+    public void prefixReuse() throws Exception {
+        index.enablePrefixSearchCache(60, 10);
+        transport.setResponse("host1", 200, prefixResponse("ip", "iPhone X", "iPad Pro", "Ipswich T\u00e9l\u00e9phone"));
+        index.searchSync(new Query("ip").setHitsPerPage(20));
+        assertEquals(1, transport.getRequestCount("host1"));
+
+        // Refinement: answered locally.
+        JSONObject content = index.searchSync(new Query("iph").setHitsPerPage(20));
+        assertEquals(1, transport.getRequestCount("host1"));
+        assertEquals(1, content.getInt("nbHits"));
+        assertEquals("1", content.getJSONArray("hits").getJSONObject(0).getString("objectID"));
+        assertEquals("iph", content.getString("query"));
+
+        // Words are matched independently, ignoring case: no hit has both "ipa..." and "p...".
+        content = index.searchSync(new Query("IPA p").setHitsPerPage(20));
+        assertEquals(1, transport.getRequestCount("host1"));
+        assertEquals(0, content.getInt("nbHits"));
+
+        // Different parameters: sent to the API.
+        index.searchSync(new Query("iph").setHitsPerPage(10));
+        assertEquals(2, transport.getRequestCount("host1"));
+
+        // Not a refinement: sent to the API.
+        index.searchSync(new Query("ap").setHitsPerPage(20));
+        assertEquals(3, transport.getRequestCount("host1"));
+
+        // Facets cannot be recomputed locally: sent to the API.
+        index.searchSync(new Query("iph").setHitsPerPage(20).setFacets("brand"));
+        assertEquals(4, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void prefixReuseMatchesOnlyTheLastWordAsPrefix() throws Exception {
+        index.enablePrefixSearchCache(60, 10);
+        final Query query = new Query().setTypoTolerance(Query.TypoTolerance.FALSE);
+        transport.setResponse("host1", 200, prefixResponse("ip", "iPhone case", "iP case", "Ipswich T\u00e9l\u00e9phone"));
+        index.searchSync(new Query(query).setQuery("ip"));
+
+        // "ip" is now a whole word: "iPhone" no longer matches it.
+        JSONObject content = index.searchSync(new Query(query).setQuery("ip case"));
+        assertEquals(1, transport.getRequestCount("host1"));
+        assertEquals(1, content.getInt("nbHits"));
+        assertEquals("2", content.getJSONArray("hits").getJSONObject(0).getString("objectID"));
+
+        // Diacritics and case are still ignored.
+        content = index.searchSync(new Query(query).setQuery("IPSWICH tele"));
+        assertEquals(1, transport.getRequestCount("host1"));
+        assertEquals("3", content.getJSONArray("hits").getJSONObject(0).getString("objectID"));
+
+        // With `prefixAll`, every word is a prefix.
+        final Query prefixAll = new Query(query).setQueryType(Query.QueryType.PREFIX_ALL);
+        index.searchSync(new Query(prefixAll).setQuery("ip"));
+        content = index.searchSync(new Query(prefixAll).setQuery("ip case"));
+        assertEquals(2, transport.getRequestCount("host1"));
+        assertEquals(2, content.getInt("nbHits"));
+    }
+
+    @Test
+    public void prefixReuseRequiresNoTypos() throws Exception {
+        index.enablePrefixSearchCache(60, 10);
+        transport.setResponse("host1", 200, prefixResponse("iph", "iPhone X"));
+        index.searchSync(new Query("iph"));
+
+        // "ipho" may match "ipad" with one typo: sent to the API.
+        index.searchSync(new Query("ipho"));
+        assertEquals(2, transport.getRequestCount("host1"));
+
+        // Unless typos are disabled...
+        index.searchSync(new Query("iph").setTypoTolerance(Query.TypoTolerance.FALSE));
+        index.searchSync(new Query("ipho").setTypoTolerance(Query.TypoTolerance.FALSE));
+        assertEquals(3, transport.getRequestCount("host1"));
+
+        // ... or the word is too short for a typo.
+        index.searchSync(new Query("iph").setMinWordSizefor1Typo(5));
+        index.searchSync(new Query("ipho").setMinWordSizefor1Typo(5));
+        assertEquals(4, transport.getRequestCount("host1"));
+        index.searchSync(new Query("iphon").setMinWordSizefor1Typo(5));
+        assertEquals(5, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void prefixReuseRequiresExhaustiveResults() throws Exception {
+        index.enablePrefixSearchCache(60, 10);
+        transport.setResponse("host1", 200, "{\"hits\":[{\"objectID\":\"1\",\"name\":\"iPhone\",\"_highlightResult\":{\"name\":{\"value\":\"iPhone\"}}}],\"nbHits\":2}");
+        index.searchSync(new Query("ip"));
+        index.searchSync(new Query("iph"));
+        assertEquals(2, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void publicationTrackingWaitsOnlyForTheLatestTask() throws Exception {
+        client.setSearchCacheInvalidatedOnTaskPublication(true);
+        final List<String> polledTasks = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch writesSent = new CountDownLatch(1);
+        final AtomicInteger taskCount = new AtomicInteger();
+        transport.setResponder("host1", new InMemoryTransport.Responder() {
+            @NonNull
+            @Override
+            public Transport.HttpResponse respond(@NonNull Transport.HttpRequest request) throws IOException {
+                final String path = request.url.getPath();
+                if (path.contains("/task/")) {
+                    final String taskID = path.substring(path.lastIndexOf('/') + 1);
+                    polledTasks.add(taskID);
+                    try {
+                        // Keep the first task pending until all writes are sent.
+                        writesSent.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return new Transport.HttpResponse(200, "{\"status\":\"published\"}".getBytes("UTF-8"));
+                }
+                return new Transport.HttpResponse(200, ("{\"objectID\":\"1\",\"taskID\":" + taskCount.incrementAndGet() + "}").getBytes("UTF-8"));
+            }
+        });
+        index.addObject(new JSONObject().put("version", 1), "1", null);
+        awaitPoll(polledTasks, "1");
+        index.addObject(new JSONObject().put("version", 2), "1", null);
+        index.addObject(new JSONObject().put("version", 3), "1", null);
+        writesSent.countDown();
+
+        // Tasks are applied in order: once the first one is published, only the latest one is awaited.
+        awaitPoll(polledTasks, "3");
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("1", "3"), polledTasks);
+    }
+
+    private static void awaitPoll(List<String> polledTasks, String taskID) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!polledTasks.contains(taskID) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void objectCacheInvalidatedByWrites() throws Exception {
+        index.enableObjectCache(60, 10);
+        transport.setResponse("host1", 200, "{\"objectID\":\"1\",\"version\":1}");
+        assertEquals(1, index.getObject("1", null).getInt("version"));
+        assertEquals(1, index.getObject("1", null).getInt("version"));
+        assertEquals(1, transport.getRequestCount("host1"));
+
+        // A write evicts the object, and prevents it from being cached while the write settles.
+        index.saveObject(new JSONObject().put("version", 2), "1", null);
+        transport.setResponse("host1", 200, "{\"objectID\":\"1\",\"version\":2}");
+        assertEquals(2, index.getObject("1", null).getInt("version"));
+        assertEquals(2, index.getObject("1", null).getInt("version"));
+        assertEquals(4, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void objectCacheFetchesOnlyMisses() throws Exception {
+        index.enableObjectCache(60, 10);
+        transport.setResponse("host1", 200, "{\"objectID\":\"2\"}");
+        index.getObject("2", null);
+        transport.clearRequests();
+
+        transport.setResponse("host1", 200, "{\"results\":[{\"objectID\":\"1\"},{\"objectID\":\"3\"}]}");
+        JSONObject result = index.getObjects(Arrays.asList("1", "2", "3"), null, null);
+        assertEquals(1, transport.getRequestCount("host1"));
+        String body = new String(transport.getRequests().get(0).body, "UTF-8");
+        assertTrue(body.contains("\"1\"") && !body.contains("\"2\"") && body.contains("\"3\""));
+        JSONArray results = result.getJSONArray("results");
+        assertEquals(3, results.length());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(String.valueOf(i + 1), results.getJSONObject(i).getString("objectID"));
+        }
+
+        // All objects are now cached.
+        index.getObjects(Arrays.asList("3", "1"), null, null);
+        assertEquals(1, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void writesInvalidateSearchCache() throws Exception {
+        index.enableSearchCache(600, 10);
+        transport.setResponse("host1", 200, "{\"taskID\":1,\"version\":1}");
+        index.searchSync(new Query("a"));
+        index.searchSync(new Query("a"));
+        assertEquals(1, transport.getRequestCount("host1"));
+
+        index.addObject(new JSONObject(), null);
+        index.searchSync(new Query("a"));
+        assertEquals(3, transport.getRequestCount("host1"));
+
+        // Writes to other indices don't invalidate this one.
+        client.getIndex("other").clearIndex(null);
+        index.searchSync(new Query("a"));
+        assertEquals(4, transport.getRequestCount("host1"));
+
+        // Multiple-index batches invalidate the indices they target.
+        client.batch(new JSONArray().put(new JSONObject().put("action", "clear").put("indexName", "test")), null);
+        index.searchSync(new Query("a"));
+        assertEquals(6, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void searchCacheStats() throws Exception {
+        assertNull(index.getSearchCacheStats());
+        index.enableSearchCache(60, 10);
+        transport.setResponse("host1", 200, "{\"hits\":[]}");
+        index.searchSync(new Query("a"));
+        index.searchSync(new Query("a"));
+        CacheStats stats = index.getSearchCacheStats();
+        assertEquals(1, stats.hitCount);
+        assertEquals(1, stats.missCount);
+        assertEquals(1, stats.loadCount);
+        assertTrue(stats.byteCount > "{\"hits\":[]}".length());
+        index.resetSearchCacheStats();
+        assertEquals(0, index.getSearchCacheStats().hitCount);
+    }
+
+    @Test
+    public void multipleQueriesSendOnlyMisses() throws Exception {
+        index.enableSearchCache(60, 10);
+        transport.setResponse("host1", 200, "{\"results\":[{\"q\":\"a\",\"index\":\"test\"},{\"q\":\"b\",\"index\":\"test\"}]}");
+        index.multipleQueries(Arrays.asList(new Query("a"), new Query("b")), null, null);
+        assertEquals(1, transport.getRequestCount("host1"));
+
+        transport.setResponse("host1", 200, "{\"results\":[{\"q\":\"c\",\"index\":\"test\"}]}");
+        JSONArray results = index.multipleQueries(Arrays.asList(new Query("b"), new Query("c"), new Query("a")), null, null).getJSONArray("results");
+        assertEquals(2, transport.getRequestCount("host1"));
+        String body = new String(transport.getRequests().get(1).body, "UTF-8");
+        assertTrue(body.contains("query=c") && !body.contains("query=a") && !body.contains("query=b"));
+        assertEquals(3, results.length());
+        assertEquals("b", results.getJSONObject(0).getString("q"));
+        assertEquals("c", results.getJSONObject(1).getString("q"));
+        assertEquals("a", results.getJSONObject(2).getString("q"));
+        assertEquals("test", results.getJSONObject(2).getString("index"));
+
+        // Results are shared with plain searches.
+        assertEquals("a", index.searchSync(new Query("a")).getString("q"));
+        assertEquals(2, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void compressedSearchCache() throws Exception {
+        StringBuilder response = new StringBuilder("{\"hits\":[");
+        for (int i = 0; i < 50; ++i) {
+            response.append(i == 0 ? "" : ",").append("{\"objectID\":\"").append(i).append("\",\"name\":\"Same old name\"}");
+        }
+        response.append("]}");
+        transport.setResponse("host1", 200, response.toString());
+        index.enableSearchCache(60, 10);
+        index.enableSearchCacheCompression();
+        assertEquals(50, index.searchSync(new Query("a")).getJSONArray("hits").length());
+        assertEquals(50, index.searchSync(new Query("a")).getJSONArray("hits").length());
+        assertEquals(1, transport.getRequestCount("host1"));
+        assertTrue(index.getSearchCacheStats().byteCount * 3 < response.length());
+
+        // Compressed results are missed once compression is disabled.
+        index.disableSearchCacheCompression();
+        assertEquals(50, index.searchSync(new Query("a")).getJSONArray("hits").length());
+        assertEquals(2, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void warmSearchCache() throws Exception {
+        index.enableSearchCache(60, 10);
+        transport.setResponse("host1", 200, "{\"results\":[{\"q\":\"a\"},{\"q\":\"b\"}]}");
+        final CountDownLatch done = new CountDownLatch(1);
+        final JSONObject[] result = new JSONObject[1];
+        final CompletionHandler handler = new CompletionHandler() {
+            @Override
+            public void requestCompleted(JSONObject content, AlgoliaException error) {
+                assertNull(error);
+                result[0] = content;
+                done.countDown();
+            }
+        };
+        index.warmSearchCacheAsync(Arrays.asList(new Query("a"), new Query("b")), handler);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, result[0].getInt("warmedQueryCount"));
+        assertTrue(result[0].getBoolean("complete"));
+        assertEquals(1, transport.getRequestCount("host1"));
+
+        // Warmed results are served locally.
+        assertEquals("b", index.searchSync(new Query("b")).getString("q"));
+        assertEquals(1, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void warmSearchCacheHonorsCondition() throws Exception {
+        index.enableSearchCache(60, 10);
+        final CountDownLatch done = new CountDownLatch(1);
+        final JSONObject[] result = new JSONObject[1];
+        index.warmSearchCacheAsync(Arrays.asList(new Query("a")), new SearchCacheWarmingCondition() {
+            @Override
+            public boolean canWarm() {
+                return false;
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void requestCompleted(JSONObject content, AlgoliaException error) {
+                result[0] = content;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, result[0].getInt("warmedQueryCount"));
+        assertFalse(result[0].getBoolean("complete"));
+        assertEquals(0, transport.getRequestCount("host1"));
+    }
+}
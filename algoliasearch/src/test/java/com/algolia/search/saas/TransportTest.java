@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the transport layer, using an in-memory transport.
+ */
+public class TransportTest extends RobolectricTestCase {
+    private Client client;
+    private InMemoryTransport transport;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        client = new Client("APPID", "APIKEY", new String[] { "host1", "host2" });
+        transport = new InMemoryTransport();
+        client.setTransport(transport);
+    }
+
+    @Test
+    public void requestIsBuiltByClient() throws Exception {
+        transport.setResponse("host1", 200, "{\"items\":[]}");
+        client.setHeader("X-Custom", "foo");
+        JSONObject content = client.listIndexes(new RequestOptions().setUrlParameter("page", "2"));
+        assertEquals(0, content.getJSONArray("items").length());
+
+        List<Transport.HttpRequest> requests = transport.getRequests();
+        assertEquals(1, requests.size());
+        Transport.HttpRequest request = requests.get(0);
+        assertEquals("GET", request.method);
+        assertEquals("https://host1/1/indexes/?page=2", request.url.toString());
+        assertEquals("APPID", request.headers.get("X-Algolia-Application-Id"));
+        assertEquals("APIKEY", request.headers.get("X-Algolia-API-Key"));
+        assertEquals("foo", request.headers.get("X-Custom"));
+        assertNull(request.body);
+    }
+
+    @Test
+    public void failoverOnUnreachableHost() throws Exception {
+        client.setConnectTimeout(10);
+        transport.setReachable("host1", false);
+        transport.setResponse("host2", 200, "{\"items\":[]}");
+        client.listIndexes(null);
+        assertEquals(1, transport.getRequestCount("host1"));
+        assertEquals(1, transport.getRequestCount("host2"));
+        assertFalse(client.isUpOrCouldBeRetried("host1"));
+        assertTrue(client.isUpOrCouldBeRetried("host2"));
+
+        Map<String, HostHealth> health = client.getHostHealth();
+        assertFalse(health.get("host1").isUp);
+        assertTrue(health.get("host1").latency < 0);
+        assertTrue(health.get("host2").isUp);
+        assertTrue(health.get("host2").latency >= 0);
+    }
+
+    @Test
+    public void failoverOnServerError() throws Exception {
+        transport.setResponse("host1", 500, "{\"message\":\"Internal error\"}");
+        transport.setResponse("host2", 200, "{\"items\":[]}");
+        client.listIndexes(null);
+        assertEquals(1, transport.getRequestCount("host2"));
+    }
+
+    @Test
+    public void noFailoverOnClientError() throws Exception {
+        transport.setResponse("host1", 403, "{\"message\":\"Invalid API key\"}");
+        transport.setResponse("host2", 200, "{\"items\":[]}");
+        try {
+            client.listIndexes(null);
+            fail("A client error should not be retried");
+        } catch (AlgoliaException e) {
+            assertEquals(403, e.getStatusCode());
+            assertEquals("Invalid API key", e.getMessage());
+        }
+        assertEquals(0, transport.getRequestCount("host2"));
+    }
+
+    @Test
+    public void allHostsFailing() throws Exception {
+        client.setReadTimeout(10);
+        transport.setLatency("host1", 1000).setLatency("host2", 1000);
+        try {
+            client.listIndexes(null);
+            fail("Request should fail when all hosts time out");
+        } catch (AlgoliaException e) {
+            assertTrue(e.isTransient());
+        }
+    }
+
+    @Test
+    public void latencyAwareHostSelection() throws Exception {
+        client.setLatencyAwareHostSelectionEnabled(true);
+        transport.setResponse("host1", 200, "{\"items\":[]}").setLatency("host1", 20);
+        transport.setResponse("host2", 200, "{\"items\":[]}");
+
+        // Hosts are tried in order until the second one gets probed.
+        for (int i = 0; i < 20; ++i) {
+            client.getRequest("/1/indexes/", null, true, null);
+        }
+        assertEquals(1, transport.getRequestCount("host2"));
+
+        // From then on, the fastest host is preferred.
+        transport.clearRequests();
+        for (int i = 0; i < 10; ++i) {
+            client.getRequest("/1/indexes/", null, true, null);
+        }
+        assertEquals(10, transport.getRequestCount("host2"));
+    }
+
+    @Test
+    public void hedgedRequests() throws Exception {
+        client.setHedgedRequestsEnabled(true);
+        client.setSearchTimeout(1000);
+        transport.setResponse("host1", 200, "{\"host\":1}").setLatency("host1", 800);
+        transport.setResponse("host2", 200, "{\"host\":2}");
+
+        // Before enough latencies are known, the request is hedged after half the search timeout.
+        final long startTime = System.currentTimeMillis();
+        JSONObject content = client.getRequest("/1/indexes/", null, true, null);
+        final long duration = System.currentTimeMillis() - startTime;
+        assertEquals(2, content.getInt("host"));
+        assertTrue("The slow host should not delay the response (" + duration + " ms)", duration < 800);
+        assertEquals(1, transport.getRequestCount("host1"));
+        assertEquals(1, transport.getRequestCount("host2"));
+    }
+
+    @Test
+    public void hedgedLosersAreCancelledThroughTheTransport() throws Exception {
+        client.setHedgedRequestsEnabled(true);
+        client.setSearchTimeout(1000);
+        final CountDownLatch released = new CountDownLatch(1);
+        transport.setResponder("host1", new InMemoryTransport.Responder() {
+            @NonNull
+            @Override
+            public Transport.HttpResponse respond(@NonNull Transport.HttpRequest request) throws IOException {
+                final CountDownLatch cancellation = new CountDownLatch(1);
+                request.setCancellationHandler(new Runnable() {
+                    @Override
+                    public void run() {
+                        cancellation.countDown();
+                    }
+                });
+                // Like blocking socket I/O, ignore interrupts: only the cancellation handler aborts the wait.
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (System.currentTimeMillis() < deadline) {
+                    try {
+                        if (cancellation.await(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+                            released.countDown();
+                            throw new InterruptedIOException("Request cancelled");
+                        }
+                    } catch (InterruptedException e) {
+                        // Ignored, as by blocking I/O.
+                    }
+                }
+                return new Transport.HttpResponse(200, "{\"host\":1}".getBytes("UTF-8"));
+            }
+        });
+        transport.setResponse("host2", 200, "{\"host\":2}");
+
+        JSONObject content = client.getRequest("/1/indexes/", null, true, null);
+        assertEquals(2, content.getInt("host"));
+        assertTrue("The slow attempt should be aborted", released.await(1, TimeUnit.SECONDS));
+        // A cancelled attempt says nothing about the host.
+        Thread.sleep(100);
+        assertTrue(client.isUpOrCouldBeRetried("host1"));
+    }
+
+    @Test
+    public void cancellationAbortsBlockingIO() throws Exception {
+        // A server that accepts connections but never answers.
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final CountDownLatch accepted = new CountDownLatch(1);
+        final Socket[] socket = new Socket[1];
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket[0] = server.accept();
+                    accepted.countDown();
+                } catch (IOException e) {
+                    // Server closed.
+                }
+            }
+        }).start();
+        try {
+            final Transport.HttpRequest request = new Transport.HttpRequest("GET", "localhost", new URL("http://127.0.0.1:" + server.getLocalPort() + "/"), new HashMap<String, String>(), null, 1000, 10000);
+            final CountDownLatch done = new CountDownLatch(1);
+            final Exception[] error = new Exception[1];
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new HttpURLConnectionTransport().execute(request);
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                    done.countDown();
+                }
+            }).start();
+            assertTrue(accepted.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100); // let the client block on its read
+            request.cancel();
+            assertTrue("Cancellation should abort the read well before its timeout", done.await(2, TimeUnit.SECONDS));
+            assertTrue(error[0] instanceof IOException);
+        } finally {
+            server.close();
+            if (socket[0] != null) {
+                socket[0].close();
+            }
+        }
+    }
+
+    @Test
+    public void writesAreNotHedged() throws Exception {
+        client.setHedgedRequestsEnabled(true);
+        client.setReadTimeout(1000);
+        transport.setResponse("host1", 200, "{\"host\":1}").setLatency("host1", 100);
+        transport.setResponse("host2", 200, "{\"host\":2}");
+        JSONObject content = client.postRequest("/1/indexes/foo", null, "{}", false, null);
+        assertEquals(1, content.getInt("host"));
+        assertEquals(0, transport.getRequestCount("host2"));
+    }
+
+    @Test
+    public void requestBodyCompression() throws Exception {
+        transport.setResponse("host1", 200, "{}");
+        StringBuilder json = new StringBuilder("{\"requests\":[");
+        for (int i = 0; i < 100; ++i) {
+            json.append(i == 0 ? "" : ",").append("{\"action\":\"addObject\",\"body\":{\"name\":\"object\"}}");
+        }
+        json.append("]}");
+        final String body = json.toString();
+        final int bodyLength = body.getBytes("UTF-8").length;
+
+        // Disabled by default.
+        client.postRequest("/1/indexes/*/batch", null, body, false, null);
+        assertNull(transport.getRequests().get(0).headers.get("Content-Encoding"));
+        assertEquals(bodyLength, client.getSentRequestBodyByteCount());
+
+        // Above the threshold.
+        client.resetRequestBodyByteCounts();
+        client.setRequestCompressionThreshold(1024);
+        client.postRequest("/1/indexes/*/batch", null, body, false, null);
+        Transport.HttpRequest request = transport.getRequests().get(1);
+        assertEquals("gzip", request.headers.get("Content-Encoding"));
+        GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(request.body));
+        assertEquals(body, new String(HttpURLConnectionTransport._toByteArray(stream, -1, new BufferPool(1024, 1)), "UTF-8"));
+        assertEquals(bodyLength, client.getRequestBodyByteCount());
+        assertEquals(request.body.length, client.getSentRequestBodyByteCount());
+        assertTrue(client.getSentRequestBodyByteCount() < bodyLength / 4);
+
+        // Below the threshold.
+        client.postRequest("/1/indexes/foo", null, "{}", false, null);
+        assertNull(transport.getRequests().get(2).headers.get("Content-Encoding"));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2012-2018 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the write buffer of `Index`, using an in-memory transport.
+ */
+public class WriteBufferTest extends InMemoryClientTestCase {
+    @Override
+    public void tearDown() throws Exception {
+        index.disableWriteBuffer();
+        super.tearDown();
+    }
+
+    @Test
+    public void flushesWhenFull() throws Exception {
+        transport.setResponse("host1", 200, "{\"taskID\":42,\"objectIDs\":[\"a\",\"b\",\"c\"]}");
+        index.enableWriteBuffer(3, 1024 * 1024, 60000);
+        final CountDownLatch done = new CountDownLatch(3);
+        final JSONObject[] results = new JSONObject[3];
+        index.saveObjectAsync(new JSONObject().put("name", "A"), "a", new ResultHandler(results, 0, done));
+        index.partialUpdateObjectAsync(new JSONObject().put("name", "B"), "b", new ResultHandler(results, 1, done));
+        index.deleteObjectAsync("c", new ResultHandler(results, 2, done));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, transport.getRequestCount("host1"));
+        final JSONArray requests = new JSONObject(new String(transport.getRequests().get(0).body, "UTF-8")).getJSONArray("requests");
+        assertEquals(3, requests.length());
+        assertEquals("updateObject", requests.getJSONObject(0).getString("action"));
+        assertEquals("partialUpdateObject", requests.getJSONObject(1).getString("action"));
+        assertEquals("deleteObject", requests.getJSONObject(2).getString("action"));
+        final String[] objectIDs = { "a", "b", "c" };
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(42, results[i].getInt("taskID"));
+            assertEquals(objectIDs[i], results[i].getString("objectID"));
+        }
+    }
+
+    @Test
+    public void flushesAfterDelay() throws Exception {
+        transport.setResponse("host1", 200, "{\"taskID\":42,\"objectIDs\":[\"a\"]}");
+        index.enableWriteBuffer(1000, 1024 * 1024, 100);
+        final CountDownLatch done = new CountDownLatch(1);
+        final JSONObject[] results = new JSONObject[1];
+        index.addObjectAsync(new JSONObject().put("name", "A"), new ResultHandler(results, 0, done));
+        assertEquals(0, transport.getRequestCount("host1"));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, transport.getRequestCount("host1"));
+        assertEquals("a", results[0].getString("objectID"));
+    }
+
+    @Test
+    public void cancelledOperationsAreNotSent() throws Exception {
+        transport.setResponse("host1", 200, "{\"taskID\":42,\"objectIDs\":[\"b\"]}");
+        index.enableWriteBuffer(1000, 1024 * 1024, 60000);
+        final CountDownLatch done = new CountDownLatch(1);
+        final JSONObject[] results = new JSONObject[2];
+        final Request request = index.saveObjectAsync(new JSONObject(), "a", new ResultHandler(results, 0, done));
+        index.saveObjectAsync(new JSONObject(), "b", new ResultHandler(results, 1, done));
+        request.cancel();
+        assertTrue(request.isCancelled());
+        index.flushWriteBuffer();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        final JSONArray requests = new JSONObject(new String(transport.getRequests().get(0).body, "UTF-8")).getJSONArray("requests");
+        assertEquals(1, requests.length());
+        assertEquals("b", requests.getJSONObject(0).getString("objectID"));
+        assertNull(results[0]);
+        assertEquals("b", results[1].getString("objectID"));
+    }
+
+    @Test
+    public void errorsAreReportedToEveryOperation() throws Exception {
+        transport.setResponse("host1", 400, "{\"message\":\"Invalid batch\"}");
+        index.enableWriteBuffer(1000, 1024 * 1024, 60000);
+        final CountDownLatch done = new CountDownLatch(2);
+        final AlgoliaException[] errors = new AlgoliaException[2];
+        for (int i = 0; i < 2; ++i) {
+            final int position = i;
+            index.saveObjectAsync(new JSONObject(), "id" + i, new CompletionHandler() {
+                @Override
+                public void requestCompleted(JSONObject content, AlgoliaException error) {
+                    errors[position] = error;
+                    done.countDown();
+                }
+            });
+        }
+        index.disableWriteBuffer();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull(errors[0]);
+        assertNotNull(errors[1]);
+        assertEquals(1, transport.getRequestCount("host1"));
+    }
+
+    @Test
+    public void requestOptionsBypassTheBuffer() throws Exception {
+        transport.setResponse("host1", 200, "{\"taskID\":42,\"objectID\":\"a\"}");
+        index.enableWriteBuffer(1000, 1024 * 1024, 60000);
+        final CountDownLatch done = new CountDownLatch(1);
+        final JSONObject[] results = new JSONObject[1];
+        index.saveObjectAsync(new JSONObject(), "a", new RequestOptions(), new ResultHandler(results, 0, done));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("PUT", transport.getRequests().get(0).method);
+    }
+
+    @Test
+    public void sizeIsMeasuredInUtf8Bytes() throws Exception {
+        assertEquals(0, WriteBuffer.utf8Length(""));
+        assertEquals("a\u00e9\u20ac\ud83d\ude00".getBytes("UTF-8").length, WriteBuffer.utf8Length("a\u00e9\u20ac\ud83d\ude00"));
+
+        // 300 CJK characters weigh 900 bytes, but only 300 chars: the second object overflows a 1000-byte buffer.
+        transport.setResponse("host1", 200, "{\"taskID\":42,\"objectIDs\":[\"a\"]}");
+        index.enableWriteBuffer(1000, 1000, 60000);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; ++i) {
+            text.append('\u4e2d');
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        index.saveObjectAsync(new JSONObject().put("text", text), "a", new ResultHandler(new JSONObject[1], 0, done));
+        assertEquals(0, transport.getRequestCount("host1"));
+        index.saveObjectAsync(new JSONObject().put("text", text), "b", null);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timerDoesNotKeepTheProcessAlive() throws Exception {
+        index.enableWriteBuffer(1000, 1024 * 1024, 60000);
+        index.saveObjectAsync(new JSONObject(), "a", null);
+        boolean found = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("AlgoliaWriteBufferTimer")) {
+                assertTrue(thread.isDaemon());
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    /** Stores results in an array. */
+    private static class ResultHandler implements CompletionHandler {
+        private final JSONObject[] results;
+        private final int position;
+        private final CountDownLatch latch;
+
+        ResultHandler(JSONObject[] results, int position, CountDownLatch latch) {
+            this.results = results;
+            this.position = position;
+            this.latch = latch;
+        }
+
+        @Override
+        public void requestCompleted(JSONObject content, AlgoliaException error) {
+            assertNull(error);
+            results[position] = content;
+            latch.countDown();
+        }
+    }
+}